@@ -7,6 +7,7 @@ import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentTransaction;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
@@ -17,14 +18,13 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 
+import unipi.luk3s.magneto.MagnetoCsvExporter;
 import unipi.luk3s.magneto.MagnetoFragment;
-import static unipi.luk3s.magneto.MagnetoUtils.computeNorm;
-import static unipi.luk3s.magneto.MagnetoUtils.round;
 import static unipi.luk3s.magneto.MagnetoUtils.magneticSensorEventValuesToString;
 
 /**
@@ -48,8 +48,11 @@ import static unipi.luk3s.magneto.MagnetoUtils.magneticSensorEventValuesToString
 public class CollectSensorDataActivity extends AppCompatActivity
         implements MagnetoFragment.MagneticSensorEventListener
 {
-    // NumberPicker initialisation values
-    private final int NUMBERPICKER_MAXVALUE = 20;
+    private static final String TAG = "CollectSensorData";
+
+    // NumberPicker initialisation values, the number can also be typed in: the exporter handles
+    // calibration sessions of thousands of points
+    private final int NUMBERPICKER_MAXVALUE = 10000;
     private final int NUMBERPICKER_MINVALUE = 1;
     private final int NUMBERPICKER_DEFAULTVALUE = 3;
 
@@ -158,6 +161,9 @@ public class CollectSensorDataActivity extends AppCompatActivity
      * <p>Creates the CSV file from the stored magnetic field values in the correct format. It can
      * be called even if no values have been stored. It should be called only after having
      * chosen the number of points to record.</p>
+     *
+     * <p>The file is written in background by a {@link MagnetoCsvExporter}, the outcome is shown
+     * once it has been written.</p>
      */
     public void storeAsCsv(View view)
     {
@@ -172,31 +178,43 @@ public class CollectSensorDataActivity extends AppCompatActivity
                 + recordedPoints_arrayList_float.size()
                 + "PointsOn"
                 + new SimpleDateFormat("dd-M-yyyy hh:mm:ss").format(new Date()) + ".csv");
-        String data = "x,y,z,norm\n";
 
+        MagnetoCsvExporter exporter = new MagnetoCsvExporter(file, false, true);
         for(float[] aRecord : recordedPoints_arrayList_float)
-        {
-            data+= aRecord[0] + ", " + aRecord[1] + "," + aRecord[2] + "," +
-                    round(computeNorm(aRecord)) + "\n";
-        }
+            exporter.append(aRecord);
 
-        try
+        exporter.close(new MagnetoCsvExporter.Callback()
         {
-            FileOutputStream os = new FileOutputStream(file);
-            os.write(data.getBytes());
-            os.close();
-        }
-        catch (Exception e)
-        {
-            e.printStackTrace();
-            Toast.makeText(this, "Error while saving the file", Toast.LENGTH_SHORT).show();
-        }
+            @Override
+            public void onExportCompleted(File file, int records)
+            {
+                showToastOnUiThread("Successfully saved!");
+            }
+
+            @Override
+            public void onExportFailed(File file, IOException error)
+            {
+                Log.e(TAG, "Cannot save " + file, error);
+                showToastOnUiThread("Error while saving the file");
+            }
+        });
 
-        Toast.makeText(this, "Successfully saved!", Toast.LENGTH_SHORT).show();
         saveToMemory_button.setEnabled(false);
         recordAPosition_button.setEnabled(false);
     }
 
+    private void showToastOnUiThread(final String text)
+    {
+        runOnUiThread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Toast.makeText(CollectSensorDataActivity.this, text, Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy, String accuracyToString){}
 
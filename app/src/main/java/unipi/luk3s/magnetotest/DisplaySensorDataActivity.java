@@ -58,9 +58,11 @@ public class DisplaySensorDataActivity extends AppCompatActivity
     @Override
     public void onSensorChanged(SensorEvent sensorEvent, float[] smaValues, float[] smaRoundedValues, float[] highPassValues)
     {
-        float x = sensorEvent.values[0];
-        float y = sensorEvent.values[1];
-        float z = sensorEvent.values[2];
+        // The raw values are not delivered with background processing or batching
+        float[] values = (sensorEvent != null) ? sensorEvent.values : smaValues;
+        float x = values[0];
+        float y = values[1];
+        float z = values[2];
 
         cartesianCoordinates_textView.setText("Cartesian Coordinates \n" +
                 "x: " + smaRoundedValues[0] + "\n" +
@@ -68,7 +70,7 @@ public class DisplaySensorDataActivity extends AppCompatActivity
                 "z: " + smaRoundedValues[2]);
 
         float r = round(Math.sqrt(x * x + y * y));
-        float theta = computeAzimuth(sensorEvent.values);
+        float theta = computeAzimuth(values);
 
         cylindricalCoordinates_textView.setText("Cylindrical Coordinates \n" +
                 "ρ: " + r + "\n" +
@@ -77,7 +79,7 @@ public class DisplaySensorDataActivity extends AppCompatActivity
 
         float norm_x = round(Math.sqrt(x * x));
         float norm_xy = r;
-        float norm_xyz = round(computeNorm(sensorEvent.values));
+        float norm_xyz = round(computeNorm(values));
 
         euclideanNorm_textView.setText("Norm(s) of the Magnetic Field \n" +
                 "x: " + norm_x + "\n" +
@@ -203,7 +203,7 @@ public class RadialCubeActivity extends AppCompatActivity
         // Rotating the cube as the magnet moves around the compass sensor is achieved by
         // updating the first argument of glRotatef(angle, x, y, z) as the magnet moves.
         // A simple assignment does the job, no further computation is required.
-        azimuth = computeAzimuth(sensorEvent.values);
+        azimuth = computeAzimuth((sensorEvent != null) ? sensorEvent.values : smaValues);
     }
 
 }
\ No newline at end of file
@@ -22,7 +22,9 @@ import static unipi.luk3s.magneto.MagnetoUtils.round;
  *
  * <p><b>Flow of control</b>: first set the low threshold, and then the high one.
  * This flow of control is ensured by enabling and disabling the right buttons. It is possible
- * to reset the threshold and start again (the flow of control stays the same).</p>
+ * to reset the threshold and start again (the flow of control stays the same).
+ * Alternatively, the thresholds can be calibrated automatically, from the noise sensed while no
+ * magnet is nearby.</p>
  */
 public class RapidChangesExampleActivity extends AppCompatActivity
         implements MagnetoFragment.MagneticSensorEventListener
@@ -80,6 +82,19 @@ public class RapidChangesExampleActivity extends AppCompatActivity
         }
     }
 
+    public void calibrateAutomatically(View view)
+    {
+        findViewById(R.id.RapidChangesExampleActivity_button_setLowThreshold).setEnabled(false);
+        findViewById(R.id.RapidChangesExampleActivity_button_setHighThreshold).setEnabled(false);
+        findViewById(R.id.RapidChangesExampleActivity_editText_lowThreshold).setEnabled(false);
+        findViewById(R.id.RapidChangesExampleActivity_editText_highThreshold).setEnabled(false);
+        view.setEnabled(false);
+
+        movHelper.clearThresholds();
+        movHelper.clearTapCounter();
+        movHelper.startAutoCalibration();
+    }
+
     public void resetActivity(View view)
     {
         movHelper.clearThresholds();
@@ -97,6 +112,7 @@ public class RapidChangesExampleActivity extends AppCompatActivity
         lowThresholdEditText.setEnabled(false);
 
         (findViewById(R.id.RapidChangesExampleActivity_button_setLowThreshold)).setEnabled(true);
+        (findViewById(R.id.RapidChangesExampleActivity_button_calibrateAutomatically)).setEnabled(true);
     }
 
     @Override
@@ -109,6 +125,15 @@ public class RapidChangesExampleActivity extends AppCompatActivity
         if(movHelper.hasInitEnded() && movHelper.hasATapBeenDetected())
             tapCounter.setText(movHelper.getTapCounter() + "");
 
+        // The thresholds found by the automatic calibration, which follow the noise
+        if(movHelper.isAutoCalibrating() && movHelper.hasInitEnded())
+        {
+            ((EditText) findViewById(R.id.RapidChangesExampleActivity_editText_lowThreshold))
+                    .setText(Math.round(movHelper.getLowThreshold()) + "");
+            ((EditText) findViewById(R.id.RapidChangesExampleActivity_editText_highThreshold))
+                    .setText(Math.round(movHelper.getHighThreshold()) + "");
+        }
+
         float highPassFilteredValueMagnitude = movHelper.getHighPassMagnitude();
         highPassFilteredValueMagnitude = round(highPassFilteredValueMagnitude);
         magneticFieldTextView.setText("Filtered Magnitude: " + highPassFilteredValueMagnitude);
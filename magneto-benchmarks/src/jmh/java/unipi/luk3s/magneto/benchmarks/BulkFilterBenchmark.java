@@ -0,0 +1,87 @@
+package unipi.luk3s.magneto.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import unipi.luk3s.magneto.MagneticFilter;
+import unipi.luk3s.magneto.MagneticFilters;
+
+/**
+ * <p>Cost per sample of filtering a chunk of {@value #CHUNK} samples (e.g. a FIFO burst or a
+ * piece of a recorded trace) one sample at a time, as the pipeline does, or at once with
+ * {@link MagneticFilters#process(MagneticFilter, float[], float[], float[], int, float[],
+ * float[])}. Both compute the low-pass and the high-pass values.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BulkFilterBenchmark
+{
+    private static final int CHUNK = 256;
+
+    @Param({"0", "1"})
+    public int filterType;
+
+    private float[] xs, ys, zs;
+    private float[] low, high;
+    private MagneticFilter filter;
+
+    @Setup
+    public void setUp()
+    {
+        float[][] samples = Samples.magneticField(42);
+        xs = new float[CHUNK];
+        ys = new float[CHUNK];
+        zs = new float[CHUNK];
+        for (int i = 0; i < CHUNK; i++)
+        {
+            xs[i] = samples[i][0];
+            ys[i] = samples[i][1];
+            zs[i] = samples[i][2];
+        }
+        low = new float[3 * CHUNK];
+        high = new float[3 * CHUNK];
+        filter = MagneticFilters.newFilter(filterType,
+                filterType == MagneticFilter.EXPONENTIAL_MOVING_AVERAGE ? 0.2f : 10);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNK)
+    public float sampleBySample()
+    {
+        for (int i = 0; i < CHUNK; i++)
+        {
+            filter.update(xs[i], ys[i], zs[i]);
+            low[i] = filter.getX();
+            low[CHUNK + i] = filter.getY();
+            low[2 * CHUNK + i] = filter.getZ();
+            high[i] = xs[i] - low[i];
+            high[CHUNK + i] = ys[i] - low[CHUNK + i];
+            high[2 * CHUNK + i] = zs[i] - low[2 * CHUNK + i];
+        }
+        return high[CHUNK - 1];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CHUNK)
+    public float bulk()
+    {
+        MagneticFilters.process(filter, xs, ys, zs, CHUNK, low, high);
+        return high[CHUNK - 1];
+    }
+}
@@ -0,0 +1,490 @@
+package unipi.luk3s.magneto.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import unipi.luk3s.magneto.MagneticFilter;
+import unipi.luk3s.magneto.MagneticFilters;
+import unipi.luk3s.magneto.MagnetoPipeline;
+import unipi.luk3s.magneto.RapidChangesHelper;
+import unipi.luk3s.magneto.SyntheticMagnetSource;
+import unipi.luk3s.magneto.VirtualTapHelper;
+
+/**
+ * <p>Measures how well and how fast the detectors fire: labelled traces (synthetic, or recorded
+ * with {@link unipi.luk3s.magneto.MagnetoTraceWriter}) are run through
+ * {@link RapidChangesHelper} and {@link VirtualTapHelper} with different filters and thresholds,
+ * and every run is scored against the labels:</p>
+ * <ul>
+ * <li>an event is detected if there is a detection within {@link #MATCH_WINDOW_MILLIS} after it,
+ * otherwise it is a miss (false negative); every other detection is a false positive;</li>
+ * <li>precision and recall;</li>
+ * <li>the latency of the detections, in samples and in milliseconds from the event;</li>
+ * <li>the CPU time per sample of the pipeline and the helper together.</li>
+ * </ul>
+ *
+ * <p>The report is written as JSON, one object per run, to the file given as first argument (or
+ * to the standard output):</p>
+ *
+ * <pre>
+ * ./gradlew :magneto-benchmarks:detectionReport
+ * java ... DetectionHarness report.json [--trace recording.mtrace labels.txt]
+ * </pre>
+ */
+public final class DetectionHarness
+{
+    /** The longest delay after an event for a detection to be counted as its detection */
+    static final long MATCH_WINDOW_MILLIS = 250;
+
+    // The CPU time is measured on repeated runs, until at least this much has been spent
+    private static final long MIN_MEASURED_NANOS = 100000000L;
+    private static final int WARMUP_RUNS = 3;
+
+    /** Private constructor in order to prevent instantiation */
+    private DetectionHarness(){}
+
+    public static void main(String[] args) throws IOException
+    {
+        String output = null;
+        List<LabelledTrace> traces = new ArrayList<LabelledTrace>();
+        boolean recorded = false;
+        for (int i = 0; i < args.length; i++)
+        {
+            if ("--trace".equals(args[i]) && i + 2 < args.length)
+            {
+                traces.add(LabelledTrace.fromRecording(new File(args[i + 1]),
+                        new File(args[i + 2])));
+                recorded = true;
+                i += 2;
+            }
+            else if (output == null)
+                output = args[i];
+            else
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+        }
+
+        List<Scenario> scenarios = recorded ? recordedScenarios(traces) : syntheticScenarios();
+        StringBuilder report = new StringBuilder();
+        report.append("[\n");
+        boolean first = true;
+        for (Scenario scenario : scenarios)
+        {
+            for (float[] filter : FILTERS)
+            {
+                for (Detector detector : scenario.detectors)
+                {
+                    Result result = run(scenario.trace, (int) filter[0], filter[1], detector);
+                    if (!first)
+                        report.append(",\n");
+                    result.appendJson(report);
+                    first = false;
+                }
+            }
+        }
+        report.append("\n]\n");
+
+        if (output == null)
+            System.out.print(report);
+        else
+        {
+            File file = new File(output);
+            if (file.getParentFile() != null)
+                file.getParentFile().mkdirs();
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try
+            {
+                writer.write(report.toString());
+            }
+            finally
+            {
+                writer.close();
+            }
+        }
+    }
+
+    // {filter type, parameter} of the filters compared
+    private static final float[][] FILTERS = {
+            {MagneticFilter.SIMPLE_MOVING_AVERAGE, 5},
+            {MagneticFilter.SIMPLE_MOVING_AVERAGE, 10},
+            {MagneticFilter.SIMPLE_MOVING_AVERAGE, 20},
+            {MagneticFilter.EXPONENTIAL_MOVING_AVERAGE, MagneticFilters.DEFAULT_SMOOTHING_FACTOR},
+            {MagneticFilter.TIME_CONSTANT, MagneticFilters.DEFAULT_TIME_CONSTANT_MILLIS}};
+
+    private static List<Detector> rapidChangesDetectors()
+    {
+        List<Detector> detectors = new ArrayList<Detector>();
+        detectors.add(new RapidChangesDetector(10, 50));
+        detectors.add(new RapidChangesDetector(20, 100));
+        detectors.add(new RapidChangesDetector(40, 200));
+        return detectors;
+    }
+
+    private static List<Scenario> syntheticScenarios()
+    {
+        List<Scenario> scenarios = new ArrayList<Scenario>();
+        Random random = new Random(42);
+
+        // A magnet 4 cm above the screen flipped over every second or so
+        float[] flipTimes = randomTimes(random, 60, 1f, 0.8f, 1.6f);
+        SyntheticMagnetSource flips = new SyntheticMagnetSource(1, 50);
+        flips.setNoise(0.5f);
+        flips.addMagnet(SyntheticMagnetSource.flips(new float[]{0, 0, 0.04f},
+                new float[]{0, 0, 0.1f}, flipTimes, 0.15f));
+        scenarios.add(new Scenario(LabelledTrace.fromSource("flips-50Hz", flips, 50 * 80,
+                flipTimes, 0.5f), rapidChangesDetectors()));
+
+        // A magnet resting 12 cm away, brought to 3 cm from the sensor and back
+        float[] tapTimes = randomTimes(random, 60, 1f, 0.6f, 1.4f);
+        SyntheticMagnetSource taps = new SyntheticMagnetSource(2, 100);
+        taps.setNoise(0.5f);
+        taps.addMagnet(SyntheticMagnetSource.taps(new float[]{0.12f, 0, 0},
+                new float[]{0.03f, 0, 0}, new float[]{0.1f, 0, 0}, tapTimes, 0.3f));
+        scenarios.add(new Scenario(LabelledTrace.fromSource("taps-100Hz", taps, 100 * 80,
+                tapTimes, 0.5f), rapidChangesDetectors()));
+
+        // A magnet slowly approaching: nothing should be detected
+        SyntheticMagnetSource slide = new SyntheticMagnetSource(3, 50);
+        slide.setNoise(0.5f);
+        slide.addMagnet(SyntheticMagnetSource.slide(new float[]{0, 0.2f, 0},
+                new float[]{0, 0.05f, 0}, new float[]{0, 0.1f, 0}, 5, 20));
+        List<Detector> all = rapidChangesDetectors();
+        all.add(new VirtualTapDetector());
+        scenarios.add(new Scenario(LabelledTrace.fromSource("slow-slide-50Hz", slide, 50 * 30,
+                new float[0], 0.5f), all));
+
+        // A magnet going round the sensor once a second: the azimuth changes sign every half
+        // revolution. The detector is initialised after a quarter of a revolution.
+        float[] crossings = new float[60];
+        for (int i = 0; i < crossings.length; i++)
+            crossings[i] = 0.5f * (i + 1);
+        SyntheticMagnetSource orbit = new SyntheticMagnetSource(4, 100);
+        orbit.setNoise(0.5f);
+        orbit.addMagnet(SyntheticMagnetSource.orbit(0.05f, 0.01f, 0.2f, 1f));
+        List<Detector> virtual = new ArrayList<Detector>();
+        virtual.add(new VirtualTapDetector());
+        scenarios.add(new Scenario(LabelledTrace.fromSource("orbit-100Hz", orbit, 100 * 30 + 25,
+                crossings, 0.25f), virtual));
+
+        return scenarios;
+    }
+
+    private static List<Scenario> recordedScenarios(List<LabelledTrace> traces)
+    {
+        List<Scenario> scenarios = new ArrayList<Scenario>();
+        for (LabelledTrace trace : traces)
+        {
+            List<Detector> all = rapidChangesDetectors();
+            all.add(new VirtualTapDetector());
+            scenarios.add(new Scenario(trace, all));
+        }
+        return scenarios;
+    }
+
+    /** Increasing times, starting from {@code start}, separated by random intervals */
+    private static float[] randomTimes(Random random, int count, float start,
+                                       float minInterval, float maxInterval)
+    {
+        float[] times = new float[count];
+        float time = start;
+        for (int i = 0; i < count; i++)
+        {
+            times[i] = time;
+            time += minInterval + (maxInterval - minInterval) * random.nextFloat();
+        }
+        return times;
+    }
+
+    static Result run(LabelledTrace trace, int filterType, float filterParameter,
+                      Detector detector)
+    {
+        int[] detections = new int[trace.size()];
+        int count = detect(trace, filterType, filterParameter, detector, detections);
+        Result result = score(trace, Arrays.copyOf(detections, count));
+        result.detector = detector.toString();
+        result.filterType = filterType;
+        result.filterParameter = filterParameter;
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+        for (int i = 0; i < WARMUP_RUNS; i++)
+            detect(trace, filterType, filterParameter, detector, detections);
+
+        long spent = 0, samples = 0;
+        while (spent < MIN_MEASURED_NANOS)
+        {
+            long start = cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+            detect(trace, filterType, filterParameter, detector, detections);
+            spent += (cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime()) - start;
+            samples += trace.size();
+        }
+        result.cpuNanosPerSample = (double) spent / Math.max(samples, 1);
+        return result;
+    }
+
+    /**
+     * @return the number of detections, whose sample indexes are written in the array
+     */
+    private static int detect(LabelledTrace trace, int filterType, float filterParameter,
+                              Detector detector, int[] detections)
+    {
+        MagnetoPipeline pipeline =
+                new MagnetoPipeline(MagneticFilters.newFilter(filterType, filterParameter));
+        detector.attach(pipeline);
+
+        long[] timestamps = trace.timestamps;
+        float[] xs = trace.xs, ys = trace.ys, zs = trace.zs;
+        boolean armed = false;
+        int count = 0;
+        for (int i = 0; i < timestamps.length; i++)
+        {
+            pipeline.process(timestamps[i], xs[i], ys[i], zs[i]);
+            if (armed)
+            {
+                if (detector.detect())
+                    detections[count++] = i;
+            }
+            else if (timestamps[i] >= trace.armTimestamp)
+            {
+                detector.arm();
+                armed = true;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * <p>Matches every event (after the detectors are armed) with the first detection not
+     * matched yet within {@link #MATCH_WINDOW_MILLIS} after it.</p>
+     */
+    static Result score(LabelledTrace trace, int[] detections)
+    {
+        long window = MATCH_WINDOW_MILLIS * 1000000L;
+        long[] timestamps = trace.timestamps;
+        Result result = new Result(trace);
+
+        double[] latenciesMillis = new double[trace.events.length];
+        int[] latenciesSamples = new int[trace.events.length];
+        int next = 0;
+        for (long event : trace.events)
+        {
+            if (event < trace.armTimestamp)
+                continue;
+            result.events++;
+
+            // Detections before the event cannot be its detection
+            while (next < detections.length && timestamps[detections[next]] < event)
+                next++;
+            if (next < detections.length && timestamps[detections[next]] - event <= window)
+            {
+                int firstSample = Arrays.binarySearch(timestamps, event);
+                if (firstSample < 0)
+                    firstSample = -firstSample - 1;
+
+                latenciesMillis[result.truePositives] =
+                        (timestamps[detections[next]] - event) / 1e6;
+                latenciesSamples[result.truePositives] = detections[next] - firstSample;
+                result.truePositives++;
+                next++;
+            }
+        }
+
+        result.detections = detections.length;
+        result.latenciesMillis = Arrays.copyOf(latenciesMillis, result.truePositives);
+        result.latenciesSamples = Arrays.copyOf(latenciesSamples, result.truePositives);
+        Arrays.sort(result.latenciesMillis);
+        Arrays.sort(result.latenciesSamples);
+        return result;
+    }
+
+    private static final class Scenario
+    {
+        final LabelledTrace trace;
+        final List<Detector> detectors;
+
+        Scenario(LabelledTrace trace, List<Detector> detectors)
+        {
+            this.trace = trace;
+            this.detectors = detectors;
+        }
+    }
+
+    /** A helper under test, rebuilt on a new pipeline for every run */
+    abstract static class Detector
+    {
+        abstract void attach(MagnetoPipeline pipeline);
+
+        /** Called once, on the sample at which the trace arms the detectors */
+        abstract void arm();
+
+        /** Called for every sample after the detector is armed */
+        abstract boolean detect();
+    }
+
+    static final class RapidChangesDetector extends Detector
+    {
+        private final float lowThreshold, highThreshold;
+        private RapidChangesHelper helper;
+
+        RapidChangesDetector(float lowThreshold, float highThreshold)
+        {
+            this.lowThreshold = lowThreshold;
+            this.highThreshold = highThreshold;
+        }
+
+        @Override
+        void attach(MagnetoPipeline pipeline)
+        {
+            helper = new RapidChangesHelper(pipeline);
+            helper.setLowThreshold(lowThreshold);
+            helper.setHighThreshold(highThreshold);
+        }
+
+        @Override
+        void arm()
+        {
+            helper.endInit();
+        }
+
+        @Override
+        boolean detect()
+        {
+            return helper.hasATapBeenDetected();
+        }
+
+        @Override
+        public String toString()
+        {
+            return "RapidChangesHelper(" + lowThreshold + ", " + highThreshold + ")";
+        }
+    }
+
+    static final class VirtualTapDetector extends Detector
+    {
+        private VirtualTapHelper helper;
+
+        @Override
+        void attach(MagnetoPipeline pipeline)
+        {
+            helper = new VirtualTapHelper(pipeline);
+        }
+
+        @Override
+        void arm()
+        {
+            helper.init();
+        }
+
+        @Override
+        boolean detect()
+        {
+            return helper.hasTapBeenDetected();
+        }
+
+        @Override
+        public String toString()
+        {
+            return "VirtualTapHelper";
+        }
+    }
+
+    static final class Result
+    {
+        final String trace;
+        final int samples;
+        String detector;
+        int filterType;
+        float filterParameter;
+        int events, detections, truePositives;
+        // Sorted
+        double[] latenciesMillis;
+        int[] latenciesSamples;
+        double cpuNanosPerSample;
+
+        Result(LabelledTrace trace)
+        {
+            this.trace = trace.name;
+            samples = trace.size();
+        }
+
+        /** NaN if nothing was detected */
+        double precision()
+        {
+            return (double) truePositives / detections;
+        }
+
+        /** NaN if there were no events */
+        double recall()
+        {
+            return (double) truePositives / events;
+        }
+
+        void appendJson(StringBuilder json)
+        {
+            json.append("  {\"trace\": \"").append(trace.replace("\"", "\\\""))
+                    .append("\", \"detector\": \"").append(detector)
+                    .append("\", \"filterType\": ").append(filterType)
+                    .append(", \"filterParameter\": ").append(number(filterParameter))
+                    .append(",\n   \"samples\": ").append(samples)
+                    .append(", \"events\": ").append(events)
+                    .append(", \"detections\": ").append(detections)
+                    .append(", \"truePositives\": ").append(truePositives)
+                    .append(", \"falsePositives\": ").append(detections - truePositives)
+                    .append(", \"falseNegatives\": ").append(events - truePositives)
+                    .append(",\n   \"precision\": ").append(number(precision()))
+                    .append(", \"recall\": ").append(number(recall()))
+                    .append(",\n   \"latencyMillis\": {\"mean\": ").append(number(mean(latenciesMillis)))
+                    .append(", \"p50\": ").append(number(percentile(latenciesMillis, 50)))
+                    .append(", \"p95\": ").append(number(percentile(latenciesMillis, 95)))
+                    .append(", \"max\": ").append(number(percentile(latenciesMillis, 100)))
+                    .append("},\n   \"latencySamples\": {\"mean\": ")
+                    .append(number(mean(toDoubles(latenciesSamples))))
+                    .append(", \"p50\": ").append(number(percentile(toDoubles(latenciesSamples), 50)))
+                    .append(", \"max\": ").append(number(percentile(toDoubles(latenciesSamples), 100)))
+                    .append("},\n   \"cpuNanosPerSample\": ").append(number(cpuNanosPerSample))
+                    .append("}");
+        }
+
+        private static double mean(double[] values)
+        {
+            double sum = 0;
+            for (double value : values)
+                sum += value;
+            return sum / values.length;
+        }
+
+        /** Nearest rank percentile of sorted values, NaN if there are none */
+        private static double percentile(double[] sorted, int percent)
+        {
+            if (sorted.length == 0)
+                return Double.NaN;
+            int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+            return sorted[Math.max(rank, 1) - 1];
+        }
+
+        private static double[] toDoubles(int[] values)
+        {
+            double[] doubles = new double[values.length];
+            for (int i = 0; i < values.length; i++)
+                doubles[i] = values[i];
+            return doubles;
+        }
+
+        /** JSON has no NaN: undefined values are null */
+        private static String number(double value)
+        {
+            if (Double.isNaN(value) || Double.isInfinite(value))
+                return "null";
+            return String.format(Locale.ROOT, "%.3f", value);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package unipi.luk3s.magneto.benchmarks;
+
+import unipi.luk3s.magneto.MagneticFrame;
+import unipi.luk3s.magneto.MagneticReadingsSource;
+import unipi.luk3s.magneto.MagnetoPipeline;
+
+/**
+ * <p>A {@link MagneticReadingsSource} whose readings are set directly by the benchmark, so that
+ * a helper can be measured in isolation from the low-pass filter.</p>
+ */
+class FixedReadingsSource implements MagneticReadingsSource
+{
+    final float[] roundedReadings = new float[3];
+    final float[] highPassReadings = new float[3];
+    final MagneticFrame frame = new MagneticFrame(roundedReadings, highPassReadings);
+
+    void setRoundedReadings(float x, float y, float z)
+    {
+        roundedReadings[0] = x;
+        roundedReadings[1] = y;
+        roundedReadings[2] = z;
+        frame.invalidate();
+    }
+
+    void setHighPassReadings(float x, float y, float z)
+    {
+        highPassReadings[0] = x;
+        highPassReadings[1] = y;
+        highPassReadings[2] = z;
+        frame.invalidate();
+    }
+
+    @Override
+    public float[] getLastRoundedReadings()
+    {
+        return roundedReadings;
+    }
+
+    @Override
+    public float[] getLastHighPassReadings()
+    {
+        return highPassReadings;
+    }
+
+    @Override
+    public MagneticFrame getLastFrame()
+    {
+        return frame;
+    }
+
+    @Override
+    public void addSampleListener(MagnetoPipeline.SampleListener listener) {}
+
+    @Override
+    public void removeSampleListener(MagnetoPipeline.SampleListener listener) {}
+}
@@ -0,0 +1,86 @@
+package unipi.luk3s.magneto.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import unipi.luk3s.magneto.IdentificationHelper;
+
+/**
+ * <p>Identifying the magnet currently sensed in a catalogue of stored magnitudes. Magnitudes are
+ * 1 µT apart and stored in random order, so that the AIDs do not follow the magnitudes.</p>
+ *
+ * <p>{@link #matchStoredMagnet()} queries a random stored magnitude, while
+ * {@link #matchNoMagnet()} queries a magnitude far from all of them.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IdentificationHelperBenchmark
+{
+    private static final float THRESHOLD = 0.4f;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int storedMagnets;
+
+    private FixedReadingsSource source;
+    private IdentificationHelper helper;
+    private float[] queries;
+    private int next;
+
+    @Setup
+    public void setUp()
+    {
+        source = new FixedReadingsSource();
+        helper = new IdentificationHelper(source, storedMagnets, THRESHOLD);
+        Random random = new Random(42);
+
+        float[] magnitudes = new float[storedMagnets];
+        for (int i = 0; i < storedMagnets; i++)
+            magnitudes[i] = i;
+        for (int i = storedMagnets - 1; i > 0; i--)
+        {
+            int j = random.nextInt(i + 1);
+            float tmp = magnitudes[i];
+            magnitudes[i] = magnitudes[j];
+            magnitudes[j] = tmp;
+        }
+        for (int i = 0; i < storedMagnets; i++)
+        {
+            source.setRoundedReadings(magnitudes[i], 0f, 0f);
+            helper.storeCurrentlySensedMagnitude();
+        }
+
+        queries = new float[Samples.COUNT];
+        for (int i = 0; i < Samples.COUNT; i++)
+            queries[i] = magnitudes[random.nextInt(storedMagnets)] + 0.25f;
+    }
+
+    @Benchmark
+    public boolean matchStoredMagnet()
+    {
+        source.setRoundedReadings(queries[next++ & Samples.MASK], 0f, 0f);
+        return helper.doesCurrentlySensedMagnitudeMatchAStoredOne();
+    }
+
+    @Benchmark
+    public boolean matchNoMagnet()
+    {
+        source.setRoundedReadings(-1000f, 0f, 0f);
+        return helper.doesCurrentlySensedMagnitudeMatchAStoredOne();
+    }
+}
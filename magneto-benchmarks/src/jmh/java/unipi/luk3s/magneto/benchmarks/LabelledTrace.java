@@ -0,0 +1,128 @@
+package unipi.luk3s.magneto.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+import unipi.luk3s.magneto.MagneticSampleBatch;
+import unipi.luk3s.magneto.MagnetoTraceReader;
+import unipi.luk3s.magneto.SyntheticMagnetSource;
+
+/**
+ * <p>A sequence of samples together with the timestamps of the events (flips, taps, ...) that
+ * happened while they were sensed, the ground truth the detections are scored against. The
+ * samples are kept in memory as a structure of arrays, so replaying them costs nothing but the
+ * processing.</p>
+ */
+final class LabelledTrace
+{
+    final String name;
+    final long[] timestamps;
+    final float[] xs, ys, zs;
+    // Sorted
+    final long[] events;
+    // The detectors are initialised on the first sample at or after this timestamp
+    final long armTimestamp;
+
+    private LabelledTrace(String name, long[] timestamps, float[] xs, float[] ys, float[] zs,
+                          long[] events, long armTimestamp)
+    {
+        this.name = name;
+        this.timestamps = timestamps;
+        this.xs = xs;
+        this.ys = ys;
+        this.zs = zs;
+        this.events = events.clone();
+        Arrays.sort(this.events);
+        this.armTimestamp = armTimestamp;
+    }
+
+    int size()
+    {
+        return timestamps.length;
+    }
+
+    /**
+     * @param eventSeconds the times of the events, in seconds since the start of the stream
+     * @param armSeconds the time at which the detectors are initialised
+     */
+    static LabelledTrace fromSource(String name, SyntheticMagnetSource source, int samples,
+                                    float[] eventSeconds, float armSeconds)
+    {
+        long start = source.getTimestamp();
+        MagneticSampleBatch batch = new MagneticSampleBatch(samples);
+        source.read(batch);
+
+        long[] events = new long[eventSeconds.length];
+        for (int i = 0; i < events.length; i++)
+            events[i] = start + Math.round(eventSeconds[i] * 1e9);
+
+        return fromBatch(name, batch, events, start + Math.round(armSeconds * 1e9));
+    }
+
+    /**
+     * <p>Loads a recording made with {@link unipi.luk3s.magneto.MagnetoTraceWriter}, labelled by
+     * a text file with the timestamp in nanoseconds of an event on every line (empty lines and
+     * lines starting with # are ignored). The detectors are initialised on the first sample.</p>
+     */
+    static LabelledTrace fromRecording(File trace, File labels) throws IOException
+    {
+        MagnetoTraceReader reader = new MagnetoTraceReader(trace);
+        MagneticSampleBatch batch;
+        try
+        {
+            batch = new MagneticSampleBatch(Math.max(reader.size(), 1));
+            reader.read(0, batch);
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        long[] events = new long[16];
+        int count = 0;
+        BufferedReader lines = new BufferedReader(new FileReader(labels));
+        try
+        {
+            String line;
+            while ((line = lines.readLine()) != null)
+            {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                if (count == events.length)
+                    events = Arrays.copyOf(events, 2 * count);
+                events[count++] = Long.parseLong(line);
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException("Invalid label in " + labels + ": " + e.getMessage());
+        }
+        finally
+        {
+            lines.close();
+        }
+
+        long start = batch.isEmpty() ? 0 : batch.getTimestamp(0);
+        return fromBatch(trace.getName(), batch, Arrays.copyOf(events, count), start);
+    }
+
+    private static LabelledTrace fromBatch(String name, MagneticSampleBatch batch, long[] events,
+                                           long armTimestamp)
+    {
+        int size = batch.size();
+        long[] timestamps = new long[size];
+        float[] xs = new float[size], ys = new float[size], zs = new float[size];
+        for (int i = 0; i < size; i++)
+        {
+            timestamps[i] = batch.getTimestamp(i);
+            xs[i] = batch.getX(i);
+            ys[i] = batch.getY(i);
+            zs[i] = batch.getZ(i);
+        }
+        return new LabelledTrace(name, timestamps, xs, ys, zs, events, armTimestamp);
+    }
+}
@@ -0,0 +1,58 @@
+package unipi.luk3s.magneto.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import unipi.luk3s.magneto.MagneticFilter;
+import unipi.luk3s.magneto.MagneticFilters;
+
+/**
+ * <p>Cost of feeding one sample to each of the low-pass filters provided by the library. The
+ * window is ignored by the exponential moving average, and used as the time constant in
+ * milliseconds by the time constant filter.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MagneticFilterBenchmark
+{
+    @Param({"0", "1", "2", "3"})
+    public int filterType;
+
+    @Param({"10", "100"})
+    public int window;
+
+    private float[][] samples;
+    private MagneticFilter filter;
+    private int next;
+
+    @Setup
+    public void setUp()
+    {
+        samples = Samples.magneticField(42);
+        filter = MagneticFilters.newFilter(filterType,
+                filterType == MagneticFilter.EXPONENTIAL_MOVING_AVERAGE ? 2f / (window + 1) : window);
+    }
+
+    @Benchmark
+    public float update()
+    {
+        float[] sample = samples[next++ & Samples.MASK];
+        filter.update(sample[0], sample[1], sample[2]);
+        return filter.getX();
+    }
+}
@@ -0,0 +1,68 @@
+package unipi.luk3s.magneto.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import unipi.luk3s.magneto.MagneticFrame;
+import unipi.luk3s.magneto.MagnetoUtils;
+
+/**
+ * <p>The features needed by five helpers for one sample (three magnitudes, two azimuths, as with
+ * identification, linear motion, radial position and virtual tap all active), computed by each
+ * helper on its own versus shared through a {@link MagneticFrame}.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MagneticFrameBenchmark
+{
+    private float[][] samples;
+    private FixedReadingsSource source;
+    private int next;
+
+    @Setup
+    public void setUp()
+    {
+        samples = Samples.magneticField(42);
+        source = new FixedReadingsSource();
+    }
+
+    @Benchmark
+    public float computedByEachHelper()
+    {
+        float[] sample = samples[next++ & Samples.MASK];
+        source.setRoundedReadings(sample[0], sample[1], sample[2]);
+        float[] readings = source.getLastRoundedReadings();
+        return MagnetoUtils.computeRoundedNorm(readings)
+                + MagnetoUtils.computeRoundedNorm(readings)
+                + MagnetoUtils.computeNorm(readings)
+                + MagnetoUtils.computeAzimuth(readings)
+                + MagnetoUtils.computeAzimuth(readings);
+    }
+
+    @Benchmark
+    public float sharedFrame()
+    {
+        float[] sample = samples[next++ & Samples.MASK];
+        source.setRoundedReadings(sample[0], sample[1], sample[2]);
+        MagneticFrame frame = source.getLastFrame();
+        return frame.getRoundedNorm()
+                + frame.getRoundedNorm()
+                + frame.getNorm()
+                + frame.getAzimuth()
+                + frame.getAzimuth();
+    }
+}
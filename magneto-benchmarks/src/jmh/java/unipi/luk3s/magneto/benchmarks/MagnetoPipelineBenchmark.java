@@ -0,0 +1,61 @@
+package unipi.luk3s.magneto.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import unipi.luk3s.magneto.MagnetoMetrics;
+import unipi.luk3s.magneto.MagnetoPipeline;
+
+/**
+ * <p>Cost of the whole per-sample hot path of the library (filtering, rounding, high-pass) with
+ * no listener attached, with and without {@link MagnetoMetrics}.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MagnetoPipelineBenchmark
+{
+    private float[][] samples;
+    private MagnetoPipeline pipeline;
+    private MagnetoPipeline measuredPipeline;
+    private long timestamp;
+    private int next;
+
+    @Setup
+    public void setUp()
+    {
+        samples = Samples.magneticField(42);
+        pipeline = new MagnetoPipeline();
+        measuredPipeline = new MagnetoPipeline();
+        measuredPipeline.setMetrics(new MagnetoMetrics());
+    }
+
+    @Benchmark
+    public float process()
+    {
+        float[] sample = samples[next++ & Samples.MASK];
+        pipeline.process(timestamp += 20000000L, sample[0], sample[1], sample[2]);
+        return pipeline.getLastHighPassReadings()[0];
+    }
+
+    @Benchmark
+    public float processWithMetrics()
+    {
+        float[] sample = samples[next++ & Samples.MASK];
+        measuredPipeline.process(timestamp += 20000000L, sample[0], sample[1], sample[2]);
+        return measuredPipeline.getLastHighPassReadings()[0];
+    }
+}
@@ -0,0 +1,67 @@
+package unipi.luk3s.magneto.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import unipi.luk3s.magneto.MagnetoUtils;
+
+/**
+ * <p>The math every helper performs on every sample: norms, azimuth and rounding.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MagnetoUtilsBenchmark
+{
+    private float[][] samples;
+    private int next;
+
+    @Setup
+    public void setUp()
+    {
+        samples = Samples.magneticField(42);
+    }
+
+    @Benchmark
+    public float computeNorm()
+    {
+        return MagnetoUtils.computeNorm(samples[next++ & Samples.MASK]);
+    }
+
+    @Benchmark
+    public float computeRoundedNorm()
+    {
+        return MagnetoUtils.computeRoundedNorm(samples[next++ & Samples.MASK]);
+    }
+
+    @Benchmark
+    public float computeAzimuth()
+    {
+        return MagnetoUtils.computeAzimuth(samples[next++ & Samples.MASK]);
+    }
+
+    @Benchmark
+    public float round()
+    {
+        return MagnetoUtils.round(samples[next++ & Samples.MASK][0]);
+    }
+
+    @Benchmark
+    public float roundFast()
+    {
+        return MagnetoUtils.roundFast(samples[next++ & Samples.MASK][0]);
+    }
+}
@@ -0,0 +1,86 @@
+package unipi.luk3s.magneto.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import unipi.luk3s.magneto.PositionHelper;
+
+/**
+ * <p>Matching the current magnetic field against the stored positions, as a magnetic keypad
+ * would do on every sample. Positions are laid out on a grid (5 µT apart along every axis) so
+ * that no two of them overlap with the default threshold.</p>
+ *
+ * <p>{@link #matchStoredPosition()} queries a random stored position, while
+ * {@link #matchNoPosition()} queries a field far from all of them (the worst case for a
+ * linear scan).</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PositionHelperBenchmark
+{
+    private static final float GRID_STEP = 5f;
+    private static final float THRESHOLD = 2f;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int storedPositions;
+
+    private FixedReadingsSource source;
+    private PositionHelper helper;
+    private float[][] queries;
+    private int next;
+
+    @Setup
+    public void setUp()
+    {
+        source = new FixedReadingsSource();
+        helper = new PositionHelper(source, storedPositions, THRESHOLD);
+
+        int side = (int) Math.ceil(Math.cbrt(storedPositions));
+        float[][] stored = new float[storedPositions][];
+        for (int i = 0; i < storedPositions; i++)
+        {
+            stored[i] = new float[]{
+                    (i % side) * GRID_STEP,
+                    ((i / side) % side) * GRID_STEP,
+                    (i / (side * side)) * GRID_STEP};
+            source.setRoundedReadings(stored[i][0], stored[i][1], stored[i][2]);
+            helper.storeCurrentlySensedMagneticField();
+        }
+
+        Random random = new Random(42);
+        queries = new float[Samples.COUNT][];
+        for (int i = 0; i < Samples.COUNT; i++)
+            queries[i] = stored[random.nextInt(storedPositions)];
+    }
+
+    @Benchmark
+    public boolean matchStoredPosition()
+    {
+        float[] query = queries[next++ & Samples.MASK];
+        source.setRoundedReadings(query[0] + 0.5f, query[1] - 0.5f, query[2] + 0.5f);
+        return helper.doesCurrentlySensedMagneticFieldMatchAStoredOne();
+    }
+
+    @Benchmark
+    public boolean matchNoPosition()
+    {
+        source.setRoundedReadings(-1000f, -1000f, -1000f);
+        return helper.doesCurrentlySensedMagneticFieldMatchAStoredOne();
+    }
+}
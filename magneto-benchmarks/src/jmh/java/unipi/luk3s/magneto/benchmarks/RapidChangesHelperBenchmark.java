@@ -0,0 +1,61 @@
+package unipi.luk3s.magneto.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import unipi.luk3s.magneto.RapidChangesHelper;
+
+/**
+ * <p>Tap detection on a stream of high-pass filtered values in which roughly one sample out of
+ * sixteen is a tap.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RapidChangesHelperBenchmark
+{
+    private float[][] highPassSamples;
+    private FixedReadingsSource source;
+    private RapidChangesHelper helper;
+    private int next;
+
+    @Setup
+    public void setUp()
+    {
+        // The Earth's magnetic field is removed by the high-pass filter
+        highPassSamples = Samples.magneticField(42);
+        for (float[] sample : highPassSamples)
+        {
+            sample[0] -= 20f;
+            sample[1] += 15f;
+            sample[2] += 42f;
+        }
+
+        source = new FixedReadingsSource();
+        helper = new RapidChangesHelper(source);
+        helper.setLowThreshold(5);
+        helper.setHighThreshold(30);
+        helper.endInit();
+    }
+
+    @Benchmark
+    public boolean hasATapBeenDetected()
+    {
+        float[] sample = highPassSamples[next++ & Samples.MASK];
+        source.setHighPassReadings(sample[0], sample[1], sample[2]);
+        return helper.hasATapBeenDetected();
+    }
+}
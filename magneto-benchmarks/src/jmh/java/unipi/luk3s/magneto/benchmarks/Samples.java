@@ -0,0 +1,36 @@
+package unipi.luk3s.magneto.benchmarks;
+
+import java.util.Random;
+
+/**
+ * <p>Pseudo-random magnetic field samples shared by the benchmarks. A fixed seed keeps the runs
+ * comparable, the size is a power of two so the next sample index can be computed with a
+ * mask.</p>
+ */
+final class Samples
+{
+    static final int COUNT = 1024;
+    static final int MASK = COUNT - 1;
+
+    /** Private constructor in order to prevent instantiation */
+    private Samples(){}
+
+    /**
+     * @return {@link #COUNT} samples of the magnetic field along x, y, and z. The values are
+     *          those of the Earth's magnetic field (roughly 50 µT) plus noise and the occasional
+     *          magnet nearby.
+     */
+    static float[][] magneticField(long seed)
+    {
+        Random random = new Random(seed);
+        float[][] samples = new float[COUNT][3];
+        for (int i = 0; i < COUNT; i++)
+        {
+            float magnet = (random.nextInt(16) == 0) ? 200f * random.nextFloat() : 0f;
+            samples[i][0] = 20f + magnet + (float) random.nextGaussian();
+            samples[i][1] = -15f + (float) random.nextGaussian();
+            samples[i][2] = -42f + magnet / 2 + (float) random.nextGaussian();
+        }
+        return samples;
+    }
+}
@@ -0,0 +1,48 @@
+package unipi.luk3s.magneto.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import unipi.luk3s.magneto.SimpleMovingAverage;
+
+/**
+ * <p>Cost of feeding one sample to the low-pass filter, i.e. the work done by the library for
+ * every sensor event before any helper is queried.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SimpleMovingAverageBenchmark
+{
+    private float[][] samples;
+    private SimpleMovingAverage sma;
+    private int next;
+
+    @Setup
+    public void setUp()
+    {
+        samples = Samples.magneticField(42);
+        sma = new SimpleMovingAverage();
+    }
+
+    @Benchmark
+    public float updateSMA()
+    {
+        float[] sample = samples[next++ & Samples.MASK];
+        sma.updateSMA(sample[0], sample[1], sample[2]);
+        return sma.getX();
+    }
+}
@@ -0,0 +1,143 @@
+package unipi.luk3s.magneto;
+
+/**
+ * <p>A SMA (Simple moving average) whose running sums are updated with the Kahan compensated
+ * summation algorithm. For details see:
+ * <a href="http://en.wikipedia.org/wiki/Kahan_summation_algorithm">
+ *     http://en.wikipedia.org/wiki/Kahan_summation_algorithm</a>.</p>
+ *
+ * <p>The result is the same of a {@link SimpleMovingAverage} with the same window, but the
+ * rounding error of every update is carried over to the next one instead of being lost. It is
+ * meant for large windows, where the incremental sum has a magnitude much bigger than the values
+ * added and removed.</p>
+ *
+ * <p>As in {@link SimpleMovingAverage}, a single circular buffer interleaved by axis
+ * (x0, y0, z0, x1, y1, z1, ...) keeps track of the values in the window.</p>
+ */
+public class CompensatedMovingAverage implements MagneticFilter
+{
+    private final float [] circularBuffer;
+    private final float [] sum3D;
+    private final float [] compensation3D;
+    private final float [] average3D;
+    private final int smaWindow;
+    private int indexOfTheOldestElement;
+    private boolean isBufferEmpty;
+
+    // Use these indexes to access the right axis
+    private static final int x = 0;
+    private static final int y = 1;
+    private static final int z = 2;
+
+    /**
+     * @param smaWindow the number of samples the average is computed on
+     * @throws IllegalArgumentException if the window is not positive
+     */
+    public CompensatedMovingAverage(int smaWindow)
+    {
+        if (smaWindow <= 0)
+            throw new IllegalArgumentException("The window must be positive: " + smaWindow);
+
+        this.smaWindow = smaWindow;
+        circularBuffer = new float[3 * smaWindow];
+        sum3D = new float[3];
+        compensation3D = new float[3];
+        average3D = new float[3];
+        isBufferEmpty = true;
+        indexOfTheOldestElement = 0;
+    }
+
+    @Override
+    public void update(float xMagneticField, float yMagneticField, float zMagneticField)
+    {
+        if (isBufferEmpty)
+        {
+            fillBufferWithValues(xMagneticField, yMagneticField, zMagneticField);
+            isBufferEmpty = false;
+            return;
+        }
+
+        int oldest = 3 * indexOfTheOldestElement;
+        updateSum(xMagneticField - circularBuffer[oldest + x], x);
+        updateSum(yMagneticField - circularBuffer[oldest + y], y);
+        updateSum(zMagneticField - circularBuffer[oldest + z], z);
+
+        circularBuffer[oldest + x] = xMagneticField;
+        circularBuffer[oldest + y] = yMagneticField;
+        circularBuffer[oldest + z] = zMagneticField;
+
+        indexOfTheOldestElement = (indexOfTheOldestElement + 1 >= smaWindow) ?
+                0 : indexOfTheOldestElement + 1;
+
+        average3D[x] = sum3D[x] / smaWindow;
+        average3D[y] = sum3D[y] / smaWindow;
+        average3D[z] = sum3D[z] / smaWindow;
+    }
+
+    /**
+     * <p>Kahan summation step: adds the difference between the new and the oldest value to the
+     * sum of an axis, keeping track of the low-order bits lost in the operation.</p>
+     */
+    private void updateSum(float delta, int axis)
+    {
+        float correctedDelta = delta - compensation3D[axis];
+        float newSum = sum3D[axis] + correctedDelta;
+        compensation3D[axis] = (newSum - sum3D[axis]) - correctedDelta;
+        sum3D[axis] = newSum;
+    }
+
+    private void fillBufferWithValues(float xVal, float yVal, float zVal)
+    {
+        for (int i = 0; i < circularBuffer.length; i += 3)
+        {
+            circularBuffer[i + x] = xVal;
+            circularBuffer[i + y] = yVal;
+            circularBuffer[i + z] = zVal;
+        }
+
+        sum3D[x] = xVal * smaWindow;
+        sum3D[y] = yVal * smaWindow;
+        sum3D[z] = zVal * smaWindow;
+        compensation3D[x] = compensation3D[y] = compensation3D[z] = 0;
+
+        average3D[x] = xVal;
+        average3D[y] = yVal;
+        average3D[z] = zVal;
+    }
+
+    @Override
+    public float[] getValues()
+    {
+        return average3D;
+    }
+
+    @Override
+    public float getX()
+    {
+        return average3D[x];
+    }
+
+    @Override
+    public float getY()
+    {
+        return average3D[y];
+    }
+
+    @Override
+    public float getZ()
+    {
+        return average3D[z];
+    }
+
+    public int getWindow()
+    {
+        return smaWindow;
+    }
+
+    @Override
+    public void reset()
+    {
+        isBufferEmpty = true;
+        indexOfTheOldestElement = 0;
+    }
+}
@@ -0,0 +1,132 @@
+package unipi.luk3s.magneto;
+
+/**
+ * <p>An EMA (Exponential moving average) implementation to compute the low-pass filter values of
+ * the magnetic field along the three axes. For details about the algorithm used see:
+ * <a href="http://en.wikipedia.org/wiki/Moving_average">
+ *     http://en.wikipedia.org/wiki/Moving_average</a>.</p>
+ *
+ * <p>Every new sample moves the average towards it by a fraction (the smoothing factor) of
+ * their difference. Compared to a {@link SimpleMovingAverage} it needs no buffer and reacts faster
+ * to changes, at the cost of a less smooth output. A smoothing factor of <i>2/(N+1)</i> gives the
+ * same centre of mass of a SMA with window <i>N</i>.</p>
+ */
+public class ExponentialMovingAverage implements MagneticFilter
+{
+    private final float [] average3D;
+    private final float smoothingFactor;
+    private boolean isEmpty;
+
+    // Use these indexes to access the right axis
+    private static final int x = 0;
+    private static final int y = 1;
+    private static final int z = 2;
+
+    /**
+     * @param smoothingFactor the weight of a new sample, in the range (0,1]. The higher the
+     *                        value, the faster the filter follows the raw values.
+     * @throws IllegalArgumentException if the smoothing factor is out of range
+     */
+    public ExponentialMovingAverage(float smoothingFactor)
+    {
+        if (!(smoothingFactor > 0 && smoothingFactor <= 1))
+            throw new IllegalArgumentException(
+                    "The smoothing factor must be in (0,1]: " + smoothingFactor);
+
+        this.smoothingFactor = smoothingFactor;
+        average3D = new float[3];
+        isEmpty = true;
+    }
+
+    @Override
+    public void update(float xMagneticField, float yMagneticField, float zMagneticField)
+    {
+        if (isEmpty)
+        {
+            average3D[x] = xMagneticField;
+            average3D[y] = yMagneticField;
+            average3D[z] = zMagneticField;
+            isEmpty = false;
+            return;
+        }
+
+        average3D[x] += smoothingFactor * (xMagneticField - average3D[x]);
+        average3D[y] += smoothingFactor * (yMagneticField - average3D[y]);
+        average3D[z] += smoothingFactor * (zMagneticField - average3D[z]);
+    }
+
+    /**
+     * <p>Filters {@code n} samples at once, with the same layout and the same results of
+     * {@link SimpleMovingAverage#process(float[], float[], float[], int, float[], float[])}.</p>
+     *
+     * @param outLow where the low-pass filtered values are written, at least 3*n long
+     * @param outHigh where the high-pass filtered values (raw minus low-pass) are written, at
+     *                least 3*n long, or {@code null} if they are not needed
+     */
+    public void process(float[] xs, float[] ys, float[] zs, int n, float[] outLow, float[] outHigh)
+    {
+        if (n <= 0)
+            return;
+
+        // Starting from the first sample, its update leaves the average unchanged
+        if (isEmpty)
+        {
+            average3D[x] = xs[0];
+            average3D[y] = ys[0];
+            average3D[z] = zs[0];
+            isEmpty = false;
+        }
+
+        average3D[x] = averageAxis(xs, average3D[x], n, outLow, 0);
+        average3D[y] = averageAxis(ys, average3D[y], n, outLow, n);
+        average3D[z] = averageAxis(zs, average3D[z], n, outLow, 2 * n);
+
+        if (outHigh != null)
+            MagneticFilters.highPass(xs, ys, zs, n, outLow, outHigh);
+    }
+
+    private float averageAxis(float[] values, float average, int n, float[] out, int offset)
+    {
+        for (int i = 0; i < n; i++)
+        {
+            average += smoothingFactor * (values[i] - average);
+            out[offset + i] = average;
+        }
+        return average;
+    }
+
+    @Override
+    public float[] getValues()
+    {
+        return average3D;
+    }
+
+    @Override
+    public float getX()
+    {
+        return average3D[x];
+    }
+
+    @Override
+    public float getY()
+    {
+        return average3D[y];
+    }
+
+    @Override
+    public float getZ()
+    {
+        return average3D[z];
+    }
+
+    public float getSmoothingFactor()
+    {
+        return smoothingFactor;
+    }
+
+    @Override
+    public void reset()
+    {
+        isEmpty = true;
+    }
+}
@@ -1,6 +1,6 @@
 package unipi.luk3s.magneto;
 
-import static unipi.luk3s.magneto.MagnetoUtils.computeRoundedNorm;
+import java.util.Arrays;
 
 /**
  * <p>To be used together with {@link MagnetoFragment}.
@@ -16,7 +16,21 @@ import static unipi.luk3s.magneto.MagnetoUtils.computeRoundedNorm;
  * <p>Only after the initialisation is over (i.e. all the magnitudes have been stored), the
  * activity should query the helper by calling {@link #doesCurrentlySensedMagnitudeMatchAStoredOne()}.
  * If a match if found, i.e. the previous method returns true, it is possible to retrieve the
- * AID by calling {@link #getLastMatchedMagnitudeIndex()} </p>
+ * AID by calling {@link #getLastMatchedMagnitudeIndex()}. If the sensed magnitude is within the
+ * threshold of more stored ones, the closest one is chosen.</p>
+ *
+ * <p>Instead of polling, set an {@link IdentificationListener} with
+ * {@link #setIdentificationListener(IdentificationListener)}.</p>
+ *
+ * <p>Magnets can also be changed at runtime: {@link #addCurrentlySensedMagnitude()} stores a new
+ * one even after the initialisation, {@link #replaceStoredMagnitude(int)} stores the current
+ * magnitude in place of a stored one, keeping its AID, and {@link #removeStoredMagnitude(int)}
+ * forgets one. AIDs are stable: they are assigned in increasing order and never reused, so
+ * removing a magnet does not change the AIDs of the others.</p>
+ *
+ * <p>The stored magnitudes are kept sorted, together with their AIDs, in arrays without gaps
+ * which double their capacity when full, so that a query is a binary search: catalogues of
+ * thousands of magnets can be identified at every sample.</p>
  *
  * <p>For more information read Section 4.5.1 of
  * <a href="http://etd.adm.unipi.it/theses/available/etd-11152015-012617/">
@@ -31,58 +45,248 @@ public class IdentificationHelper
             "unipi.luk3s.magneto.IdentificationHelper.Threshold";
 
     private float threshold;
-    private float[] storedMagnitudes;
+    // The first storedMagnitudeCount slots hold the stored magnitudes in ascending order (ascending
+    // AID for equal magnitudes), with their AIDs
+    private float[] sortedMagnitudes;
+    private int[] sortedAids;
+    private int storedMagnitudeCount;
+    private final int numberOfMagnets;
     private int lastMatchedMagnitudeIndex;
     private int lastStoredMagnitudeIndex;
-    private final MagnetoFragment magneto;
+    private final MagneticReadingsSource magneto;
+    private IdentificationListener identificationListener;
+    // The AID of the magnet identified according to the listener, -1 if none
+    private int currentMagnet;
+    private final MagnetoPipeline.SampleListener sampleListener =
+            new MagnetoPipeline.SampleListener()
+    {
+        @Override
+        public void onSampleProcessed(MagnetoPipeline pipeline)
+        {
+            IdentificationListener listener = identificationListener;
+            if (listener == null || !hasInitEnded())
+                return;
 
-    public IdentificationHelper(MagnetoFragment magneto, int numberOfMagnets, float threshold)
+            int magnet = doesCurrentlySensedMagnitudeMatchAStoredOne() ?
+                    lastMatchedMagnitudeIndex : -1;
+            if (magnet == currentMagnet)
+                return;
+
+            int previousMagnet = currentMagnet;
+            currentMagnet = magnet;
+            if (previousMagnet >= 0)
+                listener.onMagnetLost(IdentificationHelper.this, previousMagnet);
+            if (magnet >= 0)
+                listener.onMagnetIdentified(IdentificationHelper.this, magnet);
+        }
+    };
+
+    /**
+     * @param magneto a {@link MagnetoFragment}, or any other {@link MagneticReadingsSource}
+     */
+    public IdentificationHelper(MagneticReadingsSource magneto, int numberOfMagnets, float threshold)
     {
-        storedMagnitudes = new float[numberOfMagnets];
+        int capacity = Math.max(numberOfMagnets, 1);
+        sortedMagnitudes = new float[capacity];
+        sortedAids = new int[capacity];
+        this.numberOfMagnets = numberOfMagnets;
         this.threshold = threshold;
         this.magneto = magneto;
         lastMatchedMagnitudeIndex = -1;
         lastStoredMagnitudeIndex = -1;
+        currentMagnet = -1;
     }
 
     /**
      * <p>Note: if the specified number of magnitudes have already been stored, the method
-     * returns the value -1 (it means there is no more space to store new magnitudes)</p>
+     * returns the value -1 (it means the initialisation is over, use
+     * {@link #addCurrentlySensedMagnitude()} to store more)</p>
      */
     public int storeCurrentlySensedMagnitude()
     {
         if(hasInitEnded())
             return -1;
 
-        float magnitude = computeRoundedNorm(magneto.getLastRoundedReadings());
+        return addCurrentlySensedMagnitude();
+    }
 
-        lastStoredMagnitudeIndex++;
-        storedMagnitudes[lastStoredMagnitudeIndex] = magnitude;
+    /**
+     * <p>Stores the currently sensed magnitude as a new magnet, whether the initialisation is
+     * over or not.</p>
+     *
+     * @return the AID of the new magnet
+     */
+    public int addCurrentlySensedMagnitude()
+    {
+        if (storedMagnitudeCount == sortedAids.length)
+        {
+            sortedMagnitudes = Arrays.copyOf(sortedMagnitudes, 2 * sortedAids.length);
+            sortedAids = Arrays.copyOf(sortedAids, 2 * sortedAids.length);
+        }
 
+        lastStoredMagnitudeIndex++;
+        insert(magneto.getLastFrame().getRoundedNorm(), lastStoredMagnitudeIndex);
         return lastStoredMagnitudeIndex;
     }
 
+    /**
+     * <p>Stores the currently sensed magnitude in place of the one with the given AID.</p>
+     *
+     * @return false if there is no stored magnitude with that AID
+     */
+    public boolean replaceStoredMagnitude(int aid)
+    {
+        if (!removeStoredMagnitude(aid))
+            return false;
+
+        insert(magneto.getLastFrame().getRoundedNorm(), aid);
+        return true;
+    }
+
+    /**
+     * <p>Forgets the stored magnitude with the given AID. The AIDs of the other ones do not
+     * change, and the removed AID is not assigned again.</p>
+     *
+     * @return false if there is no stored magnitude with that AID
+     */
+    public boolean removeStoredMagnitude(int aid)
+    {
+        for (int slot = 0; slot < storedMagnitudeCount; slot++)
+        {
+            if (sortedAids[slot] == aid)
+            {
+                int following = storedMagnitudeCount - slot - 1;
+                System.arraycopy(sortedMagnitudes, slot + 1, sortedMagnitudes, slot, following);
+                System.arraycopy(sortedAids, slot + 1, sortedAids, slot, following);
+                storedMagnitudeCount--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The number of magnitudes currently stored */
+    public int getNumberOfStoredMagnitudes()
+    {
+        return storedMagnitudeCount;
+    }
+
+    /**
+     * <p>The initialisation is over once the number of magnets specified in the constructor
+     * have been stored (even if some of them have been removed afterwards).</p>
+     */
     public boolean hasInitEnded()
     {
-        return (lastStoredMagnitudeIndex == storedMagnitudes.length-1);
+        return (lastStoredMagnitudeIndex >= numberOfMagnets-1);
     }
 
+    /**
+     * <p>A stored magnitude matches the current one if the latter is in the closed interval
+     * [stored-threshold, stored+threshold]. Among the matching ones the closest is chosen (the
+     * one with the lowest AID if two are equally close).</p>
+     */
     public boolean doesCurrentlySensedMagnitudeMatchAStoredOne()
     {
-        float magnitude = computeRoundedNorm(magneto.getLastRoundedReadings());
+        float magnitude = magneto.getLastFrame().getRoundedNorm();
 
-        for(int i=0; i<storedMagnitudes.length; i++)
+        // The closest stored magnitudes are the first one greater than or equal to the current
+        // one and the first one of the run of equal magnitudes just below it. Within a run of
+        // equal magnitudes the AIDs are ascending, so both have the lowest AID of their run.
+        int above = lowerBound(magnitude);
+        int below = (above > 0) ? lowerBound(sortedMagnitudes[above - 1]) : -1;
+        if (above == storedMagnitudeCount)
+            above = -1;
+
+        int first = above, second = below;
+        if (below >= 0 && above >= 0)
         {
-            if( magnitude>=(storedMagnitudes[i]-threshold)
-                    && magnitude<=(storedMagnitudes[i]+threshold) )
+            float belowDistance = magnitude - sortedMagnitudes[below];
+            float aboveDistance = sortedMagnitudes[above] - magnitude;
+            if (belowDistance < aboveDistance
+                    || (belowDistance == aboveDistance && sortedAids[below] < sortedAids[above]))
             {
-                lastMatchedMagnitudeIndex = i;
-                return true;
+                first = below;
+                second = above;
             }
         }
+
+        if (first >= 0 && matches(magnitude, first))
+            return setLastMatch(first);
+        if (second >= 0 && matches(magnitude, second))
+            return setLastMatch(second);
         return false;
     }
 
+    private boolean matches(float magnitude, int sortedIndex)
+    {
+        return magnitude>=(sortedMagnitudes[sortedIndex]-threshold)
+                && magnitude<=(sortedMagnitudes[sortedIndex]+threshold);
+    }
+
+    private boolean setLastMatch(int sortedIndex)
+    {
+        lastMatchedMagnitudeIndex = sortedAids[sortedIndex];
+        return true;
+    }
+
+    /** The index of the first stored magnitude greater than or equal to the given one */
+    private int lowerBound(float magnitude)
+    {
+        int low = 0, high = storedMagnitudeCount;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (sortedMagnitudes[mid] < magnitude)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * <p>Inserts a magnitude keeping the slots sorted, there must be room for it.</p>
+     */
+    private void insert(float magnitude, int aid)
+    {
+        // The first slot with a greater magnitude, or an equal one with a greater AID
+        int low = 0, high = storedMagnitudeCount;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (sortedMagnitudes[mid] < magnitude
+                    || (sortedMagnitudes[mid] == magnitude && sortedAids[mid] < aid))
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        int following = storedMagnitudeCount - low;
+        System.arraycopy(sortedMagnitudes, low, sortedMagnitudes, low + 1, following);
+        System.arraycopy(sortedAids, low, sortedAids, low + 1, following);
+        sortedMagnitudes[low] = magnitude;
+        sortedAids[low] = aid;
+        storedMagnitudeCount++;
+    }
+
+    /**
+     * <p>Sets the listener notified when a magnet is identified or lost, or removes it if
+     * {@code null}. While a listener is set the helper is registered as a
+     * {@link MagnetoPipeline.SampleListener} of its {@link MagneticReadingsSource}.</p>
+     */
+    public void setIdentificationListener(IdentificationListener listener)
+    {
+        if (identificationListener == null && listener != null)
+        {
+            currentMagnet = -1;
+            magneto.addSampleListener(sampleListener);
+        }
+        else if (identificationListener != null && listener == null)
+            magneto.removeSampleListener(sampleListener);
+
+        identificationListener = listener;
+    }
+
     public int getLastMatchedMagnitudeIndex()
     {
         return lastMatchedMagnitudeIndex;
@@ -97,4 +301,17 @@ public class IdentificationHelper
     {
         return threshold;
     }
+
+    /**
+     * <p>Used for receiving the magnets identified, see
+     * {@link #setIdentificationListener(IdentificationListener)}. When a magnet is replaced
+     * directly by another one, the loss of the first is notified before the identification of
+     * the second.</p>
+     */
+    public interface IdentificationListener
+    {
+        void onMagnetIdentified(IdentificationHelper helper, int aid);
+
+        void onMagnetLost(IdentificationHelper helper, int aid);
+    }
 }
@@ -0,0 +1,207 @@
+package unipi.luk3s.magneto;
+
+/**
+ * <p>A k-d tree over points in 3D space (magnetic fields along x, y, z), used by
+ * {@link PositionHelper} to find the stored magnetic field nearest to the sensed one without
+ * comparing it with all of them. For details about the data structure see:
+ * <a href="http://en.wikipedia.org/wiki/K-d_tree">http://en.wikipedia.org/wiki/K-d_tree</a>.</p>
+ *
+ * <p>The tree is implicit: the points are reordered so that the median of every range is its
+ * root, and the two halves are its subtrees; the splitting axis cycles through x, y, z with the
+ * depth. The coordinates are copied in tree order in three flat arrays (structure of arrays),
+ * which are reused when the tree is built again with no more points than before.</p>
+ */
+final class KdTree3
+{
+    private static final int x = 0;
+    private static final int y = 1;
+    private static final int z = 2;
+
+    // indexes[i] is the position in the source arrays of the i-th point in tree order
+    private int[] indexes;
+    private float[] nodeX;
+    private float[] nodeY;
+    private float[] nodeZ;
+    private int size;
+
+    // State of the query in progress
+    private float queryX, queryY, queryZ;
+    private float lowX, highX, lowY, highY, lowZ, highZ;
+    private int bestIndex;
+    private float bestDistance;
+
+    KdTree3()
+    {
+        indexes = new int[0];
+        nodeX = nodeY = nodeZ = new float[0];
+    }
+
+    /**
+     * <p>(Re)builds the tree over the first {@code count} points of the arrays, in
+     * O(count log count) time.</p>
+     */
+    void build(float[] xs, float[] ys, float[] zs, int count)
+    {
+        if (indexes.length < count)
+        {
+            indexes = new int[count];
+            nodeX = new float[count];
+            nodeY = new float[count];
+            nodeZ = new float[count];
+        }
+        size = count;
+
+        for (int i = 0; i < count; i++)
+            indexes[i] = i;
+
+        build(xs, ys, zs, 0, count, x);
+
+        for (int i = 0; i < count; i++)
+        {
+            nodeX[i] = xs[indexes[i]];
+            nodeY[i] = ys[indexes[i]];
+            nodeZ[i] = zs[indexes[i]];
+        }
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * <p>Looks for the point nearest (euclidean distance) to the query point among the ones
+     * strictly inside the box centred on it, i.e. the points p such that
+     * {@code p > q - threshold && p < q + threshold} along each axis.</p>
+     *
+     * @return the position of the point in the arrays the tree was built on, or -1 if no point
+     *          is inside the box. If more points are at the same distance, the one with the
+     *          lowest position is returned.
+     */
+    int nearestWithin(float qx, float qy, float qz, float threshold)
+    {
+        queryX = qx;
+        queryY = qy;
+        queryZ = qz;
+        lowX = qx - threshold;
+        highX = qx + threshold;
+        lowY = qy - threshold;
+        highY = qy + threshold;
+        lowZ = qz - threshold;
+        highZ = qz + threshold;
+        bestIndex = -1;
+        bestDistance = Float.POSITIVE_INFINITY;
+
+        search(0, size, x);
+        return bestIndex;
+    }
+
+    private void search(int from, int to, int axis)
+    {
+        if (from >= to)
+            return;
+
+        int mid = (from + to) >>> 1;
+        float px = nodeX[mid];
+        float py = nodeY[mid];
+        float pz = nodeZ[mid];
+
+        if (px > lowX && px < highX && py > lowY && py < highY && pz > lowZ && pz < highZ)
+        {
+            float dx = px - queryX;
+            float dy = py - queryY;
+            float dz = pz - queryZ;
+            float distance = dx*dx + dy*dy + dz*dz;
+            if (distance < bestDistance || (distance == bestDistance && indexes[mid] < bestIndex))
+            {
+                bestDistance = distance;
+                bestIndex = indexes[mid];
+            }
+        }
+
+        float split, low, high, query;
+        switch (axis)
+        {
+            case x:
+                split = px; low = lowX; high = highX; query = queryX;
+                break;
+            case y:
+                split = py; low = lowY; high = highY; query = queryY;
+                break;
+            default:
+                split = pz; low = lowZ; high = highZ; query = queryZ;
+                break;
+        }
+
+        int nextAxis = (axis == z) ? x : axis + 1;
+        float diff = query - split;
+        // The left subtree only has coordinates <= split, the right one only >= split
+        if (diff <= 0)
+        {
+            if (low < split)
+                search(from, mid, nextAxis);
+            if (high > split && diff*diff <= bestDistance)
+                search(mid + 1, to, nextAxis);
+        }
+        else
+        {
+            if (high > split)
+                search(mid + 1, to, nextAxis);
+            if (low < split && diff*diff <= bestDistance)
+                search(from, mid, nextAxis);
+        }
+    }
+
+    private void build(float[] xs, float[] ys, float[] zs, int from, int to, int axis)
+    {
+        if (to - from <= 1)
+            return;
+
+        float[] keys = (axis == x) ? xs : (axis == y) ? ys : zs;
+        int mid = (from + to) >>> 1;
+        select(keys, from, to - 1, mid);
+
+        int nextAxis = (axis == z) ? x : axis + 1;
+        build(xs, ys, zs, from, mid, nextAxis);
+        build(xs, ys, zs, mid + 1, to, nextAxis);
+    }
+
+    /**
+     * <p>Quickselect with a three-way partition (stored magnetic fields often share the same
+     * coordinates): reorders indexes[left..right] so that the k-th one is in its sorted position,
+     * all the previous ones have keys less than or equal to it and all the following ones have
+     * keys greater than or equal to it.</p>
+     */
+    private void select(float[] keys, int left, int right, int k)
+    {
+        while (left < right)
+        {
+            float pivot = keys[indexes[(left + right) >>> 1]];
+            int lessThan = left, i = left, greaterThan = right;
+            while (i <= greaterThan)
+            {
+                float key = keys[indexes[i]];
+                if (key < pivot)
+                    swap(lessThan++, i++);
+                else if (key > pivot)
+                    swap(i, greaterThan--);
+                else
+                    i++;
+            }
+
+            if (k < lessThan)
+                right = lessThan - 1;
+            else if (k > greaterThan)
+                left = greaterThan + 1;
+            else
+                return;
+        }
+    }
+
+    private void swap(int i, int j)
+    {
+        int tmp = indexes[i];
+        indexes[i] = indexes[j];
+        indexes[j] = tmp;
+    }
+}
@@ -0,0 +1,133 @@
+package unipi.luk3s.magneto;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A histogram of durations in nanoseconds with a bounded relative error, in the style of
+ * HdrHistogram: the values below 64 are counted exactly, and every power of two above is split
+ * in 32 buckets of the same width, so the percentiles are
+ * within about 3% of the actual values from nanoseconds to minutes, in fewer than 1200
+ * counters.</p>
+ *
+ * <p>Recording a value does not allocate and takes a few nanoseconds. The histogram has a single
+ * writer: {@link #record(long)} must always be called by the same thread, while any thread can
+ * read it. The counters are updated with ordered stores, so the readers never see a stale count
+ * for long, but the statistics can be slightly inconsistent with each other while values are
+ * being recorded.</p>
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int EXACT_VALUES = 2 * SUB_BUCKETS;
+    /** Values from 2^40 ns (about 18 minutes) on are all counted in the last bucket */
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private static final int TOTAL_COUNT = BUCKETS;
+    private static final int TOTAL_SUM = BUCKETS + 1;
+    private static final int MAX_VALUE = BUCKETS + 2;
+
+    private final AtomicLongArray counts;
+
+    public LatencyHistogram()
+    {
+        counts = new AtomicLongArray(BUCKETS + 3);
+    }
+
+    /**
+     * <p>Counts a value. Negative values are ignored.</p>
+     */
+    public void record(long nanos)
+    {
+        if (nanos < 0)
+            return;
+
+        int index = indexOf(nanos);
+        counts.lazySet(index, counts.get(index) + 1);
+        counts.lazySet(TOTAL_COUNT, counts.get(TOTAL_COUNT) + 1);
+        counts.lazySet(TOTAL_SUM, counts.get(TOTAL_SUM) + nanos);
+        if (nanos > counts.get(MAX_VALUE))
+            counts.lazySet(MAX_VALUE, nanos);
+    }
+
+    /** The number of values recorded */
+    public long getCount()
+    {
+        return counts.get(TOTAL_COUNT);
+    }
+
+    /** The largest value recorded (exactly), 0 if none */
+    public long getMax()
+    {
+        return counts.get(MAX_VALUE);
+    }
+
+    /** The mean of the values recorded (exactly), 0 if none */
+    public double getMean()
+    {
+        long count = getCount();
+        return (count == 0) ? 0 : (double) counts.get(TOTAL_SUM) / count;
+    }
+
+    /**
+     * @param percentile in the range [0,100]
+     * @return the value below or equal to which the given percentage of the values recorded
+     *          fall, rounded up to the largest value of its bucket (but never above the maximum),
+     *          0 if no value has been recorded
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long count = getCount();
+        if (count == 0)
+            return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(lowestValueOf(i + 1) - 1, getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * <p>Clears the histogram. Values recorded meanwhile by another thread may be lost.</p>
+     */
+    public void reset()
+    {
+        for (int i = 0; i < counts.length(); i++)
+            counts.lazySet(i, 0);
+    }
+
+    /** Copies the current counts in the given histogram, which must not be recorded into */
+    public void copyInto(LatencyHistogram destination)
+    {
+        for (int i = 0; i < counts.length(); i++)
+            destination.counts.lazySet(i, counts.get(i));
+    }
+
+    static int indexOf(long nanos)
+    {
+        if (nanos < EXACT_VALUES)
+            return (int) nanos;
+        if (nanos >= 1L << MAX_EXPONENT)
+            return BUCKETS - 1;
+
+        // The SUB_BUCKET_BITS + 1 most significant bits select the bucket
+        int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (nanos >>> shift);
+    }
+
+    /** The smallest value counted in the bucket with the given index */
+    static long lowestValueOf(int index)
+    {
+        if (index < EXACT_VALUES)
+            return index;
+
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        return (long) ((index & (SUB_BUCKETS - 1)) + SUB_BUCKETS) << shift;
+    }
+}
@@ -1,7 +1,5 @@
 package unipi.luk3s.magneto;
 
-import static unipi.luk3s.magneto.MagnetoUtils.computeRoundedNorm;
-
 /**
  * <p>To be used together with {@link MagnetoFragment}.
  * Helps in identifying all the positions of a magnet moving along a straight line.</p>
@@ -16,11 +14,14 @@ import static unipi.luk3s.magneto.MagnetoUtils.computeRoundedNorm;
  */
 public class LinearMotionHelper
 {
-    private final MagnetoFragment magneto;
+    private final MagneticReadingsSource magneto;
     private float[] storedMagnitudes;
     private int lastStoredMagnitudeIndex;
 
-    public LinearMotionHelper(MagnetoFragment magneto)
+    /**
+     * @param magneto a {@link MagnetoFragment}, or any other {@link MagneticReadingsSource}
+     */
+    public LinearMotionHelper(MagneticReadingsSource magneto)
     {
         storedMagnitudes = new float[2];
         lastStoredMagnitudeIndex = -1;
@@ -33,8 +34,7 @@ public class LinearMotionHelper
             return;
 
         lastStoredMagnitudeIndex++;
-        storedMagnitudes[lastStoredMagnitudeIndex] =
-                computeRoundedNorm(magneto.getLastRoundedReadings());
+        storedMagnitudes[lastStoredMagnitudeIndex] = magneto.getLastFrame().getRoundedNorm();
 
         return;
     }
@@ -51,7 +51,7 @@ public class LinearMotionHelper
      */
     public float getMagnetPosition()
     {
-        float currentNorm = computeRoundedNorm(magneto.getLastRoundedReadings());
+        float currentNorm = magneto.getLastFrame().getRoundedNorm();
         float position = (currentNorm-storedMagnitudes[0])/(storedMagnitudes[1]-storedMagnitudes[0]);
         return Math.abs(position);
     }
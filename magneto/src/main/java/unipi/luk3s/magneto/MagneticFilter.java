@@ -0,0 +1,47 @@
+package unipi.luk3s.magneto;
+
+/**
+ * <p>A low-pass filter for the magnetic field along the three axes. Every time new values from
+ * the compass sensor are available, {@link #update(float, float, float)} has to be called; the
+ * filtered values can then be retrieved with {@link #getValues()}, {@link #getX()},
+ * {@link #getY()}, or {@link #getZ()}.</p>
+ *
+ * <p>The filters provided by the library can be created with
+ * {@link MagneticFilters#newFilter(int, float)} using one of the constants of this interface.</p>
+ *
+ * @see SimpleMovingAverage
+ * @see ExponentialMovingAverage
+ * @see CompensatedMovingAverage
+ * @see TimeConstantFilter
+ * @see TimestampedMagneticFilter
+ */
+public interface MagneticFilter
+{
+    /** {@link SimpleMovingAverage}, the parameter is the window */
+    int SIMPLE_MOVING_AVERAGE = 0;
+    /** {@link ExponentialMovingAverage}, the parameter is the smoothing factor */
+    int EXPONENTIAL_MOVING_AVERAGE = 1;
+    /** {@link CompensatedMovingAverage}, the parameter is the window */
+    int COMPENSATED_MOVING_AVERAGE = 2;
+    /** {@link TimeConstantFilter}, the parameter is the time constant in milliseconds */
+    int TIME_CONSTANT = 3;
+
+    /**
+     * @param xMagneticField the x coordinate of the magnetic field
+     * @param yMagneticField the y coordinate of the magnetic field
+     * @param zMagneticField the z coordinate of the magnetic field
+     */
+    void update(float xMagneticField, float yMagneticField, float zMagneticField);
+
+    /** The filtered values along the three axes. The array is reused by every update. */
+    float[] getValues();
+
+    float getX();
+
+    float getY();
+
+    float getZ();
+
+    /** Forget all the values received so far, the next update restarts the filter */
+    void reset();
+}
@@ -0,0 +1,100 @@
+package unipi.luk3s.magneto;
+
+/**
+ * <p>Factory of the {@link MagneticFilter}s provided by the library.</p>
+ */
+public final class MagneticFilters
+{
+    /** The window used by {@link MagnetoFragment} when none is specified */
+    public static final int DEFAULT_WINDOW = 10;
+    /** The smoothing factor equivalent (same centre of mass) to the default window */
+    public static final float DEFAULT_SMOOTHING_FACTOR = 2f / (DEFAULT_WINDOW + 1);
+    /**
+     * The time constant (in milliseconds) equivalent to the default smoothing factor at the
+     * rate of {@code SensorManager.SENSOR_DELAY_GAME} (50 Hz)
+     */
+    public static final float DEFAULT_TIME_CONSTANT_MILLIS = 100f;
+
+    /** Private constructor in order to prevent instantiation */
+    private MagneticFilters(){}
+
+    /**
+     * <p>Filters {@code n} samples at once, given as a structure of arrays, with the same results
+     * of calling {@link MagneticFilter#update(float, float, float)} for every sample. The values
+     * are written axis by axis: {@code out[i]}, {@code out[n + i]} and {@code out[2*n + i]} are
+     * the values along x, y and z of the i-th sample.</p>
+     *
+     * <p>{@link SimpleMovingAverage} and {@link ExponentialMovingAverage} have a dedicated bulk
+     * implementation (see
+     * {@link SimpleMovingAverage#process(float[], float[], float[], int, float[], float[])}),
+     * the other filters are updated sample by sample.</p>
+     *
+     * @param outLow where the low-pass filtered values are written, at least 3*n long
+     * @param outHigh where the high-pass filtered values (raw minus low-pass) are written, at
+     *                least 3*n long, or {@code null} if they are not needed
+     */
+    public static void process(MagneticFilter filter, float[] xs, float[] ys, float[] zs, int n,
+                               float[] outLow, float[] outHigh)
+    {
+        if (filter instanceof SimpleMovingAverage)
+        {
+            ((SimpleMovingAverage) filter).process(xs, ys, zs, n, outLow, outHigh);
+            return;
+        }
+        if (filter instanceof ExponentialMovingAverage)
+        {
+            ((ExponentialMovingAverage) filter).process(xs, ys, zs, n, outLow, outHigh);
+            return;
+        }
+
+        for (int i = 0; i < n; i++)
+        {
+            filter.update(xs[i], ys[i], zs[i]);
+            outLow[i] = filter.getX();
+            outLow[n + i] = filter.getY();
+            outLow[2 * n + i] = filter.getZ();
+        }
+        if (outHigh != null)
+            highPass(xs, ys, zs, n, outLow, outHigh);
+    }
+
+    /** outHigh = raw - outLow, axis by axis (straight loops, so they can be vectorized) */
+    static void highPass(float[] xs, float[] ys, float[] zs, int n, float[] outLow,
+                         float[] outHigh)
+    {
+        for (int i = 0; i < n; i++)
+            outHigh[i] = xs[i] - outLow[i];
+        for (int i = 0; i < n; i++)
+            outHigh[n + i] = ys[i] - outLow[n + i];
+        for (int i = 0; i < n; i++)
+            outHigh[2 * n + i] = zs[i] - outLow[2 * n + i];
+    }
+
+    /**
+     * @param filterType one of the constants defined in {@link MagneticFilter}
+     * @param parameter the window for the moving averages, the smoothing factor in (0,1] for
+     *                  the exponential one, the time constant in milliseconds for the time
+     *                  constant one. A value less than or equal to zero selects the default of
+     *                  the filter.
+     * @throws IllegalArgumentException if the filter type is unknown
+     */
+    public static MagneticFilter newFilter(int filterType, float parameter)
+    {
+        switch (filterType)
+        {
+            case MagneticFilter.SIMPLE_MOVING_AVERAGE:
+                return new SimpleMovingAverage(parameter > 0 ? (int) parameter : DEFAULT_WINDOW);
+            case MagneticFilter.EXPONENTIAL_MOVING_AVERAGE:
+                return new ExponentialMovingAverage(
+                        parameter > 0 ? parameter : DEFAULT_SMOOTHING_FACTOR);
+            case MagneticFilter.COMPENSATED_MOVING_AVERAGE:
+                return new CompensatedMovingAverage(
+                        parameter > 0 ? (int) parameter : DEFAULT_WINDOW);
+            case MagneticFilter.TIME_CONSTANT:
+                return new TimeConstantFilter(
+                        parameter > 0 ? parameter : DEFAULT_TIME_CONSTANT_MILLIS);
+            default:
+                throw new IllegalArgumentException("Unknown filter type: " + filterType);
+        }
+    }
+}
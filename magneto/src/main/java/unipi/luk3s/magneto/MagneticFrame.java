@@ -0,0 +1,113 @@
+package unipi.luk3s.magneto;
+
+import static unipi.luk3s.magneto.MagnetoUtils.computeAzimuth;
+import static unipi.luk3s.magneto.MagnetoUtils.computeNorm;
+import static unipi.luk3s.magneto.MagnetoUtils.round;
+
+/**
+ * <p>The features derived from the last sample processed by a {@link MagneticReadingsSource}:
+ * the euclidean norm and the azimuth of the low-pass filtered (rounded) magnetic field, and the
+ * euclidean norm of the high-pass filtered one.</p>
+ *
+ * <p>Every feature is computed the first time it is requested for a sample, and the result is
+ * reused by all the following requests for the same sample: when more helpers are built on the
+ * same source, each square root and arc tangent is computed at most once per sample instead of
+ * once per helper. The values are exactly the ones computed by the corresponding
+ * {@link MagnetoUtils} methods on {@link MagneticReadingsSource#getLastRoundedReadings()} and
+ * {@link MagneticReadingsSource#getLastHighPassReadings()}.</p>
+ *
+ * <p>A frame is reused for every sample, and it belongs to the thread processing the samples
+ * like the arrays it is computed from.</p>
+ */
+public class MagneticFrame
+{
+    private static final int NORM = 1;
+    private static final int ROUNDED_NORM = 1 << 1;
+    private static final int AZIMUTH = 1 << 2;
+    private static final int HIGH_PASS_NORM = 1 << 3;
+    private static final int ROUNDED_HIGH_PASS_NORM = 1 << 4;
+
+    private final float[] roundedReadings;
+    private final float[] highPassReadings;
+    // One bit per feature already computed for the current sample
+    private int computedFeatures;
+    private float norm;
+    private float roundedNorm;
+    private float azimuth;
+    private float highPassNorm;
+    private float roundedHighPassNorm;
+
+    /**
+     * @param roundedReadings the array where the source stores the low-pass filtered values
+     * @param highPassReadings the array where the source stores the high-pass filtered values
+     */
+    public MagneticFrame(float[] roundedReadings, float[] highPassReadings)
+    {
+        this.roundedReadings = roundedReadings;
+        this.highPassReadings = highPassReadings;
+    }
+
+    /**
+     * <p>Discards the features computed so far. It must be called by the source every time the
+     * readings change, before any helper queries them.</p>
+     */
+    public void invalidate()
+    {
+        computedFeatures = 0;
+    }
+
+    /** @see MagnetoUtils#computeNorm(float[]) */
+    public float getNorm()
+    {
+        if ((computedFeatures & NORM) == 0)
+        {
+            norm = computeNorm(roundedReadings);
+            computedFeatures |= NORM;
+        }
+        return norm;
+    }
+
+    /** @see MagnetoUtils#computeRoundedNorm(float[]) */
+    public float getRoundedNorm()
+    {
+        if ((computedFeatures & ROUNDED_NORM) == 0)
+        {
+            roundedNorm = round(getNorm());
+            computedFeatures |= ROUNDED_NORM;
+        }
+        return roundedNorm;
+    }
+
+    /** @see MagnetoUtils#computeAzimuth(float[]) */
+    public float getAzimuth()
+    {
+        if ((computedFeatures & AZIMUTH) == 0)
+        {
+            azimuth = computeAzimuth(roundedReadings);
+            computedFeatures |= AZIMUTH;
+        }
+        return azimuth;
+    }
+
+    /** The euclidean norm of the high-pass filtered magnetic field */
+    public float getHighPassNorm()
+    {
+        if ((computedFeatures & HIGH_PASS_NORM) == 0)
+        {
+            highPassNorm = computeNorm(highPassReadings);
+            computedFeatures |= HIGH_PASS_NORM;
+        }
+        return highPassNorm;
+    }
+
+    /** The euclidean norm of the high-pass filtered magnetic field, rounded to 2 decimal places */
+    public float getRoundedHighPassNorm()
+    {
+        if ((computedFeatures & ROUNDED_HIGH_PASS_NORM) == 0)
+        {
+            roundedHighPassNorm = round(getHighPassNorm());
+            computedFeatures |= ROUNDED_HIGH_PASS_NORM;
+        }
+        return roundedHighPassNorm;
+    }
+}
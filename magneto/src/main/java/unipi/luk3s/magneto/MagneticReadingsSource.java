@@ -0,0 +1,40 @@
+package unipi.luk3s.magneto;
+
+/**
+ * <p>Anything that can provide the last filtered readings of the magnetic field. It is
+ * implemented both by {@link MagnetoFragment}, which gets its readings from the device compass
+ * sensor, and by {@link MagnetoPipeline}, which can be fed with samples on a plain JVM (for
+ * example when replaying recorded traces or running benchmarks).</p>
+ *
+ * <p>All the *Helper classes only depend on this interface, taken by their constructors, so
+ * the same helper works on a device (with a {@link MagnetoFragment}) and off-device (with a
+ * {@link MagnetoPipeline}).</p>
+ */
+public interface MagneticReadingsSource
+{
+    /**
+     * @return the low-pass filtered magnetic field along the axes rounded to 2 decimal places.
+     *          The array is reused every time a new sample is processed.
+     */
+    float[] getLastRoundedReadings();
+
+    /**
+     * @return the high-pass filtered magnetic field along the axes rounded to 2 decimal places.
+     *          The array is reused every time a new sample is processed.
+     */
+    float[] getLastHighPassReadings();
+
+    /**
+     * @return the features (norm, azimuth, ...) of the last sample, computed once and shared by
+     *          all the helpers. The frame is reused every time a new sample is processed.
+     */
+    MagneticFrame getLastFrame();
+
+    /**
+     * <p>Registers a listener notified every time a new sample has been processed. Registering
+     * the same listener twice has no effect.</p>
+     */
+    void addSampleListener(MagnetoPipeline.SampleListener listener);
+
+    void removeSampleListener(MagnetoPipeline.SampleListener listener);
+}
@@ -0,0 +1,97 @@
+package unipi.luk3s.magneto;
+
+/**
+ * <p>A fixed-capacity batch of samples of the magnetic field, each with its own timestamp. The
+ * samples are stored as a structure of arrays (one array for the timestamps and one for each
+ * axis) allocated once, so a batch can be filled and cleared over and over without producing
+ * garbage.</p>
+ *
+ * <p>Batches are used to feed a burst of samples (e.g. the content of the hardware FIFO of the
+ * compass sensor) to a {@link MagnetoPipeline} in one pass, see
+ * {@link MagnetoPipeline#process(MagneticSampleBatch)}.</p>
+ */
+public class MagneticSampleBatch
+{
+    private final long[] timestamps;
+    private final float[] xValues;
+    private final float[] yValues;
+    private final float[] zValues;
+    private int size;
+
+    /**
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public MagneticSampleBatch(int capacity)
+    {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("The capacity must be positive: " + capacity);
+
+        timestamps = new long[capacity];
+        xValues = new float[capacity];
+        yValues = new float[capacity];
+        zValues = new float[capacity];
+        size = 0;
+    }
+
+    /**
+     * @return {@code false} if the batch is full and the sample has not been added
+     */
+    public boolean add(long timestampNanos,
+                       float xMagneticField, float yMagneticField, float zMagneticField)
+    {
+        if (size == timestamps.length)
+            return false;
+
+        timestamps[size] = timestampNanos;
+        xValues[size] = xMagneticField;
+        yValues[size] = yMagneticField;
+        zValues[size] = zMagneticField;
+        size++;
+        return true;
+    }
+
+    public void clear()
+    {
+        size = 0;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int capacity()
+    {
+        return timestamps.length;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public boolean isFull()
+    {
+        return size == timestamps.length;
+    }
+
+    public long getTimestamp(int index)
+    {
+        return timestamps[index];
+    }
+
+    public float getX(int index)
+    {
+        return xValues[index];
+    }
+
+    public float getY(int index)
+    {
+        return yValues[index];
+    }
+
+    public float getZ(int index)
+    {
+        return zValues[index];
+    }
+}
@@ -0,0 +1,148 @@
+package unipi.luk3s.magneto;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A bounded single-producer single-consumer queue of samples, to hand every sample over from
+ * the thread processing them to another thread (logging, scoring, ...) without ever blocking the
+ * former: a slow consumer makes the ring fill up and the samples that do not fit are dropped
+ * (and counted), instead of delaying the sensor events.</p>
+ *
+ * <p>The ring is a {@link MagnetoPipeline.SampleListener} publishing the timestamp and the
+ * low-pass filtered values rounded to 2 decimal places of every sample, so it can be registered
+ * on a {@link MagnetoFragment} (or any other {@link MagneticReadingsSource}):</p>
+ *
+ * <pre class="prettyprint">
+ * MagneticSampleRing ring = new MagneticSampleRing(1024);
+ * magneto.addSampleListener(ring);
+ *
+ * // On the consumer thread
+ * MagneticSampleBatch batch = new MagneticSampleBatch(256);
+ * while (running)
+ * {
+ *     batch.clear();
+ *     if (ring.drainTo(batch) == 0)
+ *         sleepABit();
+ *     consume(batch);
+ * }
+ * </pre>
+ *
+ * <p>Samples are stored in four primitive arrays (structure of arrays), allocated once. The
+ * producer and the consumer only share their two positions, each one written by a single thread
+ * with an ordered store (no locks, no compare-and-swap). The positions are kept in an
+ * {@link AtomicLongArray}, far enough from each other not to share a cache line, so the two
+ * threads do not slow each other down with false sharing.</p>
+ *
+ * <p>{@link #offer(long, float, float, float)} must always be called by the same thread, and
+ * {@link #drainTo(MagneticSampleBatch)} by another single thread.</p>
+ */
+public class MagneticSampleRing implements MagnetoPipeline.SampleListener
+{
+    // 16 longs (128 bytes) apart: two cache lines, as adjacent lines are often prefetched together
+    private static final int PADDING = 16;
+    private static final int PRODUCER_POSITION = PADDING;
+    private static final int DROPPED_SAMPLES = PADDING + 1;
+    private static final int CONSUMER_POSITION = 2 * PADDING;
+
+    private final long[] timestamps;
+    private final float[] xs;
+    private final float[] ys;
+    private final float[] zs;
+    private final int mask;
+    private final AtomicLongArray positions;
+
+    /**
+     * @param capacity the maximum number of samples waiting to be consumed, rounded up to the
+     *                 next power of two
+     * @throws IllegalArgumentException if the capacity is not positive or greater than 2^30
+     */
+    public MagneticSampleRing(int capacity)
+    {
+        if (capacity <= 0 || capacity > (1 << 30))
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+
+        timestamps = new long[size];
+        xs = new float[size];
+        ys = new float[size];
+        zs = new float[size];
+        mask = size - 1;
+        positions = new AtomicLongArray(3 * PADDING);
+    }
+
+    @Override
+    public void onSampleProcessed(MagnetoPipeline pipeline)
+    {
+        float[] values = pipeline.getLastRoundedReadings();
+        offer(pipeline.getLastTimestamp(), values[0], values[1], values[2]);
+    }
+
+    /**
+     * <p>Called by the producer thread, adds a sample to the ring.</p>
+     *
+     * @return false if the ring is full, in which case the sample is dropped
+     */
+    public boolean offer(long timestampNanos, float x, float y, float z)
+    {
+        long producerPosition = positions.get(PRODUCER_POSITION);
+        if (producerPosition - positions.get(CONSUMER_POSITION) > mask)
+        {
+            positions.lazySet(DROPPED_SAMPLES, positions.get(DROPPED_SAMPLES) + 1);
+            return false;
+        }
+
+        int slot = (int) producerPosition & mask;
+        timestamps[slot] = timestampNanos;
+        xs[slot] = x;
+        ys[slot] = y;
+        zs[slot] = z;
+
+        // Ordered store: the sample is visible to the consumer before the new position
+        positions.lazySet(PRODUCER_POSITION, producerPosition + 1);
+        return true;
+    }
+
+    /**
+     * <p>Called by the consumer thread, moves the oldest samples in the ring to the batch, until
+     * either the ring is empty or the batch is full. The batch is not cleared first.</p>
+     *
+     * @return the number of samples moved
+     */
+    public int drainTo(MagneticSampleBatch batch)
+    {
+        long consumerPosition = positions.get(CONSUMER_POSITION);
+        long available = positions.get(PRODUCER_POSITION) - consumerPosition;
+        int count = (int) Math.min(available, batch.capacity() - batch.size());
+
+        for (int i = 0; i < count; i++)
+        {
+            int slot = (int) (consumerPosition + i) & mask;
+            batch.add(timestamps[slot], xs[slot], ys[slot], zs[slot]);
+        }
+
+        // Ordered store: the slots are read before the producer can reuse them
+        positions.lazySet(CONSUMER_POSITION, consumerPosition + count);
+        return count;
+    }
+
+    /** The number of samples waiting to be consumed (an estimate if the ring is in use) */
+    public int size()
+    {
+        long consumerPosition = positions.get(CONSUMER_POSITION);
+        return (int) (positions.get(PRODUCER_POSITION) - consumerPosition);
+    }
+
+    public int capacity()
+    {
+        return mask + 1;
+    }
+
+    /** The number of samples dropped so far because the ring was full */
+    public long getDroppedSamples()
+    {
+        return positions.get(DROPPED_SAMPLES);
+    }
+}
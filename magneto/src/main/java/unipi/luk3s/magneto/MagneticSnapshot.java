@@ -0,0 +1,113 @@
+package unipi.luk3s.magneto;
+
+/**
+ * <p>Lets any thread read the last filtered values of the magnetic field while they are being
+ * updated on the thread processing the samples, e.g. a GL renderer drawing a compass at its own
+ * frame rate. The arrays returned by {@link MagneticReadingsSource#getLastRoundedReadings()} and
+ * {@link MagneticReadingsSource#getLastHighPassReadings()} are overwritten in place for every
+ * sample, so a thread other than the processing one can see the x, y, z of different samples
+ * mixed together; a snapshot never does.</p>
+ *
+ * <p>A snapshot is registered as a {@link MagnetoPipeline.SampleListener}, so it costs nothing
+ * when it is not used:</p>
+ *
+ * <pre class="prettyprint">
+ * MagneticSnapshot snapshot = new MagneticSnapshot();
+ * magneto.addSampleListener(snapshot);
+ *
+ * // On the render thread, for every frame
+ * long sequence = snapshot.readLatest(values);
+ * if (sequence != lastSequence) ...
+ * </pre>
+ *
+ * <p>It is a sequence lock (seqlock): the writer makes the sequence number odd, writes the
+ * values and makes it even again, while the readers copy the values and retry if the sequence
+ * number was odd or changed meanwhile. The writer never waits for the readers and the readers
+ * never allocate. All the fields are volatile, so the values and the sequence number are
+ * totally ordered as the Java memory model requires for the lock to be correct; at the sensor
+ * rates this costs a few tens of nanoseconds per sample on the writer side.</p>
+ */
+public class MagneticSnapshot implements MagnetoPipeline.SampleListener
+{
+    /** Minimum length of the array passed to {@link #readLatest(float[])} */
+    public static final int ROUNDED_VALUES_LENGTH = 3;
+    /** Length of the array passed to {@link #readLatest(float[])} to get the high-pass values */
+    public static final int ALL_VALUES_LENGTH = 6;
+
+    // Odd while the values are being written, twice the number of samples published when even
+    private volatile long sequence;
+    private volatile float x, y, z;
+    private volatile float highPassX, highPassY, highPassZ;
+
+    @Override
+    public void onSampleProcessed(MagnetoPipeline pipeline)
+    {
+        publish(pipeline.getLastRoundedReadings(), pipeline.getLastHighPassReadings());
+    }
+
+    /**
+     * <p>Publishes new values. It must always be called by the same thread (or by threads that
+     * are otherwise synchronized among themselves).</p>
+     */
+    public void publish(float[] roundedValues, float[] highPassValues)
+    {
+        long current = sequence;
+        sequence = current + 1;
+
+        x = roundedValues[0];
+        y = roundedValues[1];
+        z = roundedValues[2];
+        highPassX = highPassValues[0];
+        highPassY = highPassValues[1];
+        highPassZ = highPassValues[2];
+
+        sequence = current + 2;
+    }
+
+    /**
+     * <p>Copies the last published values in the given array: the low-pass filtered values
+     * rounded to 2 decimal places along x, y, z in the first three elements and, if the array is
+     * at least {@value #ALL_VALUES_LENGTH} elements long, the high-pass filtered values along x,
+     * y, z in the following three. The values always belong to the same sample.</p>
+     *
+     * @return the sequence number of the values, i.e. the number of samples published so far:
+     *          it only changes when new values are available. If it is 0 nothing has been
+     *          published yet and the array is not modified.
+     * @throws IllegalArgumentException if the array is shorter than
+     *                                  {@value #ROUNDED_VALUES_LENGTH}
+     */
+    public long readLatest(float[] dst)
+    {
+        if (dst.length < ROUNDED_VALUES_LENGTH)
+            throw new IllegalArgumentException("The array is too short: " + dst.length);
+
+        boolean withHighPass = dst.length >= ALL_VALUES_LENGTH;
+        while (true)
+        {
+            long before = sequence;
+            if (before == 0)
+                return 0;
+            if ((before & 1) != 0)
+                continue;
+
+            dst[0] = x;
+            dst[1] = y;
+            dst[2] = z;
+            if (withHighPass)
+            {
+                dst[3] = highPassX;
+                dst[4] = highPassY;
+                dst[5] = highPassZ;
+            }
+
+            if (sequence == before)
+                return before >>> 1;
+        }
+    }
+
+    /** The number of samples published so far, see {@link #readLatest(float[])} */
+    public long getSequence()
+    {
+        return sequence >>> 1;
+    }
+}
@@ -0,0 +1,313 @@
+package unipi.luk3s.magneto;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static unipi.luk3s.magneto.MagnetoUtils.hypot3;
+import static unipi.luk3s.magneto.MagnetoUtils.round;
+
+/**
+ * <p>Exports readings of the magnetic field to a CSV file. Each record is a row with the
+ * magnetic field along x, y, z, optionally followed by the high-pass filtered values along the
+ * same axes and by the euclidean norm of the magnetic field (rounded to 2 decimal places). The
+ * first row is a header naming the columns, e.g. {@code x,y,z,norm}.</p>
+ *
+ * <p>The file is written while the records are appended, through a buffered writer running on
+ * a background thread owned by the exporter, so {@link #append(float[], float[])} can be called
+ * on the main thread, and the number of records is not limited by the memory. Records are
+ * handed over to the background thread in chunks of {@value #RECORDS_PER_CHUNK}, which are
+ * reused once written, and at most {@value #MAX_CHUNKS} chunks exist: the memory used does not
+ * grow with the number of records. Appending only waits for the disk when all the chunks are
+ * still to be written, i.e. when the records arrive faster than they can be written.</p>
+ *
+ * <p>When all the records have been appended, call {@link #close(Callback)}: the callback is
+ * notified, <b>on the background thread</b>, once the file is complete, or with the first
+ * error that occurred (the records following an error are discarded). An exporter which is never
+ * closed, e.g. because the activity is destroyed meanwhile, leaves the file incomplete, but not
+ * its thread behind: the thread is a daemon, and ends after a few idle seconds.</p>
+ *
+ * <p>An exporter must be used by one thread at a time.</p>
+ */
+public class MagnetoCsvExporter
+{
+    static final int RECORDS_PER_CHUNK = 256;
+    static final int MAX_CHUNKS = 16;
+    private static final int IDLE_THREAD_SECONDS = 5;
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "MagnetoCsvExporter");
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private final File file;
+    private final boolean includeHighPass;
+    private final boolean includeNorm;
+    private final int valuesPerRecord;
+    private final ThreadPoolExecutor executor;
+    // The chunks written, ready to be filled again
+    private final BlockingQueue<Chunk> freeChunks = new ArrayBlockingQueue<Chunk>(MAX_CHUNKS);
+
+    private Chunk chunk;
+    private int allocatedChunks;
+    private int appendedRecords;
+    private boolean closed;
+
+    // Only accessed by the background thread
+    private Writer writer;
+    private IOException error;
+
+    /**
+     * @param file the CSV file to write, it is overwritten if it already exists
+     * @param includeHighPass whether to add the hx,hy,hz columns with the high-pass values
+     * @param includeNorm whether to add the norm column
+     */
+    public MagnetoCsvExporter(File file, boolean includeHighPass, boolean includeNorm)
+    {
+        this.file = file;
+        this.includeHighPass = includeHighPass;
+        this.includeNorm = includeNorm;
+        valuesPerRecord = includeHighPass ? 6 : 3;
+        // A single thread, so the tasks run in order
+        executor = new ThreadPoolExecutor(1, 1, IDLE_THREAD_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), THREAD_FACTORY);
+        executor.allowCoreThreadTimeOut(true);
+        chunk = new Chunk();
+        allocatedChunks = 1;
+
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                openFile();
+            }
+        });
+    }
+
+    /**
+     * @param values the magnetic field along the axes (e.g.
+     *               {@link MagnetoFragment#getLastRoundedReadings()}), it is copied
+     * @throws IllegalStateException if the exporter includes the high-pass values or if it has
+     *                               already been closed
+     */
+    public void append(float[] values)
+    {
+        if (includeHighPass)
+            throw new IllegalStateException("The high-pass values are missing");
+
+        append(values, null);
+    }
+
+    /**
+     * @param values the magnetic field along the axes (e.g.
+     *               {@link MagnetoFragment#getLastRoundedReadings()}), it is copied
+     * @param highPassValues the high-pass filtered magnetic field along the axes (e.g.
+     *               {@link MagnetoFragment#getLastHighPassReadings()}), it is copied. It is
+     *               ignored if the exporter does not include the high-pass values.
+     * @throws IllegalStateException if the exporter has already been closed
+     */
+    public void append(float[] values, float[] highPassValues)
+    {
+        if (closed)
+            throw new IllegalStateException("The exporter has been closed");
+
+        int offset = chunk.records * valuesPerRecord;
+        System.arraycopy(values, 0, chunk.values, offset, 3);
+        if (includeHighPass)
+            System.arraycopy(highPassValues, 0, chunk.values, offset + 3, 3);
+
+        chunk.records++;
+        appendedRecords++;
+        if (chunk.records == RECORDS_PER_CHUNK)
+            submitChunk();
+    }
+
+    /** The number of records appended so far */
+    public int getAppendedRecords()
+    {
+        return appendedRecords;
+    }
+
+    /**
+     * <p>Writes the remaining records and closes the file. No more records can be appended.</p>
+     *
+     * @param callback notified on the background thread when the export is over, can be null
+     */
+    public void close(final Callback callback)
+    {
+        if (closed)
+            return;
+
+        closed = true;
+        submitChunk();
+        final int records = appendedRecords;
+        executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                closeFile();
+                if (callback == null)
+                    return;
+
+                if (error == null)
+                    callback.onExportCompleted(file, records);
+                else
+                    callback.onExportFailed(file, error);
+            }
+        });
+        executor.shutdown();
+    }
+
+    private void submitChunk()
+    {
+        if (chunk.records == 0)
+            return;
+
+        executor.execute(chunk);
+        if (closed)
+        {
+            chunk = null;
+            return;
+        }
+
+        // A new chunk while the writer is behind, waiting for one once they are all in use
+        chunk = freeChunks.poll();
+        if (chunk == null && allocatedChunks < MAX_CHUNKS)
+        {
+            chunk = new Chunk();
+            allocatedChunks++;
+        }
+        else if (chunk == null)
+            chunk = takeFreeChunk();
+    }
+
+    private Chunk takeFreeChunk()
+    {
+        boolean interrupted = false;
+        try
+        {
+            while (true)
+            {
+                try
+                {
+                    return freeChunks.take();
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        finally
+        {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private void openFile()
+    {
+        try
+        {
+            writer = new BufferedWriter(new FileWriter(file));
+            writer.write(includeHighPass ? "x,y,z,hx,hy,hz" : "x,y,z");
+            writer.write(includeNorm ? ",norm\n" : "\n");
+        }
+        catch (IOException e)
+        {
+            error = e;
+        }
+    }
+
+    private void writeRecords(float[] records, int numberOfRecords)
+    {
+        if (error != null)
+            return;
+
+        try
+        {
+            for (int i = 0; i < numberOfRecords; i++)
+            {
+                int offset = i * valuesPerRecord;
+                for (int j = 0; j < valuesPerRecord; j++)
+                {
+                    if (j > 0)
+                        writer.write(',');
+                    writer.write(Float.toString(records[offset + j]));
+                }
+
+                if (includeNorm)
+                {
+                    writer.write(',');
+                    writer.write(Float.toString(round(
+                            hypot3(records[offset], records[offset + 1], records[offset + 2]))));
+                }
+                writer.write('\n');
+            }
+        }
+        catch (IOException e)
+        {
+            error = e;
+        }
+    }
+
+    /**
+     * Records handed over to the background thread, which gives the chunk back once written.
+     */
+    private final class Chunk implements Runnable
+    {
+        final float[] values = new float[RECORDS_PER_CHUNK * valuesPerRecord];
+        int records;
+
+        @Override
+        public void run()
+        {
+            writeRecords(values, records);
+            records = 0;
+            freeChunks.offer(this);
+        }
+    }
+
+    private void closeFile()
+    {
+        if (writer == null)
+            return;
+
+        try
+        {
+            writer.close();
+        }
+        catch (IOException e)
+        {
+            if (error == null)
+                error = e;
+        }
+    }
+
+    /**
+     * <p>Used for receiving the outcome of an export. Both methods are called on the background
+     * thread of the exporter.</p>
+     */
+    public interface Callback
+    {
+        void onExportCompleted(File file, int records);
+
+        void onExportFailed(File file, IOException error);
+    }
+}
@@ -5,14 +5,22 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Toast;
 
-import static unipi.luk3s.magneto.MagnetoUtils.round;
+import java.io.File;
+import java.io.IOException;
 
 /**
  * <p>This UI-less fragment lets you access the device's compass sensor. A low-pass filter is 
@@ -29,47 +37,192 @@ import static unipi.luk3s.magneto.MagnetoUtils.round;
  * fragmentTransaction.commit();
  * </pre>
  *
- * <p>If the activity that adds this fragment do not implement the
- * {@link unipi.luk3s.magneto.MagnetoFragment.MagneticSensorEventListener} a <i>RuntimeException</i>
- * is thrown. The fragment communicates with the actual sensor through the
- * {@link SensorEventListener}. The default rate at which events are received is
+ * <p>If the activity that adds this fragment implements the
+ * {@link unipi.luk3s.magneto.MagnetoFragment.MagneticSensorEventListener} it is registered
+ * automatically while attached. Any number of other listeners (helpers, widgets, other
+ * fragments) can be registered with {@link #addListener(MagneticSensorEventListener)}, each one
+ * optionally receiving only a fraction of the samples with
+ * {@link #addListener(MagneticSensorEventListener, int, float)}: e.g. tap detection at the full
+ * rate and a UI widget refreshed at 30 Hz. The fragment communicates with the actual sensor
+ * through the {@link SensorEventListener}. The default rate at which events are received is
  * {#link SensorManager#SENSOR_DELAY_GAME}.</p>
  *
+ * <p>The fragment is only an adapter between the {@link SensorManager} and a
+ * {@link MagnetoPipeline}, where the actual processing of the samples takes place.</p>
+ *
+ * <p>By default sensor events are delivered, and processed, on the main thread. Calling
+ * {@link #setBackgroundProcessing(boolean)} moves the pipeline (and the
+ * {@link MagnetoPipeline.SampleListener}s, where the helpers should be queried) to a dedicated
+ * {@link HandlerThread}. In that case the {@link MagneticSensorEventListener} is still called on
+ * the main thread, but samples arriving while a previous one is waiting to be delivered are
+ * coalesced: only the most recent values are delivered. Results computed on the sensor thread
+ * can be delivered to the main thread with {@link #postToMainThread(Runnable)}.</p>
+ *
+ * <p>On devices with a hardware FIFO (API 19+), {@link #setMaxReportLatency(int)} lets the
+ * sensor batch samples and deliver them in bursts, so the application processor is woken up far
+ * less often. A burst is processed in one pass by the pipeline, sample by sample with its own
+ * timestamp, and the {@link MagneticSensorEventListener} is called once at the end of it.</p>
+ *
+ * <p>{@link #enableAdaptiveSampling(RapidChangesHelper)} lowers the sampling rate while nothing
+ * happens near the compass sensor, and raises it as soon as a magnet moves, saving battery when
+ * the application waits for the user for long periods.</p>
+ *
+ * <p>{@link #setMetrics(MagnetoMetrics)} measures the hot path (callbacks, helpers, listeners,
+ * delivery delays) on the device, at no cost while disabled.</p>
+ *
  * @see unipi.luk3s.magneto.MagnetoFragment.MagneticSensorEventListener
  * @see SensorEventListener
  * @see SensorManager
  * @see SensorEvent
  */
-public class MagnetoFragment extends Fragment implements SensorEventListener
+public class MagnetoFragment extends Fragment
+        implements SensorEventListener, MagneticReadingsSource
 {
+    private static final String TAG = "MagnetoFragment";
+
     // Used in Intents and/or Bundles
     private static final String SHOW_ACCURACY_TOAST = "showAccuracyToast";
     private static final String SENSOR_DELAY= "sensorDelay";
+    private static final String FILTER_TYPE = "filterType";
+    private static final String FILTER_PARAMETER = "filterParameter";
+    private static final String BACKGROUND_PROCESSING = "backgroundProcessing";
+    private static final String MAX_REPORT_LATENCY = "maxReportLatency";
+
+    // Samples of a burst exceeding this number are processed in more passes
+    private static final int SAMPLE_BATCH_CAPACITY = 256;
+
+    private static final ListenerRegistration[] NO_LISTENERS = new ListenerRegistration[0];
 
     private boolean showAccuracyToast;
     private int sensorDelay;
+    private int filterType;
+    private float filterParameter;
+    private boolean backgroundProcessing;
+    private int maxReportLatencyUs;
+    // Whether the listener has been registered with batching, read on the thread receiving the
+    // events, which keep following that registration until the next one
+    private volatile boolean isBatching;
 
     private SensorManager sensorManagerReference;
     private Sensor magnetometerReference;
-    private MagneticSensorEventListener magneticSensorEventListener;
+    // Copy-on-write: registering allocates a new array, dispatching does not allocate
+    private ListenerRegistration[] listeners = NO_LISTENERS;
+    private MagneticSensorEventListener attachedActivity;
 
-    private SimpleMovingAverage sma;
-    private float[] smaValues;
-    private float[] smaRoundedValues;
-    private float[] highPassValues;
+    // Created here (and not in onCreate) so helpers can be attached before the fragment is added
+    private final MagnetoPipeline pipeline;
+
+    // Background processing: the sensor thread stores the last values in the pending arrays and
+    // posts a single dispatch to the main thread, later samples only overwrite the values.
+    private HandlerThread sensorThread;
+    private Handler sensorHandler;
+    private Handler mainThreadHandler;
+    private final Object pendingSampleLock = new Object();
+    private boolean isDispatchPending;
+    private final float[] pendingSmaValues = new float[3];
+    private final float[] pendingSmaRoundedValues = new float[3];
+    private final float[] pendingHighPassValues = new float[3];
+    private long pendingTimestamp;
+    private long pendingSampleNumber;
+    private final float[] deliveredSmaValues = new float[3];
+    private final float[] deliveredSmaRoundedValues = new float[3];
+    private final float[] deliveredHighPassValues = new float[3];
+    private final Runnable dispatchPendingSample = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            dispatchPendingSample();
+        }
+    };
+
+    // Batched mode: the samples of a burst are collected here and processed all together by a
+    // single task posted on the thread receiving the events, which runs after the burst.
+    private final MagneticSampleBatch sampleBatch = new MagneticSampleBatch(SAMPLE_BATCH_CAPACITY);
+    private boolean isBatchProcessingPending;
+    private final Runnable processSampleBatch = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            processSampleBatch();
+        }
+    };
+
+    // Written on the thread receiving the sensor events, replaced on the main thread
+    private volatile MagnetoTraceWriter traceWriter;
+    // Why the last recording stopped by itself, null if it did not
+    private volatile IOException recordingFailure;
+
+    // Null unless enabled, see setMetrics
+    private volatile MagnetoMetrics metrics;
+
+    // Adaptive sampling: the governor is updated on the thread processing the samples, the
+    // sensor is registered again with the new delay on the main thread. Null unless enabled.
+    private volatile AdaptiveSampling adaptiveSampling;
+    private final MagnetoPipeline.SampleListener governorListener =
+            new MagnetoPipeline.SampleListener()
+    {
+        @Override
+        public void onSampleProcessed(MagnetoPipeline pipeline)
+        {
+            AdaptiveSampling sampling = adaptiveSampling;
+            // Without thresholds any noise would look like a movement
+            if (sampling == null || !sampling.helper.hasInitEnded())
+                return;
+
+            RapidChangesHelper helper = sampling.helper;
+            if (sampling.governor.update(pipeline.getLastTimestamp(),
+                    pipeline.getLastFrame().getRoundedHighPassNorm(),
+                    helper.getLowThreshold(), helper.getHighThreshold()))
+                mainThreadHandler.post(applySensorDelay);
+        }
+    };
+    private final Runnable applySensorDelay = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (sensorManagerReference != null && isResumed())
+            {
+                sensorManagerReference.unregisterListener(MagnetoFragment.this);
+                registerSensorListener();
+            }
+        }
+    };
 
     public MagnetoFragment()
     {
         // Required empty public constructor
+        pipeline = new MagnetoPipeline();
     }
 
     public static MagnetoFragment newInstance(boolean showAccuracyToast)
+    {
+        return newInstance(showAccuracyToast, MagneticFilter.SIMPLE_MOVING_AVERAGE,
+                MagneticFilters.DEFAULT_WINDOW);
+    }
+
+    /**
+     * <p>Creates a fragment using a different low-pass filter than the default one (a
+     * {@link SimpleMovingAverage} with a window of 10 samples). A larger window (or a smaller
+     * smoothing factor, or a longer time constant) gives smoother readings at the cost of a
+     * higher latency. Only {@link MagneticFilter#TIME_CONSTANT} behaves the same whatever the
+     * sensor delay.</p>
+     *
+     * @param filterType one of the constants defined in {@link MagneticFilter}
+     * @param filterParameter see {@link MagneticFilters#newFilter(int, float)}
+     */
+    public static MagnetoFragment newInstance(boolean showAccuracyToast, int filterType,
+                                              float filterParameter)
     {
         MagnetoFragment fragment = new MagnetoFragment();
 
         Bundle args = new Bundle();
         args.putBoolean(SHOW_ACCURACY_TOAST, showAccuracyToast);
         args.putInt(SENSOR_DELAY, SensorManager.SENSOR_DELAY_GAME);
+        args.putInt(FILTER_TYPE, filterType);
+        args.putFloat(FILTER_PARAMETER, filterParameter);
         fragment.setArguments(args);
 
         return fragment;
@@ -84,12 +237,16 @@ public class MagnetoFragment extends Fragment implements SensorEventListener
         {
             showAccuracyToast = getArguments().getBoolean(SHOW_ACCURACY_TOAST);
             sensorDelay = getArguments().getInt(SENSOR_DELAY);
+            filterType = getArguments().getInt(FILTER_TYPE, MagneticFilter.SIMPLE_MOVING_AVERAGE);
+            filterParameter = getArguments().getFloat(FILTER_PARAMETER,
+                    MagneticFilters.DEFAULT_WINDOW);
+            pipeline.setFilter(MagneticFilters.newFilter(filterType, filterParameter));
+            backgroundProcessing = getArguments().getBoolean(BACKGROUND_PROCESSING,
+                    backgroundProcessing);
+            maxReportLatencyUs = getArguments().getInt(MAX_REPORT_LATENCY, maxReportLatencyUs);
         }
 
-        sma = new SimpleMovingAverage();
-        smaValues = new float[3];
-        smaRoundedValues = new float[3];
-        highPassValues = new float[3];
+        mainThreadHandler = new Handler(Looper.getMainLooper());
 
         sensorManagerReference = (SensorManager)
                 getActivity().getSystemService(getActivity().SENSOR_SERVICE);
@@ -108,17 +265,21 @@ public class MagnetoFragment extends Fragment implements SensorEventListener
     {
         super.onAttach(context);
         if (context instanceof MagneticSensorEventListener)
-            magneticSensorEventListener = (MagneticSensorEventListener) context;
-        else
-            throw new RuntimeException(context.toString()
-                    + " must implement MagneticSensorEventListener");
+        {
+            attachedActivity = (MagneticSensorEventListener) context;
+            addListener(attachedActivity);
+        }
     }
 
     @Override
     public void onDetach()
     {
         super.onDetach();
-        magneticSensorEventListener = null;
+        if (attachedActivity != null)
+        {
+            removeListener(attachedActivity);
+            attachedActivity = null;
+        }
     }
 
     /**
@@ -127,7 +288,7 @@ public class MagnetoFragment extends Fragment implements SensorEventListener
     public void onResume()
     {
         super.onResume();
-        sensorManagerReference.registerListener(this, magnetometerReference, sensorDelay);
+        registerSensorListener();
     }
 
     /**
@@ -137,6 +298,99 @@ public class MagnetoFragment extends Fragment implements SensorEventListener
     {
         super.onPause();
         sensorManagerReference.unregisterListener(this);
+        processPendingSamples();
+    }
+
+    @Override
+    public void onDestroy()
+    {
+        super.onDestroy();
+        stopSensorThread();
+    }
+
+    private void registerSensorListener()
+    {
+        if (backgroundProcessing)
+        {
+            if (sensorThread == null)
+            {
+                sensorThread = new HandlerThread("MagnetoSensorThread",
+                        Process.THREAD_PRIORITY_DISPLAY);
+                sensorThread.start();
+                sensorHandler = new Handler(sensorThread.getLooper());
+            }
+        }
+        else
+        {
+            // No sample may be processed on the old thread once the main one takes over
+            stopSensorThread();
+            sensorHandler = mainThreadHandler;
+        }
+
+        AdaptiveSampling sampling = adaptiveSampling;
+        int delay = (sampling != null) ? sampling.governor.getDelay() : sensorDelay;
+        isBatching = isBatchingEnabled();
+        if (isBatching)
+            sensorManagerReference.registerListener(this, magnetometerReference, delay,
+                    maxReportLatencyUs, sensorHandler);
+        else
+            sensorManagerReference.registerListener(this, magnetometerReference, delay,
+                    sensorHandler);
+    }
+
+    private boolean isBatchingEnabled()
+    {
+        return maxReportLatencyUs > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * The samples of an unfinished burst are still processed, on the thread they belong to. The
+     * sensor thread is kept while the fragment is paused, so that a single thread ever processes
+     * the samples.
+     */
+    private void processPendingSamples()
+    {
+        if (sensorThread != null)
+            sensorHandler.post(processSampleBatch);
+        else
+            processSampleBatch();
+    }
+
+    /**
+     * Processes the samples of an unfinished burst, then quits the sensor thread and waits for
+     * it to end, so that no other thread processes samples meanwhile.
+     */
+    private void stopSensorThread()
+    {
+        if (sensorThread == null)
+            return;
+
+        final HandlerThread thread = sensorThread;
+        sensorThread = null;
+        sensorHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                processSampleBatch();
+                thread.quit();
+            }
+        });
+
+        boolean interrupted = false;
+        while (thread.isAlive())
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
     }
 
     @Override
@@ -144,6 +398,10 @@ public class MagnetoFragment extends Fragment implements SensorEventListener
     {
         savedInstanceState.putBoolean(SHOW_ACCURACY_TOAST, showAccuracyToast);
         savedInstanceState.putInt(SENSOR_DELAY, sensorDelay);
+        savedInstanceState.putInt(FILTER_TYPE, filterType);
+        savedInstanceState.putFloat(FILTER_PARAMETER, filterParameter);
+        savedInstanceState.putBoolean(BACKGROUND_PROCESSING, backgroundProcessing);
+        savedInstanceState.putInt(MAX_REPORT_LATENCY, maxReportLatencyUs);
         super.onSaveInstanceState(savedInstanceState);
     }
 
@@ -151,20 +409,204 @@ public class MagnetoFragment extends Fragment implements SensorEventListener
      * <p>For more information about the delay see the
      * {@link SensorManager#registerListener(SensorEventListener, Sensor, int) registerListener}
      * method of the {@link SensorManager}.</p>
+     *
+     * <p>While adaptive sampling is enabled the delay is chosen by the fragment, the given one
+     * is used again when it is disabled.</p>
      */
     public void modifySensorDelay(int delay)
     {
         sensorDelay = delay;
         sensorManagerReference.unregisterListener(this);
-        sensorManagerReference.registerListener(this, magnetometerReference, sensorDelay);
+        registerSensorListener();
+    }
+
+    /**
+     * <p>If {@code true}, sensor events are received and processed on a dedicated background
+     * thread instead of the main one. It should be called before the fragment is resumed, or
+     * it takes effect the next time it is.</p>
+     *
+     * <p>The {@link MagneticSensorEventListener} keeps being called on the main thread (see the
+     * class description), while the {@link MagnetoPipeline.SampleListener}s, and the arrays
+     * returned by {@link #getLastRoundedReadings()} and {@link #getLastHighPassReadings()}, belong
+     * to the sensor thread. Other threads can read consistent values through a
+     * {@link MagneticSnapshot}, or consume every sample through a {@link MagneticSampleRing}.</p>
+     */
+    public void setBackgroundProcessing(boolean backgroundProcessing)
+    {
+        this.backgroundProcessing = backgroundProcessing;
+    }
+
+    public boolean isBackgroundProcessing()
+    {
+        return backgroundProcessing;
+    }
+
+    /**
+     * <p>Lets the compass sensor batch the samples in its hardware FIFO for up to the given
+     * latency before delivering them. The sampling rate does not change (see
+     * {@link #modifySensorDelay(int)}), but the events are received in bursts, which saves a
+     * lot of wake-ups when the results are not needed immediately (e.g. gesture detection in
+     * background). Every sample is processed with its own timestamp, so the helpers notifying
+     * a listener by themselves (e.g. {@link RapidChangesHelper.TapListener}, or any
+     * {@link MagnetoPipeline.SampleListener}) detect exactly what they would detect without
+     * batching, only later.</p>
+     *
+     * <p>The {@link MagneticSensorEventListener} is instead called once per burst, with its last
+     * sample and a {@code null} event: a helper polled from
+     * {@link MagneticSensorEventListener#onSensorChanged(SensorEvent, float[], float[], float[])}
+     * (e.g. {@link RapidChangesHelper#hasATapBeenDetected()}) only sees that sample, and misses
+     * what happened earlier in the burst.</p>
+     *
+     * <p>It takes effect the next time the fragment is resumed, or immediately if it is already.
+     * A latency of 0 disables batching, which is also the case on devices running an API level
+     * lower than 19 or without a hardware FIFO.</p>
+     *
+     * @param maxReportLatencyUs see
+     * {@link SensorManager#registerListener(SensorEventListener, Sensor, int, int)}
+     */
+    public void setMaxReportLatency(int maxReportLatencyUs)
+    {
+        this.maxReportLatencyUs = maxReportLatencyUs;
+        if (sensorManagerReference != null && isResumed())
+        {
+            sensorManagerReference.unregisterListener(this);
+            registerSensorListener();
+        }
+    }
+
+    public int getMaxReportLatency()
+    {
+        return maxReportLatencyUs;
+    }
+
+    /**
+     * <p>Samples at {@link SensorManager#SENSOR_DELAY_FASTEST} while the magnetic field changes,
+     * and at {@link SensorManager#SENSOR_DELAY_NORMAL} after 3 seconds without changes. See
+     * {@link #enableAdaptiveSampling(RapidChangesHelper, int, int, int)}.</p>
+     */
+    public void enableAdaptiveSampling(RapidChangesHelper helper)
+    {
+        enableAdaptiveSampling(helper, SensorManager.SENSOR_DELAY_NORMAL,
+                SensorManager.SENSOR_DELAY_FASTEST, 3000);
+    }
+
+    /**
+     * <p>Lets the fragment choose the sensor delay according to the high-pass filtered magnitude
+     * of the magnetic field, compared with the thresholds of the given helper: the active delay
+     * is used as soon as the magnitude exceeds the high threshold, the idle delay once it has
+     * stayed below the low threshold for {@code quietMillis}. Between the two thresholds the
+     * current delay is kept (hysteresis), as it is until the initialisation of the helper has
+     * ended.</p>
+     *
+     * <p>Changing the delay registers the sensor again, but the pipeline is not touched: the
+     * low-pass filter keeps its state, and the high-pass values do not jump. Prefer
+     * {@link MagneticFilter#TIME_CONSTANT}, whose response does not depend on the rate, and keep
+     * in mind that the movement waking up the sensor is sensed at the idle rate.</p>
+     */
+    public void enableAdaptiveSampling(RapidChangesHelper helper, int idleDelay, int activeDelay,
+                                       int quietMillis)
+    {
+        adaptiveSampling = new AdaptiveSampling(
+                new SamplingRateGovernor(idleDelay, activeDelay, quietMillis), helper);
+        pipeline.addSampleListener(governorListener);
+        applySensorDelay.run();
+    }
+
+    /** Goes back to the delay set with {@link #modifySensorDelay(int)} */
+    public void disableAdaptiveSampling()
+    {
+        if (adaptiveSampling == null)
+            return;
+
+        pipeline.removeSampleListener(governorListener);
+        adaptiveSampling = null;
+        applySensorDelay.run();
+    }
+
+    public boolean isAdaptiveSamplingEnabled()
+    {
+        return adaptiveSampling != null;
+    }
+
+    /**
+     * <p>Starts recording every raw sample received from the compass sensor, with its timestamp
+     * and accuracy, to the given file (see {@link MagnetoTraceWriter} for the format). A
+     * recording already in progress is stopped first. Recording goes on until
+     * {@link #stopRecording()} is called, also while the fragment is paused (no samples are
+     * received then), or until a sample cannot be written: the recording then stops by itself,
+     * {@link #isRecording()} returns false and {@link #getRecordingFailure()} tells why.</p>
+     *
+     * @throws IOException if the file cannot be created
+     */
+    public void startRecording(File file) throws IOException
+    {
+        stopRecording();
+        recordingFailure = null;
+        traceWriter = new MagnetoTraceWriter(file);
+    }
+
+    /**
+     * <p>Stops the recording in progress, if any, writing the samples still buffered.</p>
+     *
+     * @return the number of samples recorded, or -1 if no recording was in progress
+     */
+    public long stopRecording() throws IOException
+    {
+        MagnetoTraceWriter writer = traceWriter;
+        if (writer == null)
+            return -1;
+
+        traceWriter = null;
+        writer.close();
+        return writer.getWrittenRecords();
+    }
+
+    public boolean isRecording()
+    {
+        return traceWriter != null;
+    }
+
+    /**
+     * @return the error that stopped the last recording before {@link #stopRecording()} was
+     *          called, or null if there was none
+     */
+    public IOException getRecordingFailure()
+    {
+        return recordingFailure;
+    }
+
+    /**
+     * <p>Starts collecting the {@link MagnetoMetrics} of the fragment and of its pipeline: the
+     * duration of every sensor callback, of the helpers and of the listeners, the time taken by
+     * the samples to reach the listeners, and how many samples were coalesced or skipped. Pass
+     * {@code null} (the default) to stop.</p>
+     */
+    public void setMetrics(MagnetoMetrics metrics)
+    {
+        this.metrics = metrics;
+        pipeline.setMetrics(metrics);
+    }
+
+    public MagnetoMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * <p>Runs the given action on the main thread. Meant for delivering results (taps, matches,
+     * positions, ...) computed by a {@link MagnetoPipeline.SampleListener} on the sensor thread
+     * when background processing is enabled.</p>
+     */
+    public void postToMainThread(Runnable action)
+    {
+        mainThreadHandler.post(action);
     }
 
     /**
      * <p>Used for receiving notifications from the MagnetoFragment when sensor values have changed.
-     * This interface must be implemented by activities that contain this
-     * fragment to allow an interaction in this fragment to be communicated
-     * to the activity and potentially other fragments contained in that
-     * activity.</p>
+     * The activity that contains this fragment is registered automatically if it implements
+     * this interface, other listeners are registered with
+     * {@link #addListener(MagneticSensorEventListener)}.</p>
      */
     public interface MagneticSensorEventListener
     {
@@ -197,10 +639,15 @@ public class MagnetoFragment extends Fragment implements SensorEventListener
          * a new event is fired, so if you need store some values in your application, please
          * clone the array instead of copy its reference.</p>
          *
+         * <p>When background processing or batching is enabled the event cannot be held until
+         * the delivery, so {@code sensorEvent} is {@code null} and only the filtered values are
+         * available.</p>
+         *
          * <p>See  {@link SensorEventListener#onSensorChanged(SensorEvent)} for more 
          * information.</p>
          *
-         * @param sensorEvent the {@link SensorEvent SensorEvent}.
+         * @param sensorEvent the {@link SensorEvent SensorEvent}, {@code null} when background
+         *                    processing or batching is enabled: check it before using it.
          * @param smaValues low-pass filtered magnetic field strength along the axes. In detail:
          *                  <ul>
          *                  <li>smaValues[0] strength along x.</li>
@@ -213,6 +660,73 @@ public class MagnetoFragment extends Fragment implements SensorEventListener
         void onSensorChanged(SensorEvent sensorEvent, float[] smaValues, float[] smaRoundedValues, float[] highPassValues);
     }
 
+    /**
+     * <p>Registers a listener receiving every sample (see
+     * {@link #addListener(MagneticSensorEventListener, int, float)}).</p>
+     */
+    public void addListener(MagneticSensorEventListener listener)
+    {
+        addListener(listener, 1, 0);
+    }
+
+    /**
+     * <p>Registers a listener receiving only some of the samples: one every
+     * {@code everyNthSample}, and no more than {@code maxRateHz} per second on average (measured
+     * on the sensor timestamps). Both limits can be combined. Samples coalesced by background
+     * processing or batching count as processed, so e.g. with {@code everyNthSample = 5} a
+     * listener is called when at least 5 samples have been processed since its last call. The
+     * accuracy changes are always delivered.</p>
+     *
+     * <p>Listeners are called on the main thread, in the order they have been registered, and
+     * must be registered and removed on the main thread as well. A listener already registered
+     * is registered again with the new limits.</p>
+     *
+     * @param everyNthSample 1 for every sample
+     * @param maxRateHz 0 for no limit
+     * @throws IllegalArgumentException if everyNthSample is less than 1 or maxRateHz is negative
+     */
+    public void addListener(MagneticSensorEventListener listener, int everyNthSample,
+                            float maxRateHz)
+    {
+        ListenerRegistration registration = new ListenerRegistration(listener,
+                new SampleDecimator(everyNthSample, maxRateHz));
+
+        ListenerRegistration[] registrations = listeners;
+        for (int i = 0; i < registrations.length; i++)
+        {
+            if (registrations[i].listener == listener)
+            {
+                ListenerRegistration[] newListeners = registrations.clone();
+                newListeners[i] = registration;
+                listeners = newListeners;
+                return;
+            }
+        }
+
+        ListenerRegistration[] newListeners = new ListenerRegistration[registrations.length + 1];
+        System.arraycopy(registrations, 0, newListeners, 0, registrations.length);
+        newListeners[registrations.length] = registration;
+        listeners = newListeners;
+    }
+
+    public void removeListener(MagneticSensorEventListener listener)
+    {
+        ListenerRegistration[] registrations = listeners;
+        for (int i = 0; i < registrations.length; i++)
+        {
+            if (registrations[i].listener == listener)
+            {
+                ListenerRegistration[] newListeners =
+                        new ListenerRegistration[registrations.length - 1];
+                System.arraycopy(registrations, 0, newListeners, 0, i);
+                System.arraycopy(registrations, i + 1, newListeners, i,
+                        registrations.length - i - 1);
+                listeners = newListeners;
+                return;
+            }
+        }
+    }
+
     /**
      * @see unipi.luk3s.magneto.MagnetoFragment.MagneticSensorEventListener#onAccuracyChanged(Sensor, int, String) MagneticSensorEventListener#onAccuracyChanged
      */
@@ -224,19 +738,63 @@ public class MagnetoFragment extends Fragment implements SensorEventListener
     /**
      * Tha vast majority of applications want to use the low-pass filtered rounded values.
      */
+    @Override
     public float[] getLastRoundedReadings()
     {
-        return smaRoundedValues;
+        return pipeline.getLastRoundedReadings();
     }
 
+    @Override
     public float[] getLastHighPassReadings()
     {
-        return highPassValues;
+        return pipeline.getLastHighPassReadings();
+    }
+
+    @Override
+    public MagneticFrame getLastFrame()
+    {
+        return pipeline.getLastFrame();
+    }
+
+    /**
+     * <p>Sample listeners are called on the thread delivering the sensor events, before the
+     * {@link MagneticSensorEventListener} is notified.</p>
+     */
+    @Override
+    public void addSampleListener(MagnetoPipeline.SampleListener listener)
+    {
+        pipeline.addSampleListener(listener);
     }
 
     @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy)
+    public void removeSampleListener(MagnetoPipeline.SampleListener listener)
+    {
+        pipeline.removeSampleListener(listener);
+    }
+
+    /** The pipeline processing the samples sensed by the compass sensor */
+    public MagnetoPipeline getPipeline()
     {
+        return pipeline;
+    }
+
+    @Override
+    public void onAccuracyChanged(final Sensor sensor, final int accuracy)
+    {
+        if (Looper.myLooper() != Looper.getMainLooper())
+        {
+            // Toasts and listeners belong to the main thread
+            mainThreadHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    onAccuracyChanged(sensor, accuracy);
+                }
+            });
+            return;
+        }
+
         String accuracyToString = "";
 
         switch (accuracy)
@@ -259,26 +817,227 @@ public class MagnetoFragment extends Fragment implements SensorEventListener
             Toast.makeText(getActivity(),
                     "Compass Accuracy: " + accuracyToString, Toast.LENGTH_LONG).show();
 
-        magneticSensorEventListener.onAccuracyChanged(sensor, accuracy, accuracyToString);
+        ListenerRegistration[] registrations = listeners;
+        for (int i = 0; i < registrations.length; i++)
+            registrations[i].listener.onAccuracyChanged(sensor, accuracy, accuracyToString);
     }
 
     @Override
     public void onSensorChanged(SensorEvent sensorEvent)
     {
-        sma.updateSMA(sensorEvent.values[0], sensorEvent.values[1], sensorEvent.values[2]);
+        MagnetoMetrics metrics = this.metrics;
+        if (metrics == null)
+        {
+            handleSensorEvent(sensorEvent);
+            return;
+        }
 
-        smaValues = sma.getValues();
+        long start = System.nanoTime();
+        handleSensorEvent(sensorEvent);
+        metrics.record(MagnetoMetrics.SENSOR_CALLBACK, System.nanoTime() - start);
+    }
 
-        smaRoundedValues[0] = round(smaValues[0]);
-        smaRoundedValues[1] = round(smaValues[1]);
-        smaRoundedValues[2] = round(smaValues[2]);
+    private void handleSensorEvent(SensorEvent sensorEvent)
+    {
+        MagnetoTraceWriter writer = traceWriter;
+        if (writer != null)
+            record(writer, sensorEvent);
 
-        highPassValues[0] = round(sensorEvent.values[0] - smaValues[0]);
-        highPassValues[1] = round(sensorEvent.values[1] - smaValues[1]);
-        highPassValues[2] = round(sensorEvent.values[2] - smaValues[2]);
+        if (isBatching)
+        {
+            if (sampleBatch.isFull())
+                processSampleBatch();
+
+            sampleBatch.add(sensorEvent.timestamp,
+                    sensorEvent.values[0], sensorEvent.values[1], sensorEvent.values[2]);
+
+            if (!isBatchProcessingPending)
+            {
+                isBatchProcessingPending = true;
+                sensorHandler.post(processSampleBatch);
+            }
+            return;
+        }
 
-        magneticSensorEventListener.onSensorChanged(sensorEvent, smaValues, smaRoundedValues,
-                highPassValues);
+        // Batching has just been disabled: the burst received before comes first
+        if (!sampleBatch.isEmpty())
+            processSampleBatch();
+
+        pipeline.process(sensorEvent.timestamp, sensorEvent.values);
+        deliverLastSample(sensorEvent);
+    }
+
+    private void record(MagnetoTraceWriter writer, SensorEvent sensorEvent)
+    {
+        try
+        {
+            writer.write(sensorEvent.timestamp, sensorEvent.values[0], sensorEvent.values[1],
+                    sensorEvent.values[2], sensorEvent.accuracy);
+        }
+        catch (IOException e)
+        {
+            // The recording has been stopped meanwhile, or the file cannot be written anymore
+            if (traceWriter == writer)
+            {
+                Log.w(TAG, "Recording stopped after " + writer.getWrittenRecords() + " samples", e);
+                recordingFailure = e;
+                traceWriter = null;
+                try
+                {
+                    writer.close();
+                }
+                catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Runs on the thread receiving the sensor events, once the whole burst has been received.
+     */
+    private void processSampleBatch()
+    {
+        isBatchProcessingPending = false;
+        if (sampleBatch.isEmpty())
+            return;
+
+        pipeline.process(sampleBatch);
+        MagnetoMetrics metrics = this.metrics;
+        if (metrics != null)
+        {
+            metrics.add(MagnetoMetrics.BATCHES_PROCESSED, 1);
+            // Only the last sample of the burst is delivered to the listeners
+            metrics.add(MagnetoMetrics.SAMPLES_COALESCED, sampleBatch.size() - 1);
+        }
+        sampleBatch.clear();
+        deliverLastSample(null);
+    }
+
+    /**
+     * Delivers the last sample processed by the pipeline to the listener, on the main thread.
+     */
+    private void deliverLastSample(SensorEvent sensorEvent)
+    {
+        if (Looper.myLooper() == Looper.getMainLooper())
+        {
+            dispatch(sensorEvent, pipeline.getLastReadings(), pipeline.getLastRoundedReadings(),
+                    pipeline.getLastHighPassReadings(), pipeline.getLastTimestamp(),
+                    pipeline.getProcessedSamples());
+            return;
+        }
+
+        synchronized (pendingSampleLock)
+        {
+            System.arraycopy(pipeline.getLastReadings(), 0, pendingSmaValues, 0, 3);
+            System.arraycopy(pipeline.getLastRoundedReadings(), 0, pendingSmaRoundedValues, 0, 3);
+            System.arraycopy(pipeline.getLastHighPassReadings(), 0, pendingHighPassValues, 0, 3);
+            pendingTimestamp = pipeline.getLastTimestamp();
+            pendingSampleNumber = pipeline.getProcessedSamples();
+
+            if (!isDispatchPending)
+            {
+                isDispatchPending = true;
+                mainThreadHandler.post(dispatchPendingSample);
+            }
+            else
+            {
+                MagnetoMetrics metrics = this.metrics;
+                if (metrics != null)
+                    metrics.add(MagnetoMetrics.SAMPLES_COALESCED, 1);
+            }
+        }
+    }
+
+    /** Runs on the main thread, delivers the most recent sample processed in background */
+    private void dispatchPendingSample()
+    {
+        long timestamp, sampleNumber;
+        synchronized (pendingSampleLock)
+        {
+            if (!isDispatchPending)
+                return;
+
+            System.arraycopy(pendingSmaValues, 0, deliveredSmaValues, 0, 3);
+            System.arraycopy(pendingSmaRoundedValues, 0, deliveredSmaRoundedValues, 0, 3);
+            System.arraycopy(pendingHighPassValues, 0, deliveredHighPassValues, 0, 3);
+            timestamp = pendingTimestamp;
+            sampleNumber = pendingSampleNumber;
+            isDispatchPending = false;
+        }
+
+        dispatch(null, deliveredSmaValues, deliveredSmaRoundedValues, deliveredHighPassValues,
+                timestamp, sampleNumber);
+    }
+
+    /** Runs on the main thread, calls the listeners the sample is due to */
+    private void dispatch(SensorEvent sensorEvent, float[] smaValues, float[] smaRoundedValues,
+                          float[] highPassValues, long timestamp, long sampleNumber)
+    {
+        MagnetoMetrics metrics = this.metrics;
+        if (metrics == null)
+        {
+            callListeners(sensorEvent, smaValues, smaRoundedValues, highPassValues, timestamp,
+                    sampleNumber);
+            return;
+        }
+
+        long start = System.nanoTime();
+        // The timestamps of the sensor events are in the elapsed realtime base
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1)
+            metrics.record(MagnetoMetrics.SENSOR_TO_DISPATCH,
+                    SystemClock.elapsedRealtimeNanos() - timestamp);
+
+        int skipped = callListeners(sensorEvent, smaValues, smaRoundedValues, highPassValues,
+                timestamp, sampleNumber);
+
+        metrics.record(MagnetoMetrics.DISPATCH, System.nanoTime() - start);
+        metrics.add(MagnetoMetrics.SAMPLES_DISPATCHED, 1);
+        if (skipped > 0)
+            metrics.add(MagnetoMetrics.DELIVERIES_DECIMATED, skipped);
+    }
+
+    /**
+     * @return the number of listeners the sample was not due to
+     */
+    private int callListeners(SensorEvent sensorEvent, float[] smaValues,
+                              float[] smaRoundedValues, float[] highPassValues, long timestamp,
+                              long sampleNumber)
+    {
+        ListenerRegistration[] registrations = listeners;
+        int skipped = 0;
+        for (int i = 0; i < registrations.length; i++)
+        {
+            if (registrations[i].decimator.shouldDeliver(timestamp, sampleNumber))
+                registrations[i].listener.onSensorChanged(sensorEvent, smaValues,
+                        smaRoundedValues, highPassValues);
+            else
+                skipped++;
+        }
+        return skipped;
+    }
+
+    /** The governor and the helper providing its thresholds, replaced together */
+    private static final class AdaptiveSampling
+    {
+        final SamplingRateGovernor governor;
+        final RapidChangesHelper helper;
+
+        AdaptiveSampling(SamplingRateGovernor governor, RapidChangesHelper helper)
+        {
+            this.governor = governor;
+            this.helper = helper;
+        }
+    }
+
+    private static final class ListenerRegistration
+    {
+        final MagneticSensorEventListener listener;
+        final SampleDecimator decimator;
+
+        ListenerRegistration(MagneticSensorEventListener listener, SampleDecimator decimator)
+        {
+            this.listener = listener;
+            this.decimator = decimator;
+        }
     }
 
 }
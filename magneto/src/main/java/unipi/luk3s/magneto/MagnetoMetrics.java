@@ -0,0 +1,166 @@
+package unipi.luk3s.magneto;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Counters and latency histograms of the hot path, to find out on a real device how long the
+ * processing takes and whether the samples are delivered late. Metrics are enabled by passing an
+ * instance to {@link MagnetoFragment#setMetrics(MagnetoMetrics)} (or to
+ * {@link MagnetoPipeline#setMetrics(MagnetoMetrics)}) and read from any thread:</p>
+ *
+ * <pre class="prettyprint">
+ * MagnetoMetrics metrics = new MagnetoMetrics();
+ * magneto.setMetrics(metrics);
+ * ...
+ * long p99 = metrics.getHistogram(MagnetoMetrics.DISPATCH).getValueAtPercentile(99);
+ * Log.i(TAG, metrics.snapshot().toString());
+ * </pre>
+ *
+ * <p>Disabled metrics (the default) cost a null check per sample. Enabled metrics cost two calls
+ * to {@link System#nanoTime()} per measured section and a few ordered stores, and never
+ * allocate. Every counter and every histogram is only updated by one thread (the one processing
+ * the samples, or the main thread), see the constants.</p>
+ */
+public class MagnetoMetrics
+{
+    /** Counter: samples processed by the pipeline (on the processing thread) */
+    public static final int SAMPLES_PROCESSED = 0;
+    /** Counter: bursts of samples delivered by the hardware FIFO (on the processing thread) */
+    public static final int BATCHES_PROCESSED = 1;
+    /**
+     * Counter: samples processed but never delivered to the
+     * {@link MagnetoFragment.MagneticSensorEventListener}s, because a more recent one replaced them
+     * (background processing and batching, on the processing thread)
+     */
+    public static final int SAMPLES_COALESCED = 2;
+    /** Counter: samples delivered to the listeners (on the main thread) */
+    public static final int SAMPLES_DISPATCHED = 3;
+    /**
+     * Counter: deliveries skipped because a listener asked for fewer samples, see
+     * {@link MagnetoFragment#addListener(MagnetoFragment.MagneticSensorEventListener, int, float)}
+     * (on the main thread)
+     */
+    public static final int DELIVERIES_DECIMATED = 4;
+
+    /**
+     * Histogram: duration of every SensorEventListener.onSensorChanged call of the fragment (on
+     * the processing thread)
+     */
+    public static final int SENSOR_CALLBACK = 0;
+    /**
+     * Histogram: duration of the {@link MagnetoPipeline.SampleListener}s (the helpers) for every
+     * sample (on the processing thread)
+     */
+    public static final int HELPERS = 1;
+    /** Histogram: duration of the calls to the listeners for every sample (on the main thread) */
+    public static final int DISPATCH = 2;
+    /**
+     * Histogram: time from the sensing of a sample (its timestamp) to its delivery to the
+     * listeners (on the main thread, API 17+ only)
+     */
+    public static final int SENSOR_TO_DISPATCH = 3;
+
+    private static final String[] COUNTER_NAMES = {"samples processed", "batches processed",
+            "samples coalesced", "samples dispatched", "deliveries decimated"};
+    private static final String[] HISTOGRAM_NAMES = {"sensor callback", "helpers", "dispatch",
+            "sensor to dispatch"};
+
+    private final AtomicLongArray counters;
+    private final LatencyHistogram[] histograms;
+
+    public MagnetoMetrics()
+    {
+        counters = new AtomicLongArray(COUNTER_NAMES.length);
+        histograms = new LatencyHistogram[HISTOGRAM_NAMES.length];
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i] = new LatencyHistogram();
+    }
+
+    /**
+     * @param counter one of the counter constants, e.g. {@link #SAMPLES_PROCESSED}
+     */
+    public long getCounter(int counter)
+    {
+        return counters.get(counter);
+    }
+
+    /**
+     * @param histogram one of the histogram constants, e.g. {@link #DISPATCH}
+     */
+    public LatencyHistogram getHistogram(int histogram)
+    {
+        return histograms[histogram];
+    }
+
+    /** Adds to a counter, always from the same thread */
+    void add(int counter, long delta)
+    {
+        counters.lazySet(counter, counters.get(counter) + delta);
+    }
+
+    /** Records a duration, always from the same thread */
+    void record(int histogram, long nanos)
+    {
+        histograms[histogram].record(nanos);
+    }
+
+    /**
+     * <p>Clears the counters and the histograms. Values updated meanwhile by another thread may
+     * be lost.</p>
+     */
+    public void reset()
+    {
+        for (int i = 0; i < counters.length(); i++)
+            counters.lazySet(i, 0);
+        for (LatencyHistogram histogram : histograms)
+            histogram.reset();
+    }
+
+    /**
+     * @return a copy of the current metrics, which is not updated anymore
+     */
+    public MagnetoMetrics snapshot()
+    {
+        MagnetoMetrics snapshot = new MagnetoMetrics();
+        for (int i = 0; i < counters.length(); i++)
+            snapshot.counters.lazySet(i, counters.get(i));
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i].copyInto(snapshot.histograms[i]);
+        return snapshot;
+    }
+
+    /**
+     * <p>Appends the metrics as text, the counters first and then one line per histogram with
+     * its percentiles in microseconds.</p>
+     */
+    public void dump(StringBuilder text)
+    {
+        for (int i = 0; i < COUNTER_NAMES.length; i++)
+            text.append(String.format(Locale.ROOT, "%-22s %12d%n", COUNTER_NAMES[i],
+                    counters.get(i)));
+
+        text.append(String.format(Locale.ROOT, "%-22s %10s %10s %10s %10s %10s %10s %10s%n",
+                "latency (us)", "count", "mean", "p50", "p90", "p99", "p99.9", "max"));
+        for (int i = 0; i < HISTOGRAM_NAMES.length; i++)
+        {
+            LatencyHistogram histogram = histograms[i];
+            text.append(String.format(Locale.ROOT,
+                    "%-22s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    HISTOGRAM_NAMES[i], histogram.getCount(), histogram.getMean() / 1000,
+                    histogram.getValueAtPercentile(50) / 1000.0,
+                    histogram.getValueAtPercentile(90) / 1000.0,
+                    histogram.getValueAtPercentile(99) / 1000.0,
+                    histogram.getValueAtPercentile(99.9) / 1000.0,
+                    histogram.getMax() / 1000.0));
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder text = new StringBuilder();
+        dump(text);
+        return text.toString();
+    }
+}
@@ -0,0 +1,338 @@
+package unipi.luk3s.magneto;
+
+import static unipi.luk3s.magneto.MagnetoUtils.round;
+import static unipi.luk3s.magneto.MagnetoUtils.roundFast;
+
+/**
+ * <p>The processing core of the library. It does not depend on any Android class, so it can be
+ * used on a plain JVM (trace replay, benchmarks, unit tests) exactly as it is used on a device by
+ * {@link MagnetoFragment}.</p>
+ *
+ * <p>Every time a new sample of the magnetic field is available, the
+ * {@link #process(long, float, float, float)} method has to be called. The pipeline:</p>
+ * <ul>
+ * <li>resets the low-pass filter if the sample comes after a gap (see
+ * {@link #setMaxSampleGapMillis(int)});</li>
+ * <li>updates the low-pass {@link MagneticFilter} (a {@link SimpleMovingAverage} unless
+ * specified otherwise);</li>
+ * <li>computes the low-pass values rounded to 2 decimal places;</li>
+ * <li>computes the high-pass values, i.e. the raw values minus the low-pass ones;</li>
+ * <li>invalidates the {@link MagneticFrame} of the previous sample;</li>
+ * <li>notifies the registered {@link SampleListener}s.</li>
+ * </ul>
+ *
+ * <p>The *Helper classes can be built on top of a pipeline (it is a
+ * {@link MagneticReadingsSource}) and queried from a {@link SampleListener}.</p>
+ *
+ * <p>By default the values are rounded with {@link MagnetoUtils#roundFast(float)}, which only
+ * uses float arithmetic. Call {@link #setBitExactRounding(boolean)} to get exactly the same
+ * values produced by {@link MagnetoUtils#round(double)} (i.e. by older versions of the
+ * library).</p>
+ *
+ * <p>The time taken by the listeners can be measured with {@link #setMetrics(MagnetoMetrics)}.</p>
+ *
+ * <p>A pipeline is not thread-safe: all the methods are expected to be called from the thread
+ * delivering the samples.</p>
+ */
+public class MagnetoPipeline implements MagneticReadingsSource
+{
+    /** The longest interval between two samples that does not reset the filter, by default */
+    public static final int DEFAULT_MAX_SAMPLE_GAP_MILLIS = 500;
+
+    private static final SampleListener[] NO_LISTENERS = new SampleListener[0];
+
+    private MagneticFilter filter;
+    // The same filter if it takes the timestamps into account, null otherwise
+    private TimestampedMagneticFilter timestampedFilter;
+    private long maxSampleGapNanos;
+    private final float[] rawValues;
+    private final float[] smaValues;
+    private final float[] smaRoundedValues;
+    private final float[] highPassValues;
+    private final MagneticFrame frame;
+    private long lastTimestamp;
+    private long processedSamples;
+    private boolean bitExactRounding;
+    private MagnetoMetrics metrics;
+
+    // Copy-on-write: replaced (never modified) when a listener is added or removed, volatile
+    // since helpers register on the main thread while the samples are processed on another
+    private volatile SampleListener[] sampleListeners;
+
+    public MagnetoPipeline()
+    {
+        this(new SimpleMovingAverage());
+    }
+
+    public MagnetoPipeline(MagneticFilter filter)
+    {
+        setFilter(filter);
+        maxSampleGapNanos = DEFAULT_MAX_SAMPLE_GAP_MILLIS * 1000000L;
+        rawValues = new float[3];
+        smaValues = new float[3];
+        smaRoundedValues = new float[3];
+        highPassValues = new float[3];
+        frame = new MagneticFrame(smaRoundedValues, highPassValues);
+        sampleListeners = NO_LISTENERS;
+    }
+
+    /**
+     * <p>Feeds a new sample of the magnetic field to the pipeline.</p>
+     *
+     * @param timestampNanos the time in nanoseconds at which the sample was sensed (on a device
+     *                       it is {@code sensorEvent.timestamp})
+     * @param xMagneticField the x coordinate of the magnetic field
+     * @param yMagneticField the y coordinate of the magnetic field
+     * @param zMagneticField the z coordinate of the magnetic field
+     */
+    public void process(long timestampNanos,
+                        float xMagneticField, float yMagneticField, float zMagneticField)
+    {
+        // A pause (e.g. the fragment was paused) or a timestamp going backwards: the values in
+        // the filter are not related to the new ones anymore
+        if (maxSampleGapNanos > 0 && processedSamples > 0
+                && (timestampNanos - lastTimestamp > maxSampleGapNanos
+                    || timestampNanos < lastTimestamp))
+            filter.reset();
+
+        lastTimestamp = timestampNanos;
+        processedSamples++;
+
+        rawValues[0] = xMagneticField;
+        rawValues[1] = yMagneticField;
+        rawValues[2] = zMagneticField;
+
+        if (timestampedFilter != null)
+            timestampedFilter.update(timestampNanos, xMagneticField, yMagneticField, zMagneticField);
+        else
+            filter.update(xMagneticField, yMagneticField, zMagneticField);
+
+        smaValues[0] = filter.getX();
+        smaValues[1] = filter.getY();
+        smaValues[2] = filter.getZ();
+
+        if (bitExactRounding)
+        {
+            smaRoundedValues[0] = round(smaValues[0]);
+            smaRoundedValues[1] = round(smaValues[1]);
+            smaRoundedValues[2] = round(smaValues[2]);
+
+            highPassValues[0] = round(xMagneticField - smaValues[0]);
+            highPassValues[1] = round(yMagneticField - smaValues[1]);
+            highPassValues[2] = round(zMagneticField - smaValues[2]);
+        }
+        else
+        {
+            smaRoundedValues[0] = roundFast(smaValues[0]);
+            smaRoundedValues[1] = roundFast(smaValues[1]);
+            smaRoundedValues[2] = roundFast(smaValues[2]);
+
+            highPassValues[0] = roundFast(xMagneticField - smaValues[0]);
+            highPassValues[1] = roundFast(yMagneticField - smaValues[1]);
+            highPassValues[2] = roundFast(zMagneticField - smaValues[2]);
+        }
+
+        frame.invalidate();
+
+        MagnetoMetrics metrics = this.metrics;
+        if (metrics == null)
+        {
+            notifySampleListeners();
+            return;
+        }
+
+        long start = System.nanoTime();
+        notifySampleListeners();
+        metrics.record(MagnetoMetrics.HELPERS, System.nanoTime() - start);
+        metrics.add(MagnetoMetrics.SAMPLES_PROCESSED, 1);
+    }
+
+    private void notifySampleListeners()
+    {
+        SampleListener[] listeners = sampleListeners;
+        for (int i = 0; i < listeners.length; i++)
+            listeners[i].onSampleProcessed(this);
+    }
+
+    /**
+     * @param magneticSensorEventValues Check the <i>Note</i> of the
+     *               {@link MagnetoUtils MagnetoUtils} class.
+     * @see #process(long, float, float, float)
+     */
+    public void process(long timestampNanos, float[] magneticSensorEventValues)
+    {
+        process(timestampNanos, magneticSensorEventValues[0], magneticSensorEventValues[1],
+                magneticSensorEventValues[2]);
+    }
+
+    /**
+     * <p>Feeds all the samples of a batch to the pipeline, in order. Every sample goes through
+     * exactly the same steps of {@link #process(long, float, float, float)} (the
+     * {@link SampleListener}s are notified once per sample, with its own timestamp), so the
+     * results do not depend on how the samples are grouped in batches. The batch is not
+     * cleared.</p>
+     */
+    public void process(MagneticSampleBatch batch)
+    {
+        int size = batch.size();
+        for (int i = 0; i < size; i++)
+            process(batch.getTimestamp(i), batch.getX(i), batch.getY(i), batch.getZ(i));
+    }
+
+    /**
+     * <p>Replaces the low-pass filter. The new filter starts from the next sample processed.</p>
+     */
+    public void setFilter(MagneticFilter filter)
+    {
+        this.filter = filter;
+        timestampedFilter = (filter instanceof TimestampedMagneticFilter) ?
+                (TimestampedMagneticFilter) filter : null;
+    }
+
+    public MagneticFilter getFilter()
+    {
+        return filter;
+    }
+
+    /**
+     * <p>When two consecutive samples are more than the given interval apart, or the timestamps
+     * go backwards, the low-pass filter is reset before processing the second one, so that
+     * values sensed before a pause do not leak into the ones sensed after it (the high-pass
+     * values would show a spurious rapid change). The default is
+     * {@value #DEFAULT_MAX_SAMPLE_GAP_MILLIS} ms, 0 disables the reset.</p>
+     */
+    public void setMaxSampleGapMillis(int maxSampleGapMillis)
+    {
+        maxSampleGapNanos = maxSampleGapMillis * 1000000L;
+    }
+
+    public int getMaxSampleGapMillis()
+    {
+        return (int) (maxSampleGapNanos / 1000000L);
+    }
+
+    /**
+     * @param bitExactRounding if {@code true} the values are rounded with
+     *                         {@link MagnetoUtils#round(double)}, otherwise with the faster
+     *                         {@link MagnetoUtils#roundFast(float)}.
+     */
+    public void setBitExactRounding(boolean bitExactRounding)
+    {
+        this.bitExactRounding = bitExactRounding;
+    }
+
+    public boolean isBitExactRounding()
+    {
+        return bitExactRounding;
+    }
+
+    /**
+     * <p>Starts counting the samples processed and measuring the time taken by the
+     * {@link SampleListener}s on every sample, or stops if {@code null} (the default).</p>
+     */
+    public void setMetrics(MagnetoMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    public MagnetoMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    @Override
+    public void addSampleListener(SampleListener listener)
+    {
+        SampleListener[] listeners = sampleListeners;
+        for (SampleListener registered : listeners)
+            if (registered == listener)
+                return;
+
+        SampleListener[] newListeners = new SampleListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, newListeners, 0, listeners.length);
+        newListeners[listeners.length] = listener;
+        sampleListeners = newListeners;
+    }
+
+    @Override
+    public void removeSampleListener(SampleListener listener)
+    {
+        SampleListener[] listeners = sampleListeners;
+        for (int i = 0; i < listeners.length; i++)
+        {
+            if (listeners[i] == listener)
+            {
+                SampleListener[] newListeners = new SampleListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, newListeners, 0, i);
+                System.arraycopy(listeners, i + 1, newListeners, i, listeners.length - i - 1);
+                sampleListeners = newListeners;
+                return;
+            }
+        }
+    }
+
+    /** The raw values of the last sample processed */
+    public float[] getLastRawReadings()
+    {
+        return rawValues;
+    }
+
+    /** The low-pass filtered values (not rounded) of the last sample processed */
+    public float[] getLastReadings()
+    {
+        return smaValues;
+    }
+
+    @Override
+    public float[] getLastRoundedReadings()
+    {
+        return smaRoundedValues;
+    }
+
+    @Override
+    public float[] getLastHighPassReadings()
+    {
+        return highPassValues;
+    }
+
+    @Override
+    public MagneticFrame getLastFrame()
+    {
+        return frame;
+    }
+
+    /** The timestamp (in nanoseconds) of the last sample processed */
+    public long getLastTimestamp()
+    {
+        return lastTimestamp;
+    }
+
+    /** The number of samples processed since the pipeline was created */
+    public long getProcessedSamples()
+    {
+        return processedSamples;
+    }
+
+    /**
+     * <p>Used for receiving notifications from a {@link MagnetoPipeline} when a new sample has
+     * been processed. The listener is called on the thread feeding the pipeline, right after the
+     * filtered values have been updated, so it is the natural place to query the *Helper
+     * classes.</p>
+     *
+     * <p>The listeners of the helpers (e.g. {@link RapidChangesHelper.TapListener}) are built on
+     * it: while one is set, the helper registers itself as a SampleListener of its
+     * {@link MagneticReadingsSource}, checks every sample by itself once its initialisation has
+     * ended, and notifies only what it detects. With a {@link MagnetoFragment} this happens on
+     * the thread processing the sensor samples (see
+     * {@link MagnetoFragment#setBackgroundProcessing(boolean)}), and the polling methods of the
+     * helper should not be called meanwhile, since they update the same state.</p>
+     */
+    public interface SampleListener
+    {
+        /**
+         * @param pipeline the pipeline that processed the sample. The arrays it returns are
+         *                 reused for every sample, clone them if you need to keep the values.
+         */
+        void onSampleProcessed(MagnetoPipeline pipeline);
+    }
+}
@@ -0,0 +1,197 @@
+package unipi.luk3s.magneto;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import static unipi.luk3s.magneto.MagnetoTraceWriter.HEADER_SIZE;
+import static unipi.luk3s.magneto.MagnetoTraceWriter.MAGIC;
+import static unipi.luk3s.magneto.MagnetoTraceWriter.RECORD_SIZE;
+import static unipi.luk3s.magneto.MagnetoTraceWriter.VERSION;
+
+/**
+ * <p>Reads the recordings produced by {@link MagnetoTraceWriter}. The file is memory-mapped, so
+ * samples are read directly from the page cache without copying them in intermediate buffers,
+ * and a recording can be replayed at unlimited speed on a plain JVM.</p>
+ *
+ * <p>A recording is replayed by feeding its samples to a {@link MagnetoPipeline} with
+ * {@link #replay(MagnetoPipeline)}: the *Helper classes built on top of the pipeline can be
+ * queried from a {@link MagnetoPipeline.SampleListener} exactly as they are on a device, e.g. to
+ * evaluate new thresholds on old captures:</p>
+ *
+ * <pre class="prettyprint">
+ * MagnetoPipeline pipeline = new MagnetoPipeline();
+ * final RapidChangesHelper helper = new RapidChangesHelper(pipeline);
+ * helper.setLowThreshold(5);
+ * helper.setHighThreshold(30);
+ * helper.endInit();
+ * pipeline.addSampleListener(new MagnetoPipeline.SampleListener()
+ * {
+ *     public void onSampleProcessed(MagnetoPipeline pipeline)
+ *     {
+ *         helper.hasATapBeenDetected();
+ *     }
+ * });
+ *
+ * MagnetoTraceReader reader = new MagnetoTraceReader(file);
+ * reader.replay(pipeline);
+ * reader.close();
+ * int taps = helper.getTapCounter();
+ * </pre>
+ *
+ * <p>A single mapping is used, so recordings cannot be bigger than 2 GiB (about 25 days at
+ * 40 Hz).</p>
+ */
+public class MagnetoTraceReader implements Closeable
+{
+    private final RandomAccessFile file;
+    private final ByteBuffer records;
+    private final long startTimeMillis;
+    private final int size;
+
+    /**
+     * @throws IOException if the file cannot be read, it is not a recording, or it is too big
+     */
+    public MagnetoTraceReader(File traceFile) throws IOException
+    {
+        file = new RandomAccessFile(traceFile, "r");
+        try
+        {
+            long length = file.length();
+            if (length < HEADER_SIZE)
+                throw new IOException("Not a magneto trace, the file is too short: " + traceFile);
+            if (length > Integer.MAX_VALUE)
+                throw new IOException("The trace is too big to be mapped: " + traceFile);
+
+            ByteBuffer mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+
+            if (mapped.getInt(0) != MAGIC)
+                throw new IOException("Not a magneto trace: " + traceFile);
+            if (mapped.getShort(4) != VERSION || mapped.getShort(6) != RECORD_SIZE)
+                throw new IOException("Unsupported magneto trace version " + mapped.getShort(4)
+                        + ": " + traceFile);
+
+            startTimeMillis = mapped.getLong(8);
+            // A truncated last record (e.g. the app was killed while writing) is ignored
+            size = (int) ((length - HEADER_SIZE) / RECORD_SIZE);
+
+            mapped.position(HEADER_SIZE);
+            records = mapped.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        catch (IOException e)
+        {
+            file.close();
+            throw e;
+        }
+    }
+
+    /** The number of samples in the recording */
+    public int size()
+    {
+        return size;
+    }
+
+    /** The wall-clock time, in milliseconds, at which the recording started */
+    public long getStartTimeMillis()
+    {
+        return startTimeMillis;
+    }
+
+    public long getTimestamp(int index)
+    {
+        return records.getLong(index * RECORD_SIZE);
+    }
+
+    public float getX(int index)
+    {
+        return records.getFloat(index * RECORD_SIZE + 8);
+    }
+
+    public float getY(int index)
+    {
+        return records.getFloat(index * RECORD_SIZE + 12);
+    }
+
+    public float getZ(int index)
+    {
+        return records.getFloat(index * RECORD_SIZE + 16);
+    }
+
+    /** One of the SensorManager.SENSOR_STATUS_* constants */
+    public int getAccuracy(int index)
+    {
+        return records.get(index * RECORD_SIZE + 20);
+    }
+
+    /**
+     * <p>Feeds all the samples of the recording to the pipeline, as fast as possible.</p>
+     *
+     * @return the number of samples processed
+     */
+    public int replay(MagnetoPipeline pipeline)
+    {
+        return replay(pipeline, 0, size);
+    }
+
+    /**
+     * <p>Feeds the samples in the range [from, to) to the pipeline, as fast as possible.</p>
+     *
+     * @return the number of samples processed
+     * @throws IndexOutOfBoundsException if the range is not within the recording
+     */
+    public int replay(MagnetoPipeline pipeline, int from, int to)
+    {
+        checkRange(from, to);
+
+        for (int offset = from * RECORD_SIZE, end = to * RECORD_SIZE; offset < end;
+             offset += RECORD_SIZE)
+        {
+            pipeline.process(records.getLong(offset), records.getFloat(offset + 8),
+                    records.getFloat(offset + 12), records.getFloat(offset + 16));
+        }
+        return to - from;
+    }
+
+    /**
+     * <p>Copies the samples starting at the given index in the batch, until either the batch is
+     * full or the recording ends.</p>
+     *
+     * @return the number of samples added to the batch
+     */
+    public int read(int from, MagneticSampleBatch batch)
+    {
+        checkRange(from, size);
+
+        int added = 0;
+        for (int offset = from * RECORD_SIZE, end = size * RECORD_SIZE;
+             offset < end && !batch.isFull(); offset += RECORD_SIZE)
+        {
+            batch.add(records.getLong(offset), records.getFloat(offset + 8),
+                    records.getFloat(offset + 12), records.getFloat(offset + 16));
+            added++;
+        }
+        return added;
+    }
+
+    /**
+     * <p>Closes the file. The memory mapping is released by the garbage collector, the reader
+     * must not be used anymore.</p>
+     */
+    @Override
+    public void close() throws IOException
+    {
+        file.close();
+    }
+
+    private void checkRange(int from, int to)
+    {
+        if (from < 0 || to > size || from > to)
+            throw new IndexOutOfBoundsException(
+                    "Range [" + from + ", " + to + ") out of a trace of " + size + " samples");
+    }
+}
@@ -0,0 +1,155 @@
+package unipi.luk3s.magneto;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>Records a stream of raw compass sensor samples to a file, in a compact binary format meant
+ * for long field captures. The samples can be read back, and processed again, with
+ * {@link MagnetoTraceReader}.</p>
+ *
+ * <p>The file is made of a {@value #HEADER_SIZE} bytes header followed by one
+ * {@value #RECORD_SIZE} bytes record per sample. All the values are little-endian.</p>
+ * <ul>
+ * <li>Header: magic number {@link #MAGIC} ("MGTR", int), format version (short), record size
+ * (short), wall-clock time at which the recording started in milliseconds (long).</li>
+ * <li>Record: timestamp in nanoseconds (long), raw magnetic field along x, y, z in µT (3
+ * floats), accuracy as one of the SensorManager.SENSOR_STATUS_* constants (byte), 3 padding
+ * bytes.</li>
+ * </ul>
+ *
+ * <p>Records are accumulated in a direct buffer allocated once, and written to the file through
+ * a {@link FileChannel} only when the buffer is full: the memory used is bounded whatever the
+ * length of the recording, and {@link #write(long, float, float, float, int)} does not allocate.
+ * Since a full buffer is written on the thread calling it, prefer recording on a background
+ * thread (see {@link MagnetoFragment#setBackgroundProcessing(boolean)}).</p>
+ *
+ * <p>The methods are synchronized, so a writer can be closed from a thread other than the one
+ * recording.</p>
+ */
+public class MagnetoTraceWriter implements Closeable
+{
+    /** "MGTR" read as a little-endian int */
+    public static final int MAGIC = 0x5254474D;
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 24;
+    /** The number of records buffered in memory when none is specified (96 KiB) */
+    public static final int DEFAULT_BUFFERED_RECORDS = 4096;
+
+    private final FileOutputStream outputStream;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private long writtenRecords;
+    private boolean closed;
+
+    public MagnetoTraceWriter(File file) throws IOException
+    {
+        this(file, DEFAULT_BUFFERED_RECORDS);
+    }
+
+    /**
+     * <p>Creates the file (overwriting it if it already exists) and writes the header.</p>
+     *
+     * @param bufferedRecords the number of records kept in memory before writing them
+     * @throws IllegalArgumentException if the number of buffered records is not positive
+     */
+    public MagnetoTraceWriter(File file, int bufferedRecords) throws IOException
+    {
+        if (bufferedRecords <= 0)
+            throw new IllegalArgumentException(
+                    "The number of buffered records must be positive: " + bufferedRecords);
+
+        buffer = ByteBuffer.allocateDirect(bufferedRecords * RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        outputStream = new FileOutputStream(file);
+        channel = outputStream.getChannel();
+
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.putShort((short) RECORD_SIZE);
+        buffer.putLong(System.currentTimeMillis());
+        try
+        {
+            writeBuffer();
+        }
+        catch (IOException e)
+        {
+            outputStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * <p>Appends a sample to the recording.</p>
+     *
+     * @param timestampNanos the time in nanoseconds at which the sample was sensed
+     * @param accuracy one of the SensorManager.SENSOR_STATUS_* constants
+     * @throws IOException if the buffer had to be written to the file and the operation failed,
+     *                     or if the writer has already been closed
+     */
+    public synchronized void write(long timestampNanos,
+                                   float xMagneticField, float yMagneticField, float zMagneticField,
+                                   int accuracy) throws IOException
+    {
+        if (closed)
+            throw new IOException("The trace writer has been closed");
+
+        if (buffer.remaining() < RECORD_SIZE)
+            writeBuffer();
+
+        buffer.putLong(timestampNanos);
+        buffer.putFloat(xMagneticField);
+        buffer.putFloat(yMagneticField);
+        buffer.putFloat(zMagneticField);
+        buffer.put((byte) accuracy);
+        buffer.put((byte) 0);
+        buffer.put((byte) 0);
+        buffer.put((byte) 0);
+        writtenRecords++;
+    }
+
+    /** Writes the buffered records to the file */
+    public synchronized void flush() throws IOException
+    {
+        if (!closed)
+            writeBuffer();
+    }
+
+    /** Writes the buffered records and closes the file. Closing twice has no effect. */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (closed)
+            return;
+
+        closed = true;
+        try
+        {
+            writeBuffer();
+        }
+        finally
+        {
+            outputStream.close();
+        }
+    }
+
+    /** The number of samples recorded so far (including the ones not yet written) */
+    public synchronized long getWrittenRecords()
+    {
+        return writtenRecords;
+    }
+
+    private void writeBuffer() throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+}
@@ -18,6 +18,19 @@ public class MagnetoUtils
         return (float)Math.round(num*100)/100;
     }
 
+    /**
+     * <p>Round a number to 2 decimal places using float arithmetic only (no widening to double,
+     * no long rounding). It is the one used on the per-sample hot path.</p>
+     *
+     * <p><b>Note:</b> the product {@code num*100} is computed in single precision, so values
+     * lying (almost) exactly halfway between two hundredths may be rounded 0.01 away from the
+     * result of {@link #round(double)}. If bit-exact results are needed use the latter.</p>
+     */
+    public static float roundFast(float num)
+    {
+        return Math.round(num*100f)/100f;
+    }
+
     /**
      * @param magneticSensorEventValues Check the <i>Note</i> of the
      *               {@link MagnetoUtils MagnetoUtils} class.
@@ -49,6 +62,12 @@ public class MagnetoUtils
         return round(computeNorm(magneticSensorEventValues));
     }
 
+    /** The euclidean norm of the vector (x, y, z) */
+    public static float hypot3(float x, float y, float z)
+    {
+        return (float) Math.sqrt(x*x + y*y + z*z);
+    }
+
 
     public static float computeAzimuth(float[] magneticSensorEventValues)
     {
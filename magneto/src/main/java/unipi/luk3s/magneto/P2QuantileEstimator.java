@@ -0,0 +1,148 @@
+package unipi.luk3s.magneto;
+
+import java.util.Arrays;
+
+/**
+ * <p>Estimates a quantile of a stream of values without storing them, with the P&sup2; algorithm
+ * (R. Jain and I. Chlamtac, "The P&sup2; algorithm for dynamic calculation of quantiles and
+ * histograms without storing observations", 1985): five markers track the minimum, the
+ * maximum, the quantile and two quantiles halfway, and their heights are adjusted with a
+ * piecewise-parabolic interpolation as the values arrive.</p>
+ *
+ * <p>Constant memory and time per value, no allocation after construction.</p>
+ */
+final class P2QuantileEstimator
+{
+    private static final int MARKERS = 5;
+
+    private final double quantile;
+    // Heights, actual positions, desired positions and increments of the desired positions
+    private final double[] heights = new double[MARKERS];
+    private final double[] positions = new double[MARKERS];
+    private final double[] desiredPositions = new double[MARKERS];
+    private final double[] increments = new double[MARKERS];
+    // The first values, before the markers are initialised
+    private final double[] firstValues = new double[MARKERS];
+    private long count;
+
+    /**
+     * @param quantile in the range (0,1), e.g. 0.5 for the median
+     * @throws IllegalArgumentException if the quantile is out of range
+     */
+    P2QuantileEstimator(double quantile)
+    {
+        if (!(quantile > 0 && quantile < 1))
+            throw new IllegalArgumentException("The quantile must be in (0,1): " + quantile);
+
+        this.quantile = quantile;
+        reset();
+    }
+
+    void reset()
+    {
+        count = 0;
+        for (int i = 0; i < MARKERS; i++)
+            positions[i] = i;
+        desiredPositions[0] = 0;
+        desiredPositions[1] = 2 * quantile;
+        desiredPositions[2] = 4 * quantile;
+        desiredPositions[3] = 2 + 2 * quantile;
+        desiredPositions[4] = 4;
+        increments[0] = 0;
+        increments[1] = quantile / 2;
+        increments[2] = quantile;
+        increments[3] = (1 + quantile) / 2;
+        increments[4] = 1;
+    }
+
+    void add(double value)
+    {
+        if (count < MARKERS)
+        {
+            heights[(int) count++] = value;
+            if (count == MARKERS)
+                Arrays.sort(heights);
+            return;
+        }
+        count++;
+
+        // The cell the value falls in, extending the extremes if needed
+        int cell;
+        if (value < heights[0])
+        {
+            heights[0] = value;
+            cell = 0;
+        }
+        else if (value >= heights[4])
+        {
+            heights[4] = value;
+            cell = 3;
+        }
+        else
+        {
+            cell = 0;
+            while (value >= heights[cell + 1])
+                cell++;
+        }
+
+        for (int i = cell + 1; i < MARKERS; i++)
+            positions[i]++;
+        for (int i = 0; i < MARKERS; i++)
+            desiredPositions[i] += increments[i];
+
+        // Move the middle markers towards their desired positions, one step at a time
+        for (int i = 1; i < MARKERS - 1; i++)
+        {
+            double offset = desiredPositions[i] - positions[i];
+            if ((offset >= 1 && positions[i + 1] - positions[i] > 1)
+                    || (offset <= -1 && positions[i - 1] - positions[i] < -1))
+            {
+                int step = (offset > 0) ? 1 : -1;
+                double height = parabolic(i, step);
+                if (!(heights[i - 1] < height && height < heights[i + 1]))
+                    height = linear(i, step);
+                heights[i] = height;
+                positions[i] += step;
+            }
+        }
+    }
+
+    /** The number of values added since the last reset */
+    long getCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return the estimate of the quantile, exact while fewer than five values have been added,
+     *          0 if none
+     */
+    double getQuantile()
+    {
+        if (count >= MARKERS)
+            return heights[2];
+        if (count == 0)
+            return 0;
+
+        // Nearest rank among the first values
+        System.arraycopy(heights, 0, firstValues, 0, (int) count);
+        Arrays.sort(firstValues, 0, (int) count);
+        int rank = (int) Math.ceil(quantile * count);
+        return firstValues[Math.max(rank, 1) - 1];
+    }
+
+    private double parabolic(int i, int step)
+    {
+        double previous = positions[i] - positions[i - 1];
+        double next = positions[i + 1] - positions[i];
+        return heights[i] + step / (positions[i + 1] - positions[i - 1])
+                * ((previous + step) * (heights[i + 1] - heights[i]) / next
+                   + (next - step) * (heights[i] - heights[i - 1]) / previous);
+    }
+
+    private double linear(int i, int step)
+    {
+        return heights[i] + step * (heights[i + step] - heights[i])
+                / (positions[i + step] - positions[i]);
+    }
+}
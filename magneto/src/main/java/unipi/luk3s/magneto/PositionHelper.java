@@ -1,5 +1,7 @@
 package unipi.luk3s.magneto;
 
+import java.util.Arrays;
+
 /**
  * <p>To be used together with {@link MagnetoFragment}.
  * Helps in identifying different positions of a magnet in space.</p>
@@ -8,13 +10,31 @@ package unipi.luk3s.magneto;
  * A threshold value is used to improve magnets recognition, the higher the threshold the
  * higher the possibility of a false positive. Once the magnet is in one of the positions, the
  * magnetic field sensed can be stored by calling {@link #storeCurrentlySensedMagneticField()}, which
- * returns the unique index in the 2D-array of stored magnetic fields (AID for short). </p>
+ * returns the unique index in the array of stored magnetic fields (AID for short). </p>
  *
  * <p>Only after the initialisation is over (i.e. all the magnetic fields have been stored),
  * the activity should query the helper by calling
  * {@link #doesCurrentlySensedMagneticFieldMatchAStoredOne()}.
  * If a match if found, i.e. the previous method returns true, it is possible to retrieve the
- * AID by calling {@link #getLastMatchedMagneticFieldIndex()} </p>
+ * AID by calling {@link #getLastMatchedMagneticFieldIndex()}. If the sensed magnetic field
+ * matches more stored ones (their threshold boxes overlap), the nearest one is chosen.</p>
+ *
+ * <p>Instead of polling, set a {@link PositionListener} with
+ * {@link #setPositionListener(PositionListener)}.</p>
+ *
+ * <p>Positions can also be changed at runtime, e.g. to recalibrate a single key of a magnetic
+ * keypad: {@link #addCurrentlySensedMagneticField()} stores a new one even after the
+ * initialisation, {@link #replaceStoredMagneticField(int)} stores the current magnetic field in
+ * place of a stored one, keeping its AID, and {@link #removeStoredMagneticField(int)} forgets
+ * one. AIDs are stable: they are assigned in increasing order and never reused, so removing a
+ * position does not change the AIDs of the others.</p>
+ *
+ * <p>The stored magnetic fields are kept in three flat arrays, one per axis, sorted by AID
+ * without gaps, which double their capacity when full. They are indexed by a k-d tree, so a
+ * query takes logarithmic time on average (instead of linear) in the number of positions:
+ * hundreds of calibrated positions, e.g. a magnetic keypad, can be matched at every sample. The
+ * tree is built by the first query after the initialisation ends, and built again by the first
+ * query following a change of the stored positions.</p>
  *
  * <p>For more information read Section 4.5.2 of
  * <a href="http://etd.adm.unipi.it/theses/available/etd-11152015-012617/">
@@ -28,68 +48,259 @@ public class PositionHelper
     public static final String THRESHOLD =
             "unipi.luk3s.magneto.PositionHelper.Threshold";
 
-    private float[][] storedMagneticFieldsAlongAxes;
+    // The first storedFields slots hold the stored magnetic fields, sorted by AID
+    private float[] storedX;
+    private float[] storedY;
+    private float[] storedZ;
+    private int[] storedAids;
+    private int storedFields;
+    private final int numberOfPositions;
+    private final KdTree3 index;
+    private boolean isIndexUpToDate;
     private float threshold;
     private int lastMatch;
     private int lastStoredFieldIndex;
-    private final MagnetoFragment magneto;
+    private final MagneticReadingsSource magneto;
+    private PositionListener positionListener;
+    // The AID of the position the magnet is in according to the listener, -1 if none
+    private int currentPosition;
+    private final MagnetoPipeline.SampleListener sampleListener =
+            new MagnetoPipeline.SampleListener()
+    {
+        @Override
+        public void onSampleProcessed(MagnetoPipeline pipeline)
+        {
+            PositionListener listener = positionListener;
+            if (listener == null || !hasInitEnded())
+                return;
+
+            int position = doesCurrentlySensedMagneticFieldMatchAStoredOne() ? lastMatch : -1;
+            if (position == currentPosition)
+                return;
+
+            int previousPosition = currentPosition;
+            currentPosition = position;
+            if (previousPosition >= 0)
+                listener.onPositionExited(PositionHelper.this, previousPosition);
+            if (position >= 0)
+                listener.onPositionEntered(PositionHelper.this, position);
+        }
+    };
 
-    public PositionHelper(MagnetoFragment magneto, int numberOfPositions, float threshold)
+    /**
+     * @param magneto a {@link MagnetoFragment}, or any other {@link MagneticReadingsSource}
+     */
+    public PositionHelper(MagneticReadingsSource magneto, int numberOfPositions, float threshold)
     {
-        storedMagneticFieldsAlongAxes = new float[numberOfPositions][3];
+        int capacity = Math.max(numberOfPositions, 1);
+        storedX = new float[capacity];
+        storedY = new float[capacity];
+        storedZ = new float[capacity];
+        storedAids = new int[capacity];
+        this.numberOfPositions = numberOfPositions;
+        index = new KdTree3();
         this.threshold = threshold;
         this.magneto = magneto;
         lastMatch = -1;
         lastStoredFieldIndex = -1;
+        currentPosition = -1;
     }
 
     /**
      * <p>Note: if the specified number of magnetic fields have already been stored, the method
-     * returns the value -1 (it means there is no more space to store new ones)</p>
+     * returns the value -1 (it means the initialisation is over, use
+     * {@link #addCurrentlySensedMagneticField()} to store more)</p>
      */
     public int storeCurrentlySensedMagneticField()
     {
         if(hasInitEnded())
             return -1;
 
+        return addCurrentlySensedMagneticField();
+    }
+
+    /**
+     * <p>Stores the currently sensed magnetic field as a new position, whether the
+     * initialisation is over or not.</p>
+     *
+     * @return the AID of the new position
+     */
+    public int addCurrentlySensedMagneticField()
+    {
+        if (storedFields == storedAids.length)
+            grow();
+
+        float[] currentMagneticField = magneto.getLastRoundedReadings();
         lastStoredFieldIndex++;
-        storedMagneticFieldsAlongAxes[lastStoredFieldIndex] =
-                magneto.getLastRoundedReadings().clone();
+        storedX[storedFields] = currentMagneticField[0];
+        storedY[storedFields] = currentMagneticField[1];
+        storedZ[storedFields] = currentMagneticField[2];
+        storedAids[storedFields] = lastStoredFieldIndex;
+        storedFields++;
+        isIndexUpToDate = false;
 
         return lastStoredFieldIndex;
     }
 
+    /**
+     * <p>Stores the currently sensed magnetic field in place of the one with the given AID.</p>
+     *
+     * @return false if there is no stored magnetic field with that AID
+     */
+    public boolean replaceStoredMagneticField(int aid)
+    {
+        int slot = findSlot(aid);
+        if (slot < 0)
+            return false;
+
+        float[] currentMagneticField = magneto.getLastRoundedReadings();
+        storedX[slot] = currentMagneticField[0];
+        storedY[slot] = currentMagneticField[1];
+        storedZ[slot] = currentMagneticField[2];
+        isIndexUpToDate = false;
+        return true;
+    }
+
+    /**
+     * <p>Forgets the stored magnetic field with the given AID. The AIDs of the other ones do not
+     * change, and the removed AID is not assigned again.</p>
+     *
+     * @return false if there is no stored magnetic field with that AID
+     */
+    public boolean removeStoredMagneticField(int aid)
+    {
+        int slot = findSlot(aid);
+        if (slot < 0)
+            return false;
+
+        int following = storedFields - slot - 1;
+        System.arraycopy(storedX, slot + 1, storedX, slot, following);
+        System.arraycopy(storedY, slot + 1, storedY, slot, following);
+        System.arraycopy(storedZ, slot + 1, storedZ, slot, following);
+        System.arraycopy(storedAids, slot + 1, storedAids, slot, following);
+        storedFields--;
+        isIndexUpToDate = false;
+        return true;
+    }
+
+    /** The number of magnetic fields currently stored */
+    public int getNumberOfStoredMagneticFields()
+    {
+        return storedFields;
+    }
+
+    /**
+     * <p>The initialisation is over once the number of positions specified in the constructor
+     * have been stored (even if some of them have been removed afterwards).</p>
+     */
     public boolean hasInitEnded()
     {
-        return (lastStoredFieldIndex == storedMagneticFieldsAlongAxes.length-1);
+        return (lastStoredFieldIndex >= numberOfPositions-1);
     }
 
+    /**
+     * <p>A stored magnetic field matches the current one if, along every axis, it is in the
+     * open interval (current-threshold, current+threshold). Among the matching ones the nearest
+     * (euclidean distance) is chosen.</p>
+     */
     public boolean doesCurrentlySensedMagneticFieldMatchAStoredOne()
     {
         float[] currentMagneticField = magneto.getLastRoundedReadings();
-        for(int i=0; i<storedMagneticFieldsAlongAxes.length; i++)
+
+        int match;
+        if (hasInitEnded())
         {
-            if(doesStoredMatchCurrent(storedMagneticFieldsAlongAxes[i], currentMagneticField))
+            if (!isIndexUpToDate)
             {
-                lastMatch = i;
-                return true;
+                index.build(storedX, storedY, storedZ, storedFields);
+                isIndexUpToDate = true;
             }
+            match = index.nearestWithin(currentMagneticField[0], currentMagneticField[1],
+                    currentMagneticField[2], threshold);
+        }
+        else
+            match = findNearestStoredField(currentMagneticField);
+
+        if (match < 0)
+            return false;
+
+        // Slots are sorted by AID, so ties are still won by the lowest AID
+        lastMatch = storedAids[match];
+        return true;
+    }
+
+    /**
+     * Linear search, used while the initialisation is in progress (the index is not built yet).
+     */
+    private int findNearestStoredField(float[] current)
+    {
+        int nearest = -1;
+        float nearestDistance = Float.POSITIVE_INFINITY;
+        for(int i=0; i<storedFields; i++)
+        {
+            if (storedX[i]>current[0]-threshold
+                    && storedX[i]<current[0]+threshold
+                    && storedY[i]>current[1]-threshold
+                    && storedY[i]<current[1]+threshold
+                    && storedZ[i]>current[2]-threshold
+                    && storedZ[i]<current[2]+threshold)
+            {
+                float dx = storedX[i]-current[0];
+                float dy = storedY[i]-current[1];
+                float dz = storedZ[i]-current[2];
+                float distance = dx*dx + dy*dy + dz*dz;
+                if (distance < nearestDistance)
+                {
+                    nearest = i;
+                    nearestDistance = distance;
+                }
+            }
+        }
+        return nearest;
+    }
+
+    /** Binary search of the slot of an AID, -1 if it is not stored */
+    private int findSlot(int aid)
+    {
+        int low = 0, high = storedFields - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            if (storedAids[mid] < aid)
+                low = mid + 1;
+            else if (storedAids[mid] > aid)
+                high = mid - 1;
+            else
+                return mid;
         }
-        return false;
+        return -1;
+    }
+
+    private void grow()
+    {
+        int capacity = storedAids.length * 2;
+        storedX = Arrays.copyOf(storedX, capacity);
+        storedY = Arrays.copyOf(storedY, capacity);
+        storedZ = Arrays.copyOf(storedZ, capacity);
+        storedAids = Arrays.copyOf(storedAids, capacity);
     }
 
     /**
-     * Note: it is <b>important</b> that the first argument is one of the float[3] representing
-     * a magnetic field array stored during the initialisation.
+     * <p>Sets the listener notified when the magnet enters or exits a position, or removes it if
+     * {@code null}. While a listener is set the helper is registered as a
+     * {@link MagnetoPipeline.SampleListener} of its {@link MagneticReadingsSource}.</p>
      */
-    private boolean doesStoredMatchCurrent(float[] stored, float[] current)
+    public void setPositionListener(PositionListener listener)
     {
-        return (stored[0]>current[0]-threshold
-                && stored[0]<current[0]+threshold
-                && stored[1]>current[1]-threshold
-                && stored[1]<current[1]+threshold
-                && stored[2]>current[2]-threshold
-                && stored[2]<current[2]+threshold);
+        if (positionListener == null && listener != null)
+        {
+            currentPosition = -1;
+            magneto.addSampleListener(sampleListener);
+        }
+        else if (positionListener != null && listener == null)
+            magneto.removeSampleListener(sampleListener);
+
+        positionListener = listener;
     }
 
     public int getLastMatchedMagneticFieldIndex()
@@ -106,5 +317,17 @@ public class PositionHelper
     {
         return threshold;
     }
-}
 
+    /**
+     * <p>Used for receiving the movements of the magnet between the stored positions, see
+     * {@link #setPositionListener(PositionListener)}. When the magnet moves directly from a
+     * position to another one, the exit from the first is notified before the entry in the
+     * second.</p>
+     */
+    public interface PositionListener
+    {
+        void onPositionEntered(PositionHelper helper, int aid);
+
+        void onPositionExited(PositionHelper helper, int aid);
+    }
+}
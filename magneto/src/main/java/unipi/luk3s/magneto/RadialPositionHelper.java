@@ -1,8 +1,5 @@
 package unipi.luk3s.magneto;
 
-import static unipi.luk3s.magneto.MagnetoUtils.computeAzimuth;
-import static unipi.luk3s.magneto.MagnetoUtils.computeNorm;
-
 /**
  * <p>To be used together with {@link MagnetoFragment}.
  * Helps in finding the position of a magnet that moves around the compass sensor in a 2D plane.</p>
@@ -23,12 +20,15 @@ import static unipi.luk3s.magneto.MagnetoUtils.computeNorm;
  */
 public class RadialPositionHelper
 {
-    private final MagnetoFragment magneto;
+    private final MagneticReadingsSource magneto;
     private float farAwayValue;
     private float overCompassValue;
     private boolean initialisationEnded;
 
-    public  RadialPositionHelper(MagnetoFragment magneto)
+    /**
+     * @param magneto a {@link MagnetoFragment}, or any other {@link MagneticReadingsSource}
+     */
+    public  RadialPositionHelper(MagneticReadingsSource magneto)
     {
         initialisationEnded = false;
         this.magneto = magneto;
@@ -36,12 +36,12 @@ public class RadialPositionHelper
 
     public void setFarAwayValue()
     {
-        farAwayValue = computeNorm(magneto.getLastRoundedReadings());
+        farAwayValue = magneto.getLastFrame().getNorm();
     }
 
     public  void setOverCompassValue()
     {
-        overCompassValue =  computeNorm(magneto.getLastRoundedReadings());
+        overCompassValue =  magneto.getLastFrame().getNorm();
     }
 
     public void endInit()
@@ -60,7 +60,7 @@ public class RadialPositionHelper
      */
     public float getDistanceFromOrigin()
     {
-        float norm = computeNorm(magneto.getLastRoundedReadings());
+        float norm = magneto.getLastFrame().getNorm();
         norm = (norm> overCompassValue)? overCompassValue :norm;
         norm = (norm< farAwayValue)? farAwayValue :norm;
         return (norm-overCompassValue)/(farAwayValue-overCompassValue);
@@ -72,6 +72,6 @@ public class RadialPositionHelper
      */
     public float getRadialPosition()
     {
-        return computeAzimuth(magneto.getLastRoundedReadings())*-1;
+        return magneto.getLastFrame().getAzimuth()*-1;
     }
 }
@@ -1,11 +1,5 @@
 package unipi.luk3s.magneto;
 
-import android.hardware.SensorEvent;
-
-import static unipi.luk3s.magneto.MagnetoUtils.computeNorm;
-import static unipi.luk3s.magneto.MagnetoUtils.computeRoundedNorm;
-import static unipi.luk3s.magneto.MagnetoUtils.round;
-
 /**
  * <p>To be used together with {@link MagnetoFragment}.
  * Helps in identifying rapid changes of the magnetic field, usually a consequence of flip-like
@@ -20,25 +14,85 @@ import static unipi.luk3s.magneto.MagnetoUtils.round;
  *
  * <p>After the initialisation, every time in the activity implementing
  * {@link unipi.luk3s.magneto.MagnetoFragment.MagneticSensorEventListener} the method
- * {@link unipi.luk3s.magneto.MagnetoFragment.MagneticSensorEventListener#onSensorChanged(SensorEvent)}
+ * {@link unipi.luk3s.magneto.MagnetoFragment.MagneticSensorEventListener#onSensorChanged(android.hardware.SensorEvent, float[], float[], float[])}
  * gets called, the method {@link #hasATapBeenDetected()} should be invoked to check if a rapid
  * change in the magnetic field has happened. Doing so, the internal tap counter is increased
  * accordingly.</p>
  *
+ * <p>Instead of polling, set a {@link TapListener} with {@link #setTapListener(TapListener)}.</p>
+ *
+ * <p>Instead of picking the thresholds by hand, {@link #startAutoCalibration()} lets the helper
+ * observe the high-pass filtered norm while nothing happens for a few seconds, estimate the
+ * noise floor from it (a high quantile, estimated on the fly without storing the samples) and
+ * set the thresholds accordingly, ending the initialisation. The estimate is then refreshed as
+ * long as the calibration is running, so the thresholds follow the noise of the environment
+ * (e.g. the phone is laid on a metal desk). How far above the noise a rapid change has to be
+ * is set with {@link #setSensitivity(float)}.</p>
+ *
  * <p>For more information read Section 4.5.5 of
  * <a href="http://etd.adm.unipi.it/theses/available/etd-11152015-012617/">
  *     Interacting with mobile devices using magnetic fields</a></p>
  */
 public class RapidChangesHelper
 {
-    private final MagnetoFragment magneto;
+    /** How long the noise is observed before the thresholds are set (and then refreshed) */
+    public static final int DEFAULT_CALIBRATION_MILLIS = 3000;
+    /** The default of {@link #setSensitivity(float)} */
+    public static final float DEFAULT_SENSITIVITY = 0.5f;
+
+    // The noise floor is this quantile of the high-pass filtered norm
+    private static final double NOISE_QUANTILE = 0.95;
+    // Even the quietest sensors have a resolution of a fraction of uT
+    private static final float MIN_NOISE_FLOOR = 0.5f;
+    // A window ends only after these many samples, whatever its duration
+    private static final int MIN_CALIBRATION_SAMPLES = 20;
+    // The low threshold is above the noise floor by this factor, the high one above the low one
+    // by a factor from MIN_HIGH_RATIO (sensitivity 1) to MAX_HIGH_RATIO (sensitivity 0)
+    private static final float LOW_RATIO = 2f;
+    private static final float MIN_HIGH_RATIO = 2f;
+    private static final float MAX_HIGH_RATIO = 20f;
+    // Weight of the estimate of a new window in the noise floor, after the first one
+    private static final float ADAPTATION_RATE = 0.5f;
+
+    private final MagneticReadingsSource magneto;
     private boolean initialisationEnded;
     private boolean magnitudeAlreadyHigherThanHighThreshold;
     private int tapCounter;
     private float lowThreshold;
     private float highThreshold;
+    private TapListener tapListener;
+    private P2QuantileEstimator noiseEstimator;
+    private float sensitivity = DEFAULT_SENSITIVITY;
+    private long calibrationWindowNanos;
+    private long windowStartTimestamp;
+    private float noiseFloor;
+    // The calibration follows the rapid changes by itself, whether the helper is polled or not
+    private boolean isCalibrationChangeInProgress;
+    private final MagnetoPipeline.SampleListener calibrationListener =
+            new MagnetoPipeline.SampleListener()
+    {
+        @Override
+        public void onSampleProcessed(MagnetoPipeline pipeline)
+        {
+            calibrate(pipeline.getLastTimestamp());
+        }
+    };
+    private final MagnetoPipeline.SampleListener sampleListener =
+            new MagnetoPipeline.SampleListener()
+    {
+        @Override
+        public void onSampleProcessed(MagnetoPipeline pipeline)
+        {
+            TapListener listener = tapListener;
+            if (listener != null && initialisationEnded && hasATapBeenDetected())
+                listener.onTap(RapidChangesHelper.this, tapCounter);
+        }
+    };
 
-    public RapidChangesHelper(MagnetoFragment magneto)
+    /**
+     * @param magneto a {@link MagnetoFragment}, or any other {@link MagneticReadingsSource}
+     */
+    public RapidChangesHelper(MagneticReadingsSource magneto)
     {
         this.magneto = magneto;
         initialisationEnded = false;
@@ -55,18 +109,148 @@ public class RapidChangesHelper
         highThreshold = threshold;
     }
 
+    public float getLowThreshold()
+    {
+        return lowThreshold;
+    }
+
+    public float getHighThreshold()
+    {
+        return highThreshold;
+    }
+
     public void endInit()
     {
         initialisationEnded = true;
     }
 
-    /** Clearing the thresholds invalidates the previous initialisation*/
+    /**
+     * Clearing the thresholds invalidates the previous initialisation, and stops the automatic
+     * calibration
+     */
     public void clearThresholds()
     {
+        stopAutoCalibration();
         highThreshold = lowThreshold = 0;
         initialisationEnded = false;
     }
 
+    /**
+     * @see #startAutoCalibration(int)
+     */
+    public void startAutoCalibration()
+    {
+        startAutoCalibration(DEFAULT_CALIBRATION_MILLIS);
+    }
+
+    /**
+     * <p>Starts observing the noise of the high-pass filtered norm: after the given time the
+     * thresholds are set and the initialisation ends (as with {@link #endInit()}), then they are
+     * updated at the same interval until {@link #stopAutoCalibration()} is called. Nothing should
+     * move near the compass sensor until {@link #hasInitEnded()} returns true; afterwards the
+     * samples of the rapid changes detected do not count as noise.</p>
+     *
+     * <p>The helper registers itself as a {@link MagnetoPipeline.SampleListener} of its
+     * {@link MagneticReadingsSource}, the time is measured on the timestamps of the samples.</p>
+     */
+    public void startAutoCalibration(int calibrationMillis)
+    {
+        if (noiseEstimator == null)
+        {
+            noiseEstimator = new P2QuantileEstimator(NOISE_QUANTILE);
+            magneto.addSampleListener(calibrationListener);
+        }
+        else
+            noiseEstimator.reset();
+
+        calibrationWindowNanos = calibrationMillis * 1000000L;
+        windowStartTimestamp = Long.MIN_VALUE;
+        noiseFloor = 0;
+        isCalibrationChangeInProgress = false;
+    }
+
+    /**
+     * <p>Stops updating the thresholds, which keep their current values.</p>
+     */
+    public void stopAutoCalibration()
+    {
+        if (noiseEstimator == null)
+            return;
+
+        magneto.removeSampleListener(calibrationListener);
+        noiseEstimator = null;
+    }
+
+    public boolean isAutoCalibrating()
+    {
+        return noiseEstimator != null;
+    }
+
+    /**
+     * <p>How easily rapid changes are detected by the automatic calibration, from 0 (only the
+     * strongest ones, the high threshold is 20 times the low one) to 1 (the high threshold is
+     * just 2 times the low one). The low threshold is always twice the noise floor. Applied from
+     * the next update of the thresholds.</p>
+     *
+     * @throws IllegalArgumentException if the sensitivity is not in [0,1]
+     */
+    public void setSensitivity(float sensitivity)
+    {
+        if (!(sensitivity >= 0 && sensitivity <= 1))
+            throw new IllegalArgumentException("The sensitivity must be in [0,1]: " + sensitivity);
+
+        this.sensitivity = sensitivity;
+    }
+
+    public float getSensitivity()
+    {
+        return sensitivity;
+    }
+
+    /**
+     * @return the noise floor estimated by the automatic calibration, 0 until the first estimate
+     */
+    public float getNoiseFloor()
+    {
+        return noiseFloor;
+    }
+
+    private void calibrate(long timestamp)
+    {
+        P2QuantileEstimator estimator = noiseEstimator;
+        if (estimator == null)
+            return;
+
+        if (windowStartTimestamp == Long.MIN_VALUE)
+            windowStartTimestamp = timestamp;
+
+        // A rapid change going on is not noise, a noise growing stronger is
+        float norm = magneto.getLastFrame().getRoundedHighPassNorm();
+        if (initialisationEnded && !isCalibrationChangeInProgress && norm > highThreshold)
+            isCalibrationChangeInProgress = true;
+        else if (isCalibrationChangeInProgress && norm < lowThreshold)
+            isCalibrationChangeInProgress = false;
+
+        if (!isCalibrationChangeInProgress)
+            estimator.add(norm);
+
+        if (timestamp - windowStartTimestamp < calibrationWindowNanos
+                || estimator.getCount() < MIN_CALIBRATION_SAMPLES)
+            return;
+
+        float estimate = Math.max((float) estimator.getQuantile(), MIN_NOISE_FLOOR);
+        noiseFloor = (noiseFloor == 0) ? estimate :
+                noiseFloor + ADAPTATION_RATE * (estimate - noiseFloor);
+
+        lowThreshold = LOW_RATIO * noiseFloor;
+        highThreshold = lowThreshold
+                * (MAX_HIGH_RATIO - (MAX_HIGH_RATIO - MIN_HIGH_RATIO) * sensitivity);
+        initialisationEnded = true;
+
+        estimator.reset();
+        windowStartTimestamp = timestamp;
+    }
+
     public boolean hasInitEnded()
     {
         return initialisationEnded;
@@ -74,7 +258,7 @@ public class RapidChangesHelper
 
     public float getHighPassMagnitude()
     {
-        return computeNorm(magneto.getLastHighPassReadings());
+        return magneto.getLastFrame().getHighPassNorm();
     }
 
     public float[] getHighPassValues()
@@ -84,7 +268,7 @@ public class RapidChangesHelper
 
     private void updateTapCounter()
     {
-        float highPassFilteredValueMagnitude = computeRoundedNorm(magneto.getLastHighPassReadings());
+        float highPassFilteredValueMagnitude = magneto.getLastFrame().getRoundedHighPassNorm();
 
         if(highPassFilteredValueMagnitude > highThreshold && !magnitudeAlreadyHigherThanHighThreshold)
         {
@@ -107,6 +291,11 @@ public class RapidChangesHelper
         return (oldTapCounter != tapCounter);
     }
 
+    MagneticReadingsSource getMagneticReadingsSource()
+    {
+        return magneto;
+    }
+
     public int getTapCounter()
     {
         return tapCounter;
@@ -116,4 +305,31 @@ public class RapidChangesHelper
     {
         tapCounter = 0;
     }
+
+    /**
+     * <p>Sets the listener notified of the taps, or removes it if {@code null}. While a listener
+     * is set the helper is registered as a {@link MagnetoPipeline.SampleListener} of its
+     * {@link MagneticReadingsSource}.</p>
+     */
+    public void setTapListener(TapListener listener)
+    {
+        if (tapListener == null && listener != null)
+            magneto.addSampleListener(sampleListener);
+        else if (tapListener != null && listener == null)
+            magneto.removeSampleListener(sampleListener);
+
+        tapListener = listener;
+    }
+
+    /**
+     * <p>Used for receiving the rapid changes of the magnetic field, see
+     * {@link #setTapListener(TapListener)}.</p>
+     */
+    public interface TapListener
+    {
+        /**
+         * @param tapCounter the number of taps detected so far, see {@link #getTapCounter()}
+         */
+        void onTap(RapidChangesHelper helper, int tapCounter);
+    }
 }
@@ -0,0 +1,61 @@
+package unipi.luk3s.magneto;
+
+/**
+ * <p>Decides which samples are delivered to a listener that does not need all of them, e.g. a
+ * widget refreshed at 30 Hz while the compass sensor runs at 100 Hz. A sample is delivered if
+ * at least {@code everyNthSample} samples have been processed since the last delivered one, and
+ * if it does not exceed the maximum rate.</p>
+ *
+ * <p>The rate is measured on the sensor timestamps and limited on average: a sample is due one
+ * period after the previous due time, not after the previous delivery, so jitter in the
+ * timestamps does not lower the rate below the maximum one. After a pause the due time starts
+ * again from the first sample.</p>
+ */
+final class SampleDecimator
+{
+    private final int everyNthSample;
+    private final long periodNanos;
+    private boolean hasDelivered;
+    private long lastDeliveredSample;
+    private long nextDueNanos;
+
+    /**
+     * @param everyNthSample deliver one sample every this number, 1 for all of them
+     * @param maxRateHz the maximum number of samples delivered per second, 0 for no limit
+     * @throws IllegalArgumentException if a parameter is out of range
+     */
+    SampleDecimator(int everyNthSample, float maxRateHz)
+    {
+        if (everyNthSample < 1)
+            throw new IllegalArgumentException(
+                    "everyNthSample must be at least 1: " + everyNthSample);
+        if (!(maxRateHz >= 0))
+            throw new IllegalArgumentException("maxRateHz must not be negative: " + maxRateHz);
+
+        this.everyNthSample = everyNthSample;
+        periodNanos = (maxRateHz == 0) ? 0 : (long) (1e9 / maxRateHz);
+    }
+
+    /**
+     * @param timestampNanos the timestamp of the sample
+     * @param sampleNumber the number of samples processed so far, including this one
+     */
+    boolean shouldDeliver(long timestampNanos, long sampleNumber)
+    {
+        if (hasDelivered)
+        {
+            if (sampleNumber - lastDeliveredSample < everyNthSample)
+                return false;
+            if (periodNanos > 0 && timestampNanos - nextDueNanos < 0)
+                return false;
+        }
+
+        if (periodNanos > 0)
+            nextDueNanos = (hasDelivered && timestampNanos - nextDueNanos < periodNanos) ?
+                    nextDueNanos + periodNanos : timestampNanos + periodNanos;
+
+        hasDelivered = true;
+        lastDeliveredSample = sampleNumber;
+        return true;
+    }
+}
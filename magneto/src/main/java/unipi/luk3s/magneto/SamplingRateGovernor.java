@@ -0,0 +1,80 @@
+package unipi.luk3s.magneto;
+
+/**
+ * <p>Chooses the sensor delay from the activity sensed: the active delay (a high rate) as soon as
+ * the high-pass filtered magnitude exceeds the high threshold, the idle delay (a low rate) once
+ * it has stayed below the low threshold for a while. In between, the current delay is kept, so
+ * the rate does not oscillate when the magnitude hovers around a single threshold.</p>
+ *
+ * <p>The thresholds are the ones of a {@link RapidChangesHelper}: a magnitude above the high one
+ * is a rapid change worth sampling at the full rate, while one below the low one means nothing is
+ * happening. The time is measured on the sample timestamps.</p>
+ */
+final class SamplingRateGovernor
+{
+    private final int idleDelay;
+    private final int activeDelay;
+    private final long quietNanos;
+    // Read on the main thread when the sensor is registered again
+    private volatile int delay;
+    private boolean isQuiet;
+    private long quietSince;
+
+    /**
+     * @param idleDelay the sensor delay used when nothing is happening
+     * @param activeDelay the sensor delay used when the magnetic field changes rapidly, which is
+     *                    also the initial one
+     * @param quietMillis how long the magnitude has to stay below the low threshold before
+     *                    switching to the idle delay
+     */
+    SamplingRateGovernor(int idleDelay, int activeDelay, int quietMillis)
+    {
+        this.idleDelay = idleDelay;
+        this.activeDelay = activeDelay;
+        quietNanos = quietMillis * 1000000L;
+        delay = activeDelay;
+    }
+
+    /**
+     * @return true if the sensor delay has to change, see {@link #getDelay()}
+     */
+    boolean update(long timestampNanos, float highPassMagnitude,
+                   float lowThreshold, float highThreshold)
+    {
+        if (highPassMagnitude > highThreshold)
+        {
+            isQuiet = false;
+            return setDelay(activeDelay);
+        }
+
+        if (highPassMagnitude >= lowThreshold)
+        {
+            // Something is still going on: an idle rate is kept, an active one is not dropped
+            isQuiet = false;
+            return false;
+        }
+
+        if (!isQuiet)
+        {
+            isQuiet = true;
+            quietSince = timestampNanos;
+        }
+        if (timestampNanos - quietSince >= quietNanos)
+            return setDelay(idleDelay);
+        return false;
+    }
+
+    int getDelay()
+    {
+        return delay;
+    }
+
+    private boolean setDelay(int newDelay)
+    {
+        if (delay == newDelay)
+            return false;
+
+        delay = newDelay;
+        return true;
+    }
+}
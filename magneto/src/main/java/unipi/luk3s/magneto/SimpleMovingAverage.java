@@ -6,61 +6,106 @@ package unipi.luk3s.magneto;
  * <a href="http://en.wikipedia.org/wiki/Moving_average">
  *     http://en.wikipedia.org/wiki/Moving_average</a>.</p>
  *
- * <p>Every time new values from the compass sensor are available, the 
- * {@link #updateSMA(float,float,float)} method has to be called. 
+ * <p>Every time new values from the compass sensor are available, the
+ * {@link #updateSMA(float,float,float)} method has to be called.
  * To retrieve the resulting low-pass filtered values, different methods can be
  * called: {@link #getValues()}, {@link #getX()}, {@link #getY()}, or {@link #getZ()}.</p>
  *
  * <p>The SMA algorithm makes use of a window value (i.e. the number of raw values needed before a
  * correct filtered value can be computed). This implementation computes a SMA for each axis of the
- * magnetic field. To do so, a 2D-array is used to keep track of <i>sma_window * 3</i> values
- * (a total of sma_window values for each axis). The first index of the matrix discriminates
- * among the different buffers (one for each axis).</p>
+ * magnetic field. To do so, a single circular buffer keeps track of <i>smaWindow * 3</i> values,
+ * interleaved by axis (x0, y0, z0, x1, y1, z1, ...), so that the three values of a sample are
+ * adjacent in memory.</p>
+ *
+ * <p>The sum of the values in the window is updated incrementally, and it is computed again from
+ * scratch every time the circular buffer wraps around, so rounding errors cannot accumulate
+ * (drift) over long sessions.</p>
+ *
+ * <p>Many samples can be filtered at once with
+ * {@link #process(float[], float[], float[], int, float[], float[])}, which gives exactly the
+ * same values as calling {@link #updateSMA(float, float, float)} for every sample.</p>
  *
  * <p>The last available SMA of the magnetic field is always stored in {@link #average3D}</p>
  */
-public class SimpleMovingAverage
+public class SimpleMovingAverage implements MagneticFilter
 {
-    private float [][] circularBuffer;
-    private float [] average3D;
+    private final float [] circularBuffer;
+    private final float [] sum3D;
+    private final float [] average3D;
+    private final int smaWindow;
     private int indexOfTheOldestElement;
     private boolean isBufferEmpty;
 
-    private static final int smaWindow = 10;
-    // Use these indexes to access the right buffer
+    // Use these indexes to access the right axis
     private static final int x = 0;
     private static final int y = 1;
     private static final int z = 2;
 
     public SimpleMovingAverage()
     {
-        circularBuffer = new float[3][smaWindow];
+        this(MagneticFilters.DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param smaWindow the number of samples the average is computed on
+     * @throws IllegalArgumentException if the window is not positive
+     */
+    public SimpleMovingAverage(int smaWindow)
+    {
+        if (smaWindow <= 0)
+            throw new IllegalArgumentException("The window must be positive: " + smaWindow);
+
+        this.smaWindow = smaWindow;
+        circularBuffer = new float[3 * smaWindow];
+        sum3D = new float[3];
         average3D = new float[3];
         isBufferEmpty = true;
         indexOfTheOldestElement = 0;
     }
 
     // Get the current moving average along the three axes
+    @Override
     public float[] getValues()
     {
         return average3D;
     }
 
+    @Override
     public float getX()
     {
         return average3D[x];
     }
 
+    @Override
     public float getY()
     {
         return average3D[y];
     }
 
+    @Override
     public float getZ()
     {
         return average3D[z];
     }
 
+    public int getWindow()
+    {
+        return smaWindow;
+    }
+
+    @Override
+    public void update(float xMagneticField, float yMagneticField, float zMagneticField)
+    {
+        updateSMA(xMagneticField, yMagneticField, zMagneticField);
+    }
+
+    @Override
+    public void reset()
+    {
+        isBufferEmpty = true;
+        indexOfTheOldestElement = 0;
+    }
+
     /**
      * <p>Call this function every time new raw values are fired by the
      * {@link android.hardware.SensorManager}. When new values are added,
@@ -77,60 +122,171 @@ public class SimpleMovingAverage
     {
         if (isBufferEmpty)
         {
-            fillBufferWithValue(xMagneticField, x);
-            fillBufferWithValue(yMagneticField, y);
-            fillBufferWithValue(zMagneticField, z);
+            fillBufferWithValues(xMagneticField, yMagneticField, zMagneticField);
             isBufferEmpty = false;
+            return;
         }
-        else
+
+        int oldest = 3 * indexOfTheOldestElement;
+        sum3D[x] += xMagneticField - circularBuffer[oldest + x];
+        sum3D[y] += yMagneticField - circularBuffer[oldest + y];
+        sum3D[z] += zMagneticField - circularBuffer[oldest + z];
+
+        circularBuffer[oldest + x] = xMagneticField;
+        circularBuffer[oldest + y] = yMagneticField;
+        circularBuffer[oldest + z] = zMagneticField;
+
+        indexOfTheOldestElement = updateIndex(indexOfTheOldestElement);
+        if (indexOfTheOldestElement == 0)
+            recomputeSums();
+
+        average3D[x] = sum3D[x] / smaWindow;
+        average3D[y] = sum3D[y] / smaWindow;
+        average3D[z] = sum3D[z] / smaWindow;
+    }
+
+    /**
+     * <p>Filters {@code n} samples at once, given as a structure of arrays, e.g. a burst of
+     * samples delivered by the hardware FIFO or a chunk of a recorded trace. The values are
+     * written axis by axis: {@code out[i]}, {@code out[n + i]} and {@code out[2*n + i]} are the
+     * values along x, y and z of the i-th sample.</p>
+     *
+     * <p>Each axis is filtered by its own loop, without branches in the common case, and the
+     * divisions and the high-pass values are computed by separate straight loops over contiguous
+     * arrays, which the compiler can vectorize. The running sum itself is a recurrence from one
+     * sample to the next, so it is inherently sequential.</p>
+     *
+     * @param outLow where the low-pass filtered values are written, at least 3*n long
+     * @param outHigh where the high-pass filtered values (raw minus low-pass) are written, at
+     *                least 3*n long, or {@code null} if they are not needed
+     */
+    public void process(float[] xs, float[] ys, float[] zs, int n, float[] outLow, float[] outHigh)
+    {
+        if (n <= 0)
+            return;
+
+        boolean fillsTheBuffer = isBufferEmpty;
+        int from = 0;
+        if (fillsTheBuffer)
         {
-            updateSMA(xMagneticField, x);
-            updateSMA(yMagneticField, y);
-            updateSMA(zMagneticField, z);
-            indexOfTheOldestElement = updateIndex(indexOfTheOldestElement);
+            updateSMA(xs[0], ys[0], zs[0]);
+            from = 1;
         }
+
+        int firstIndex = indexOfTheOldestElement;
+        indexOfTheOldestElement = sumAxis(xs, x, from, n, firstIndex, outLow, 0);
+        sumAxis(ys, y, from, n, firstIndex, outLow, n);
+        sumAxis(zs, z, from, n, firstIndex, outLow, 2 * n);
+
+        int length = 3 * n;
+        for (int i = 0; i < length; i++)
+            outLow[i] = outLow[i] / smaWindow;
+
+        if (fillsTheBuffer)
+        {
+            outLow[0] = xs[0];
+            outLow[n] = ys[0];
+            outLow[2 * n] = zs[0];
+        }
+
+        average3D[x] = outLow[n - 1];
+        average3D[y] = outLow[2 * n - 1];
+        average3D[z] = outLow[3 * n - 1];
+
+        if (outHigh != null)
+            MagneticFilters.highPass(xs, ys, zs, n, outLow, outHigh);
     }
 
     /**
-     * <p>Add a new value (magnetic field along an axis) in a buffer (the buffer referring to the
-     * axis of the value added). To do so the oldest value in the circular buffer is
-     * removed and the SMA currently stored in {@link #average3D} for that axis is updated.</p>
-     * @param newValue the value to add
-     * @param whichBuffer the buffer to add the value to
+     * Runs the updates of one axis, writing the running sums in {@code out}.
+     * @return the index of the oldest element after the updates
      */
-    private void updateSMA(float newValue, int whichBuffer)
+    private int sumAxis(float[] values, int axis, int from, int n, int index, float[] out,
+                        int offset)
     {
-        float oldestValue = circularBuffer[whichBuffer][indexOfTheOldestElement];
-        average3D[whichBuffer] = average3D[whichBuffer] +
-                (newValue - oldestValue) / circularBuffer[whichBuffer].length;
+        float sum = sum3D[axis];
+        int i = from;
+        while (i < n)
+        {
+            // Up to the next wrap around of the circular buffer, no branches
+            int end = Math.min(n, i + smaWindow - index);
+            int slot = 3 * index + axis;
+            for (; i < end; i++, slot += 3)
+            {
+                sum += values[i] - circularBuffer[slot];
+                circularBuffer[slot] = values[i];
+                out[offset + i] = sum;
+            }
 
-        circularBuffer[whichBuffer][indexOfTheOldestElement] = newValue;
+            index = (slot - axis) / 3;
+            if (index == smaWindow)
+            {
+                index = 0;
+                sum = recomputeSum(axis);
+                out[offset + i - 1] = sum;
+            }
+        }
+        sum3D[axis] = sum;
+        return index;
     }
 
     /**
-     * <p>This method should be called only after one new value have been added to all the buffers.
+     * <p>This method should be called only after one new value have been added for all the axes.
      * The index is increased according to the circular buffer policy. It will point to the "next"
-     * element in the buffer, i.e. the one that will be erased when a new value is available.</p>
+     * sample in the buffer, i.e. the one that will be erased when a new value is available.</p>
      * @param currentIndex the index to increase
      * @return the index correctly increased
      */
     private int updateIndex(int currentIndex)
     {
-        if (currentIndex + 1 >= circularBuffer[0].length)
+        if (currentIndex + 1 >= smaWindow)
             return 0;
 
         return currentIndex + 1;
     }
 
+    /** Same as {@link #recomputeSums()}, for a single axis */
+    private float recomputeSum(int axis)
+    {
+        float sum = 0;
+        for (int i = axis; i < circularBuffer.length; i += 3)
+            sum += circularBuffer[i];
+        return sum;
+    }
+
+    /** Sum again all the values in the window, discarding the rounding errors accumulated */
+    private void recomputeSums()
+    {
+        float xSum = 0, ySum = 0, zSum = 0;
+        for (int i = 0; i < circularBuffer.length; i += 3)
+        {
+            xSum += circularBuffer[i + x];
+            ySum += circularBuffer[i + y];
+            zSum += circularBuffer[i + z];
+        }
+        sum3D[x] = xSum;
+        sum3D[y] = ySum;
+        sum3D[z] = zSum;
+    }
+
     /**
-     * @param val the value to use for filling the appropriate buffer
-     * @param whichBuffer the buffer to add the value to
+     * Fill the whole window with the same sample.
      */
-    private void fillBufferWithValue(float val, int whichBuffer)
+    private void fillBufferWithValues(float xVal, float yVal, float zVal)
     {
-        for (int i = 0; i < circularBuffer[whichBuffer].length; ++i)
-            circularBuffer[whichBuffer][i] = val;
+        for (int i = 0; i < circularBuffer.length; i += 3)
+        {
+            circularBuffer[i + x] = xVal;
+            circularBuffer[i + y] = yVal;
+            circularBuffer[i + z] = zVal;
+        }
+
+        sum3D[x] = xVal * smaWindow;
+        sum3D[y] = yVal * smaWindow;
+        sum3D[z] = zVal * smaWindow;
 
-        average3D[whichBuffer] = val;
+        average3D[x] = xVal;
+        average3D[y] = yVal;
+        average3D[z] = zVal;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,464 @@
+package unipi.luk3s.magneto;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * <p>Generates the samples a compass sensor would sense with magnets moving nearby, so the
+ * *Helper classes can be exercised (and their accuracy measured) on a plain JVM, without a phone
+ * and a magnet. The field sensed is the Earth field, plus the field of every magnet modelled as
+ * a magnetic dipole, plus gaussian noise on every axis.</p>
+ *
+ * <p>Every magnet moves along a scripted {@link MagnetPath}: see
+ * {@link #fixed(float[], float[])}, {@link #slide(float[], float[], float[], float, float)},
+ * {@link #orbit(float, float, float, float)}, {@link #flips(float[], float[], float[], float)}
+ * and {@link #taps(float[], float[], float[], float[], float)}. The samples are fed to a
+ * {@link MagnetoPipeline} exactly as a recording is replayed by {@link MagnetoTraceReader}:</p>
+ *
+ * <pre class="prettyprint">
+ * SyntheticMagnetSource source = new SyntheticMagnetSource(42, 100);
+ * source.setNoise(0.5f);
+ * source.addMagnet(SyntheticMagnetSource.flips(new float[]{0, 0, 0.04f},
+ *         new float[]{0, 0, 0.2f}, new float[]{1, 2, 3}, 0.1f));
+ *
+ * MagnetoPipeline pipeline = new MagnetoPipeline();
+ * RapidChangesHelper helper = new RapidChangesHelper(pipeline);
+ * ...
+ * source.feed(pipeline, 400);
+ * </pre>
+ *
+ * <p>The stream is deterministic: two sources built with the same seed, the same magnets and
+ * the same settings produce exactly the same samples, at any sampling rate (also far beyond the
+ * ones of real sensors, to stress the processing). Positions are in metres in the frame of the
+ * sensor (which is in the origin), magnetic moments in A&middot;m&sup2; and fields in &mu;T: a
+ * small neodymium disc has a moment of about 0.1-0.5 A&middot;m&sup2;.</p>
+ *
+ * <p>A source is not thread-safe.</p>
+ */
+public class SyntheticMagnetSource
+{
+    /** A typical Earth field at mid latitudes, in &mu;T */
+    public static final float DEFAULT_EARTH_FIELD_X = 0f;
+    public static final float DEFAULT_EARTH_FIELD_Y = 20f;
+    public static final float DEFAULT_EARTH_FIELD_Z = -40f;
+
+    // mu0 / 4 pi, in uT m / A
+    private static final double DIPOLE_CONSTANT = 0.1;
+    // Closer than this the dipole model makes no sense (and the field would be infinite)
+    private static final double MIN_DISTANCE = 0.001;
+    private static final MagnetPath[] NO_MAGNETS = new MagnetPath[0];
+
+    private final Random random;
+    private final double[] pose;
+    private MagnetPath[] magnets;
+    private double earthX, earthY, earthZ;
+    private double noise;
+    private double samplingInterval;
+    private double seconds;
+    private long startTimestamp;
+
+    /**
+     * @param seed the seed of the noise
+     * @param samplingRateHz the number of samples per second
+     * @throws IllegalArgumentException if the sampling rate is not positive
+     */
+    public SyntheticMagnetSource(long seed, float samplingRateHz)
+    {
+        random = new Random(seed);
+        pose = new double[6];
+        magnets = NO_MAGNETS;
+        setEarthField(DEFAULT_EARTH_FIELD_X, DEFAULT_EARTH_FIELD_Y, DEFAULT_EARTH_FIELD_Z);
+        setSamplingRate(samplingRateHz);
+    }
+
+    public void addMagnet(MagnetPath path)
+    {
+        MagnetPath[] newMagnets = Arrays.copyOf(magnets, magnets.length + 1);
+        newMagnets[magnets.length] = path;
+        magnets = newMagnets;
+    }
+
+    public void setEarthField(float x, float y, float z)
+    {
+        earthX = x;
+        earthY = y;
+        earthZ = z;
+    }
+
+    /**
+     * @param standardDeviation the standard deviation of the gaussian noise added to every
+     *                          axis, in &mu;T (0 by default)
+     */
+    public void setNoise(float standardDeviation)
+    {
+        noise = standardDeviation;
+    }
+
+    /**
+     * <p>Changes the sampling rate from the next sample on, e.g. to emulate the rate changes of
+     * {@link MagnetoFragment#enableAdaptiveSampling(RapidChangesHelper)}.</p>
+     *
+     * @throws IllegalArgumentException if the sampling rate is not positive
+     */
+    public void setSamplingRate(float samplingRateHz)
+    {
+        if (!(samplingRateHz > 0))
+            throw new IllegalArgumentException("Invalid sampling rate: " + samplingRateHz);
+
+        samplingInterval = 1.0 / samplingRateHz;
+    }
+
+    /**
+     * @param timestampNanos the timestamp of the sample at time 0 (0 by default)
+     */
+    public void setStartTimestamp(long timestampNanos)
+    {
+        startTimestamp = timestampNanos;
+    }
+
+    /** The time, in seconds since the start of the stream, of the next sample */
+    public double getTime()
+    {
+        return seconds;
+    }
+
+    /** The timestamp, in nanoseconds, of the next sample */
+    public long getTimestamp()
+    {
+        return startTimestamp + Math.round(seconds * 1e9);
+    }
+
+    /**
+     * <p>Computes the next sample and advances the time.</p>
+     *
+     * @param values where the x, y, z values of the sample are written
+     * @return the timestamp of the sample, in nanoseconds
+     */
+    public long next(float[] values)
+    {
+        long timestamp = getTimestamp();
+        computeField(seconds, values);
+        if (noise > 0)
+        {
+            values[0] += (float) (random.nextGaussian() * noise);
+            values[1] += (float) (random.nextGaussian() * noise);
+            values[2] += (float) (random.nextGaussian() * noise);
+        }
+
+        seconds += samplingInterval;
+        return timestamp;
+    }
+
+    /**
+     * <p>Feeds the next samples to the pipeline, as fast as possible.</p>
+     *
+     * @return the number of samples processed
+     */
+    public int feed(MagnetoPipeline pipeline, int samples)
+    {
+        float[] values = new float[3];
+        for (int i = 0; i < samples; i++)
+        {
+            long timestamp = next(values);
+            pipeline.process(timestamp, values[0], values[1], values[2]);
+        }
+        return samples;
+    }
+
+    /**
+     * <p>Adds the next samples to the batch, until it is full.</p>
+     *
+     * @return the number of samples added to the batch
+     */
+    public int read(MagneticSampleBatch batch)
+    {
+        float[] values = new float[3];
+        int added = 0;
+        while (!batch.isFull())
+        {
+            long timestamp = next(values);
+            batch.add(timestamp, values[0], values[1], values[2]);
+            added++;
+        }
+        return added;
+    }
+
+    /**
+     * <p>Computes the field sensed at the given time without any noise, i.e. the ground truth of
+     * the samples. The time of the stream does not change.</p>
+     *
+     * @param values where the x, y, z values of the field are written
+     */
+    public void computeField(double seconds, float[] values)
+    {
+        double x = earthX, y = earthY, z = earthZ;
+
+        MagnetPath[] paths = magnets;
+        for (int i = 0; i < paths.length; i++)
+        {
+            paths[i].getPose(seconds, pose);
+
+            // B = k (3 (m . r) r / |r|^5 - m / |r|^3)
+            double rx = pose[0], ry = pose[1], rz = pose[2];
+            double distance = Math.max(Math.sqrt(rx * rx + ry * ry + rz * rz), MIN_DISTANCE);
+            double distance3 = distance * distance * distance;
+            double dot = (pose[3] * rx + pose[4] * ry + pose[5] * rz) / (distance * distance);
+
+            x += DIPOLE_CONSTANT * (3 * dot * rx - pose[3]) / distance3;
+            y += DIPOLE_CONSTANT * (3 * dot * ry - pose[4]) / distance3;
+            z += DIPOLE_CONSTANT * (3 * dot * rz - pose[5]) / distance3;
+        }
+
+        values[0] = (float) x;
+        values[1] = (float) y;
+        values[2] = (float) z;
+    }
+
+    /**
+     * <p>A magnet that does not move.</p>
+     *
+     * @param position the position of the magnet, in metres
+     * @param moment the magnetic moment of the magnet, in A&middot;m&sup2;
+     */
+    public static MagnetPath fixed(float[] position, float[] moment)
+    {
+        return new Slide(position, position, moment, 0, 0);
+    }
+
+    /**
+     * <p>A magnet moving at constant speed along a straight line, e.g. along the side of the
+     * phone as with {@link LinearMotionHelper}. It stays at the start before the slide, and at the
+     * end after it.</p>
+     */
+    public static MagnetPath slide(float[] from, float[] to, float[] moment,
+                                   float startSeconds, float durationSeconds)
+    {
+        return new Slide(from, to, moment, startSeconds, durationSeconds);
+    }
+
+    /**
+     * <p>A magnet going round the sensor at constant speed, on a circle parallel to the screen,
+     * with its moment pointing outwards: the direction of the field sensed (see
+     * {@link RadialPositionHelper} and {@link VirtualTapHelper}) follows the magnet.</p>
+     *
+     * @param radius the radius of the circle, in metres
+     * @param height the distance of the circle from the plane of the screen, in metres
+     * @param moment the strength of the magnetic moment, in A&middot;m&sup2;
+     * @param periodSeconds the time taken by a revolution, counter-clockwise if positive
+     */
+    public static MagnetPath orbit(float radius, float height, float moment, float periodSeconds)
+    {
+        return new Orbit(radius, height, moment, periodSeconds);
+    }
+
+    /**
+     * <p>A magnet that does not move but is flipped over (its moment turns by 180&deg;) at the
+     * given times, the rapid changes detected by {@link RapidChangesHelper}.</p>
+     *
+     * @param flipTimes the times, in seconds, at which every flip starts. They must be at least
+     *                  {@code flipSeconds} apart.
+     * @param flipSeconds how long a flip lasts
+     */
+    public static MagnetPath flips(float[] position, float[] moment, float[] flipTimes,
+                                   float flipSeconds)
+    {
+        return new Flips(position, moment, flipTimes, flipSeconds);
+    }
+
+    /**
+     * <p>A magnet usually resting at a position, which is moved close to the sensor and back
+     * at the given times, as when tapping the phone with it.</p>
+     *
+     * @param tapTimes the times, in seconds, at which every tap starts. They must be at least
+     *                 {@code tapSeconds} apart.
+     * @param tapSeconds how long a tap (going and coming back) lasts
+     */
+    public static MagnetPath taps(float[] restPosition, float[] tapPosition, float[] moment,
+                                  float[] tapTimes, float tapSeconds)
+    {
+        return new Taps(restPosition, tapPosition, moment, tapTimes, tapSeconds);
+    }
+
+    /**
+     * <p>The position and the magnetic moment of a magnet over time.</p>
+     */
+    public interface MagnetPath
+    {
+        /**
+         * @param seconds the time since the start of the stream
+         * @param pose where the position of the magnet (in metres) is written in the first three
+         *             elements, and its magnetic moment (in A&middot;m&sup2;) in the next three
+         */
+        void getPose(double seconds, double[] pose);
+    }
+
+    /** The fraction of an interval elapsed at the given time, in [0,1] */
+    private static double progress(double seconds, double start, double duration)
+    {
+        if (seconds <= start)
+            return 0;
+        if (seconds >= start + duration)
+            return 1;
+        return (seconds - start) / duration;
+    }
+
+    /** The index of the last time not after the given one in the sorted array, -1 if none */
+    private static int lastStarted(double[] times, double seconds)
+    {
+        int index = Arrays.binarySearch(times, seconds);
+        return (index >= 0) ? index : -index - 2;
+    }
+
+    private static double[] toSortedDoubles(float[] times)
+    {
+        double[] sorted = new double[times.length];
+        for (int i = 0; i < times.length; i++)
+            sorted[i] = times[i];
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static final class Slide implements MagnetPath
+    {
+        private final float[] from, to, moment;
+        private final double start, duration;
+
+        Slide(float[] from, float[] to, float[] moment, double start, double duration)
+        {
+            this.from = from.clone();
+            this.to = to.clone();
+            this.moment = moment.clone();
+            this.start = start;
+            this.duration = duration;
+        }
+
+        @Override
+        public void getPose(double seconds, double[] pose)
+        {
+            double u = progress(seconds, start, duration);
+            for (int i = 0; i < 3; i++)
+            {
+                pose[i] = from[i] + (to[i] - from[i]) * u;
+                pose[3 + i] = moment[i];
+            }
+        }
+    }
+
+    private static final class Orbit implements MagnetPath
+    {
+        private final double radius, height, moment, period;
+
+        Orbit(double radius, double height, double moment, double period)
+        {
+            this.radius = radius;
+            this.height = height;
+            this.moment = moment;
+            this.period = period;
+        }
+
+        @Override
+        public void getPose(double seconds, double[] pose)
+        {
+            double angle = 2 * Math.PI * seconds / period;
+            double cos = Math.cos(angle), sin = Math.sin(angle);
+            pose[0] = radius * cos;
+            pose[1] = radius * sin;
+            pose[2] = height;
+            pose[3] = moment * cos;
+            pose[4] = moment * sin;
+            pose[5] = 0;
+        }
+    }
+
+    private static final class Flips implements MagnetPath
+    {
+        private final float[] position;
+        private final double[] moment, perpendicular;
+        private final double[] flipTimes;
+        private final double flipSeconds;
+
+        Flips(float[] position, float[] moment, float[] flipTimes, double flipSeconds)
+        {
+            this.position = position.clone();
+            this.moment = new double[]{moment[0], moment[1], moment[2]};
+            this.flipTimes = toSortedDoubles(flipTimes);
+            this.flipSeconds = flipSeconds;
+
+            // The moment turns in the plane of itself and a perpendicular vector as long, the
+            // cross product with the axis (x or y) farther from its direction
+            double px, py, pz;
+            if (Math.abs(moment[0]) <= Math.abs(moment[1]))
+            {
+                px = 0;
+                py = moment[2];
+                pz = -moment[1];
+            }
+            else
+            {
+                px = -moment[2];
+                py = 0;
+                pz = moment[0];
+            }
+            double length = Math.sqrt(px * px + py * py + pz * pz);
+            double scale = (length > 0) ? Math.sqrt(moment[0] * moment[0]
+                    + moment[1] * moment[1] + moment[2] * moment[2]) / length : 0;
+            perpendicular = new double[]{px * scale, py * scale, pz * scale};
+        }
+
+        @Override
+        public void getPose(double seconds, double[] pose)
+        {
+            int last = lastStarted(flipTimes, seconds);
+            double angle = 0;
+            if (last >= 0)
+            {
+                double u = progress(seconds, flipTimes[last], flipSeconds);
+                // Smooth start and stop, as by hand
+                angle = Math.PI * (last + u * u * (3 - 2 * u));
+            }
+
+            double cos = Math.cos(angle), sin = Math.sin(angle);
+            for (int i = 0; i < 3; i++)
+            {
+                pose[i] = position[i];
+                pose[3 + i] = moment[i] * cos + perpendicular[i] * sin;
+            }
+        }
+    }
+
+    private static final class Taps implements MagnetPath
+    {
+        private final float[] restPosition, tapPosition, moment;
+        private final double[] tapTimes;
+        private final double tapSeconds;
+
+        Taps(float[] restPosition, float[] tapPosition, float[] moment, float[] tapTimes,
+             double tapSeconds)
+        {
+            this.restPosition = restPosition.clone();
+            this.tapPosition = tapPosition.clone();
+            this.moment = moment.clone();
+            this.tapTimes = toSortedDoubles(tapTimes);
+            this.tapSeconds = tapSeconds;
+        }
+
+        @Override
+        public void getPose(double seconds, double[] pose)
+        {
+            int last = lastStarted(tapTimes, seconds);
+            double closeness = 0;
+            if (last >= 0)
+            {
+                double u = progress(seconds, tapTimes[last], tapSeconds);
+                // There and back again, without jerks
+                closeness = (1 - Math.cos(2 * Math.PI * u)) / 2;
+            }
+
+            for (int i = 0; i < 3; i++)
+            {
+                pose[i] = restPosition[i] + (tapPosition[i] - restPosition[i]) * closeness;
+                pose[3 + i] = moment[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package unipi.luk3s.magneto;
+
+/**
+ * <p>Recognises gestures made of rapid changes of the magnetic field (taps, see
+ * {@link RapidChangesHelper}) from their timing: single, double and triple taps, holds, and the
+ * rate of a sequence of taps. The timing is measured on the timestamps of the samples, so it
+ * does not depend on when the samples are delivered.</p>
+ *
+ * <p>A tap starts when the high-pass filtered norm gets higher than the high threshold of the
+ * {@link RapidChangesHelper} and ends when it falls back below its low threshold, the same
+ * hysteresis as the helper's. The recognizer keeps its own state and never changes the
+ * helper's, so the helper can still be polled or have a {@link RapidChangesHelper.TapListener}
+ * meanwhile. Then:</p>
+ * <ul>
+ * <li>taps starting within {@link #setMultiTapWindowMillis(int)} of the previous one are part of
+ * the same sequence: {@link #SINGLE} or {@link #DOUBLE} is reported once no other tap follows in
+ * time, {@link #TRIPLE} as soon as the third tap starts;</li>
+ * <li>a tap lasting longer than {@link #setHoldMillis(int)} is reported as {@link #HOLD}, and
+ * cancels the sequence it belongs to. How long the field stays changed when the magnet stops
+ * depends on the low-pass filter: a long window (or time constant) makes holds easier;</li>
+ * <li>every tap reports the rate of the taps within {@link #setTapRateWindowMillis(int)},
+ * e.g. to scroll faster the faster the user taps.</li>
+ * </ul>
+ *
+ * <pre class="prettyprint">
+ * TapGestureRecognizer recognizer = new TapGestureRecognizer(rapidChangesHelper);
+ * recognizer.setGestureListener(new TapGestureRecognizer.GestureListener()
+ * {
+ *     public void onGesture(TapGestureRecognizer recognizer, int gesture, long timestampNanos)
+ *     {
+ *         if (gesture == TapGestureRecognizer.DOUBLE) ...
+ *     }
+ *
+ *     public void onTapRate(TapGestureRecognizer recognizer, float tapsPerSecond,
+ *                           long timestampNanos) {}
+ * });
+ * </pre>
+ *
+ * <p>The recognizer only works after the initialisation of the helper has ended. The listener is
+ * called on the thread processing the samples, and the recognizer does not allocate while they
+ * are processed.</p>
+ */
+public class TapGestureRecognizer
+{
+    public static final int SINGLE = 1;
+    public static final int DOUBLE = 2;
+    public static final int TRIPLE = 3;
+    public static final int HOLD = 4;
+
+    public static final int DEFAULT_MULTI_TAP_WINDOW_MILLIS = 400;
+    public static final int DEFAULT_HOLD_MILLIS = 600;
+    public static final int DEFAULT_TAP_RATE_WINDOW_MILLIS = 2000;
+
+    // The tap rate is computed on the last taps at most
+    private static final int MAX_RATE_TAPS = 16;
+
+    private final RapidChangesHelper helper;
+    private final MagneticReadingsSource magneto;
+    private GestureListener gestureListener;
+    private long multiTapWindowNanos;
+    private long holdNanos;
+    private long tapRateWindowNanos;
+
+    private boolean isPressed;
+    private boolean isHoldReported;
+    private long pressTimestamp;
+    private int tapsInSequence;
+    // Circular buffer of the start times of the last taps
+    private final long[] tapTimestamps = new long[MAX_RATE_TAPS];
+    private int newestTap;
+    private int tapsInRateWindow;
+
+    private final MagnetoPipeline.SampleListener sampleListener =
+            new MagnetoPipeline.SampleListener()
+    {
+        @Override
+        public void onSampleProcessed(MagnetoPipeline pipeline)
+        {
+            update(pipeline.getLastTimestamp());
+        }
+    };
+
+    public TapGestureRecognizer(RapidChangesHelper helper)
+    {
+        this.helper = helper;
+        magneto = helper.getMagneticReadingsSource();
+        setMultiTapWindowMillis(DEFAULT_MULTI_TAP_WINDOW_MILLIS);
+        setHoldMillis(DEFAULT_HOLD_MILLIS);
+        setTapRateWindowMillis(DEFAULT_TAP_RATE_WINDOW_MILLIS);
+    }
+
+    /**
+     * <p>The longest interval between the starts of two taps of the same sequence.</p>
+     */
+    public void setMultiTapWindowMillis(int multiTapWindowMillis)
+    {
+        multiTapWindowNanos = multiTapWindowMillis * 1000000L;
+    }
+
+    public int getMultiTapWindowMillis()
+    {
+        return (int) (multiTapWindowNanos / 1000000L);
+    }
+
+    /**
+     * <p>How long a tap has to last to be a hold.</p>
+     */
+    public void setHoldMillis(int holdMillis)
+    {
+        holdNanos = holdMillis * 1000000L;
+    }
+
+    public int getHoldMillis()
+    {
+        return (int) (holdNanos / 1000000L);
+    }
+
+    /**
+     * <p>How far back the taps are counted to compute the tap rate (at most the last
+     * 16 taps are used).</p>
+     */
+    public void setTapRateWindowMillis(int tapRateWindowMillis)
+    {
+        tapRateWindowNanos = tapRateWindowMillis * 1000000L;
+    }
+
+    public int getTapRateWindowMillis()
+    {
+        return (int) (tapRateWindowNanos / 1000000L);
+    }
+
+    /**
+     * <p>Sets the listener notified of the gestures, or removes it if {@code null}. While a
+     * listener is set the recognizer is registered as a {@link MagnetoPipeline.SampleListener} of
+     * the {@link MagneticReadingsSource} of the helper.</p>
+     */
+    public void setGestureListener(GestureListener listener)
+    {
+        if (gestureListener == null && listener != null)
+            magneto.addSampleListener(sampleListener);
+        else if (gestureListener != null && listener == null)
+            magneto.removeSampleListener(sampleListener);
+
+        gestureListener = listener;
+    }
+
+    /** Forgets the taps seen so far, e.g. when the thresholds of the helper change */
+    public void reset()
+    {
+        isPressed = false;
+        isHoldReported = false;
+        tapsInSequence = 0;
+        tapsInRateWindow = 0;
+    }
+
+    private void update(long timestamp)
+    {
+        GestureListener listener = gestureListener;
+        if (listener == null || !helper.hasInitEnded())
+            return;
+
+        float norm = magneto.getLastFrame().getRoundedHighPassNorm();
+        boolean wasPressed = isPressed;
+        if (!isPressed && norm > helper.getHighThreshold())
+            isPressed = true;
+        else if (isPressed && norm < helper.getLowThreshold())
+            isPressed = false;
+
+        if (isPressed && !wasPressed)
+        {
+            onTapStarted(listener, timestamp);
+            return;
+        }
+
+        if (isPressed)
+        {
+            if (!isHoldReported && timestamp - pressTimestamp >= holdNanos)
+            {
+                isHoldReported = true;
+                tapsInSequence = 0;
+                listener.onGesture(this, HOLD, timestamp);
+            }
+        }
+        else if (tapsInSequence > 0 && timestamp - pressTimestamp > multiTapWindowNanos)
+        {
+            int gesture = tapsInSequence;
+            tapsInSequence = 0;
+            listener.onGesture(this, gesture, timestamp);
+        }
+    }
+
+    private void onTapStarted(GestureListener listener, long timestamp)
+    {
+        isHoldReported = false;
+        if (tapsInSequence > 0 && timestamp - pressTimestamp > multiTapWindowNanos)
+        {
+            // The previous sequence has not been reported yet: no sample in between
+            listener.onGesture(this, tapsInSequence, pressTimestamp + multiTapWindowNanos);
+            tapsInSequence = 0;
+        }
+        pressTimestamp = timestamp;
+        tapsInSequence++;
+
+        float tapsPerSecond = addToTapRate(timestamp);
+        if (tapsPerSecond > 0)
+            listener.onTapRate(this, tapsPerSecond, timestamp);
+
+        if (tapsInSequence == TRIPLE)
+        {
+            tapsInSequence = 0;
+            listener.onGesture(this, TRIPLE, timestamp);
+        }
+    }
+
+    /**
+     * @return the taps per second within the rate window, 0 if this is the only tap
+     */
+    private float addToTapRate(long timestamp)
+    {
+        newestTap = (newestTap + 1) % MAX_RATE_TAPS;
+        tapTimestamps[newestTap] = timestamp;
+        tapsInRateWindow = Math.min(tapsInRateWindow + 1, MAX_RATE_TAPS);
+
+        int oldest = (newestTap - tapsInRateWindow + 1 + MAX_RATE_TAPS) % MAX_RATE_TAPS;
+        while (tapsInRateWindow > 1 && timestamp - tapTimestamps[oldest] > tapRateWindowNanos)
+        {
+            oldest = (oldest + 1) % MAX_RATE_TAPS;
+            tapsInRateWindow--;
+        }
+
+        if (tapsInRateWindow < 2)
+            return 0;
+        return (tapsInRateWindow - 1) * 1e9f / (timestamp - tapTimestamps[oldest]);
+    }
+
+    /**
+     * <p>Used for receiving the gestures, see {@link #setGestureListener(GestureListener)}.</p>
+     */
+    public interface GestureListener
+    {
+        /**
+         * @param gesture one of {@link #SINGLE}, {@link #DOUBLE}, {@link #TRIPLE} and
+         *                {@link #HOLD}
+         * @param timestampNanos the timestamp of the sample at which the gesture was recognised
+         */
+        void onGesture(TapGestureRecognizer recognizer, int gesture, long timestampNanos);
+
+        /**
+         * <p>Called at the start of every tap but the first of a while.</p>
+         *
+         * @param tapsPerSecond the rate of the taps within the tap rate window
+         */
+        void onTapRate(TapGestureRecognizer recognizer, float tapsPerSecond, long timestampNanos);
+    }
+}
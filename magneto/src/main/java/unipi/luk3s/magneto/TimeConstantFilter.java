@@ -0,0 +1,122 @@
+package unipi.luk3s.magneto;
+
+/**
+ * <p>A low-pass filter defined by a time constant instead of a number of samples. It is an
+ * exponential moving average (see {@link ExponentialMovingAverage}) whose smoothing factor is
+ * computed for every sample from the time elapsed since the previous one, <i>1 - e^(-dt/tau)</i>,
+ * as in a first-order RC circuit. For details see:
+ * <a href="http://en.wikipedia.org/wiki/Low-pass_filter#Discrete-time_realization">
+ *     http://en.wikipedia.org/wiki/Low-pass_filter#Discrete-time_realization</a>.</p>
+ *
+ * <p>The cutoff frequency, <i>1/(2 pi tau)</i>, is therefore the same whatever the sampling
+ * rate (see {@link MagnetoFragment#modifySensorDelay(int)}) and however irregularly the samples
+ * are delivered, and so is the response of the high-pass values computed by
+ * {@link MagnetoPipeline}: thresholds tuned on a device keep working at other rates and on other
+ * devices.</p>
+ *
+ * <p>When updated without a timestamp, the filter assumes the samples are
+ * {@value #DEFAULT_INTERVAL_MILLIS} ms apart (the interval of
+ * {@code SensorManager.SENSOR_DELAY_GAME}).</p>
+ */
+public class TimeConstantFilter implements TimestampedMagneticFilter
+{
+    /** The interval assumed between samples updated without a timestamp */
+    public static final int DEFAULT_INTERVAL_MILLIS = 20;
+
+    private final float [] average3D;
+    private final float timeConstantMillis;
+    private final double timeConstantNanos;
+    private long lastTimestamp;
+    private boolean isEmpty;
+
+    // Use these indexes to access the right axis
+    private static final int x = 0;
+    private static final int y = 1;
+    private static final int z = 2;
+
+    /**
+     * @param timeConstantMillis the time constant (tau) in milliseconds: after a step change of
+     *                           the magnetic field, the filtered values cover about 63% of the
+     *                           step in tau, and 95% in 3 tau
+     * @throws IllegalArgumentException if the time constant is not positive
+     */
+    public TimeConstantFilter(float timeConstantMillis)
+    {
+        if (!(timeConstantMillis > 0))
+            throw new IllegalArgumentException(
+                    "The time constant must be positive: " + timeConstantMillis);
+
+        this.timeConstantMillis = timeConstantMillis;
+        timeConstantNanos = timeConstantMillis * 1e6;
+        average3D = new float[3];
+        isEmpty = true;
+    }
+
+    @Override
+    public void update(long timestampNanos,
+                       float xMagneticField, float yMagneticField, float zMagneticField)
+    {
+        if (isEmpty)
+        {
+            average3D[x] = xMagneticField;
+            average3D[y] = yMagneticField;
+            average3D[z] = zMagneticField;
+            lastTimestamp = timestampNanos;
+            isEmpty = false;
+            return;
+        }
+
+        long elapsed = timestampNanos - lastTimestamp;
+        // Out of order samples (elapsed <= 0) move neither the average nor the clock
+        if (elapsed <= 0)
+            return;
+        lastTimestamp = timestampNanos;
+
+        float smoothingFactor = (float) -Math.expm1(-elapsed / timeConstantNanos);
+        average3D[x] += smoothingFactor * (xMagneticField - average3D[x]);
+        average3D[y] += smoothingFactor * (yMagneticField - average3D[y]);
+        average3D[z] += smoothingFactor * (zMagneticField - average3D[z]);
+    }
+
+    @Override
+    public void update(float xMagneticField, float yMagneticField, float zMagneticField)
+    {
+        update(lastTimestamp + DEFAULT_INTERVAL_MILLIS * 1000000L,
+                xMagneticField, yMagneticField, zMagneticField);
+    }
+
+    @Override
+    public float[] getValues()
+    {
+        return average3D;
+    }
+
+    @Override
+    public float getX()
+    {
+        return average3D[x];
+    }
+
+    @Override
+    public float getY()
+    {
+        return average3D[y];
+    }
+
+    @Override
+    public float getZ()
+    {
+        return average3D[z];
+    }
+
+    public float getTimeConstantMillis()
+    {
+        return timeConstantMillis;
+    }
+
+    @Override
+    public void reset()
+    {
+        isEmpty = true;
+    }
+}
@@ -0,0 +1,20 @@
+package unipi.luk3s.magneto;
+
+/**
+ * <p>A {@link MagneticFilter} that takes into account when the samples were sensed, so that its
+ * behaviour does not depend on the sampling rate. {@link MagnetoPipeline} feeds it with the
+ * timestamps of the sensor events through {@link #update(long, float, float, float)}.</p>
+ *
+ * @see TimeConstantFilter
+ */
+public interface TimestampedMagneticFilter extends MagneticFilter
+{
+    /**
+     * @param timestampNanos the time in nanoseconds at which the sample was sensed
+     * @param xMagneticField the x coordinate of the magnetic field
+     * @param yMagneticField the y coordinate of the magnetic field
+     * @param zMagneticField the z coordinate of the magnetic field
+     */
+    void update(long timestampNanos,
+                float xMagneticField, float yMagneticField, float zMagneticField);
+}
@@ -1,7 +1,5 @@
 package unipi.luk3s.magneto;
 
-import static unipi.luk3s.magneto.MagnetoUtils.computeAzimuth;
-
 /**
  * <p>To be used together with {@link MagnetoFragment}.
  * Helps in detecting a virtual tap.</p>
@@ -10,17 +8,34 @@ import static unipi.luk3s.magneto.MagnetoUtils.computeAzimuth;
  * the initialisation has ended, the helper cab be called to detect taps using the
  * {@link #hasTapBeenDetected()} </p>
  *
+ * <p>Instead of polling, set a {@link TapListener} with {@link #setTapListener(TapListener)}.</p>
+ *
  * <p>For more information read Section 4.5.6 of
  * <a href="http://etd.adm.unipi.it/theses/available/etd-11152015-012617/">
  *     Interacting with mobile devices using magnetic fields</a></p>
  */
 public class VirtualTapHelper
 {
-    private final MagnetoFragment magneto;
+    private final MagneticReadingsSource magneto;
     private float lastStoredAzimuth;
     private boolean initialisationEnded;
-    
-    public VirtualTapHelper(MagnetoFragment magneto)
+    private TapListener tapListener;
+    private final MagnetoPipeline.SampleListener sampleListener =
+            new MagnetoPipeline.SampleListener()
+    {
+        @Override
+        public void onSampleProcessed(MagnetoPipeline pipeline)
+        {
+            TapListener listener = tapListener;
+            if (listener != null && initialisationEnded && hasTapBeenDetected())
+                listener.onTap(VirtualTapHelper.this);
+        }
+    };
+
+    /**
+     * @param magneto a {@link MagnetoFragment}, or any other {@link MagneticReadingsSource}
+     */
+    public VirtualTapHelper(MagneticReadingsSource magneto)
     {
         initialisationEnded = false;
         this.magneto = magneto;
@@ -28,7 +43,7 @@ public class VirtualTapHelper
 
     public void init()
     {
-        lastStoredAzimuth = computeAzimuth(magneto.getLastRoundedReadings());
+        lastStoredAzimuth = magneto.getLastFrame().getAzimuth();
         initialisationEnded = true;
     }
 
@@ -39,7 +54,7 @@ public class VirtualTapHelper
 
     public boolean hasTapBeenDetected()
     {
-        float currentAzimuth = computeAzimuth(magneto.getLastRoundedReadings());
+        float currentAzimuth = magneto.getLastFrame().getAzimuth();
 
         // a tap is recognised when two azimuths have opposite signs
         // if the sings are opposite the xor gives a negative number
@@ -51,4 +66,27 @@ public class VirtualTapHelper
 
         return false;
     }
+
+    /**
+     * <p>Sets the listener notified of the virtual taps, or removes it if {@code null}. While a
+     * listener is set the helper is registered as a {@link MagnetoPipeline.SampleListener} of its
+     * {@link MagneticReadingsSource}.</p>
+     */
+    public void setTapListener(TapListener listener)
+    {
+        if (tapListener == null && listener != null)
+            magneto.addSampleListener(sampleListener);
+        else if (tapListener != null && listener == null)
+            magneto.removeSampleListener(sampleListener);
+
+        tapListener = listener;
+    }
+
+    /**
+     * <p>Used for receiving the virtual taps, see {@link #setTapListener(TapListener)}.</p>
+     */
+    public interface TapListener
+    {
+        void onTap(VirtualTapHelper helper);
+    }
 }
@@ -0,0 +1,43 @@
+package unipi.luk3s.magneto;
+
+/**
+ * <p>A {@link MagneticReadingsSource} whose rounded readings are set by the tests.</p>
+ */
+class FixedReadingsSource implements MagneticReadingsSource
+{
+    private final float[] roundedReadings = new float[3];
+    private final float[] highPassReadings = new float[3];
+    private final MagneticFrame frame = new MagneticFrame(roundedReadings, highPassReadings);
+
+    void set(float x, float y, float z)
+    {
+        roundedReadings[0] = x;
+        roundedReadings[1] = y;
+        roundedReadings[2] = z;
+        frame.invalidate();
+    }
+
+    @Override
+    public float[] getLastRoundedReadings()
+    {
+        return roundedReadings;
+    }
+
+    @Override
+    public float[] getLastHighPassReadings()
+    {
+        return highPassReadings;
+    }
+
+    @Override
+    public MagneticFrame getLastFrame()
+    {
+        return frame;
+    }
+
+    @Override
+    public void addSampleListener(MagnetoPipeline.SampleListener listener) {}
+
+    @Override
+    public void removeSampleListener(MagnetoPipeline.SampleListener listener) {}
+}
@@ -0,0 +1,149 @@
+package unipi.luk3s.magneto;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static unipi.luk3s.magneto.MagnetoUtils.computeRoundedNorm;
+
+public class IdentificationHelperTest
+{
+    @Test
+    public void theClosestStoredMagnitudeMatches()
+    {
+        FixedReadingsSource source = new FixedReadingsSource();
+        IdentificationHelper helper = new IdentificationHelper(source, 3, 5f);
+        source.set(60f, 0f, 0f);
+        assertEquals(0, helper.storeCurrentlySensedMagnitude());
+        source.set(20f, 0f, 0f);
+        assertEquals(1, helper.storeCurrentlySensedMagnitude());
+        source.set(24f, 0f, 0f);
+        assertEquals(2, helper.storeCurrentlySensedMagnitude());
+
+        // Both 20 and 24 are within the threshold, 24 is closer
+        source.set(22.5f, 0f, 0f);
+        assertTrue(helper.doesCurrentlySensedMagnitudeMatchAStoredOne());
+        assertEquals(2, helper.getLastMatchedMagnitudeIndex());
+
+        // Equally close: the lowest AID wins
+        source.set(22f, 0f, 0f);
+        assertTrue(helper.doesCurrentlySensedMagnitudeMatchAStoredOne());
+        assertEquals(1, helper.getLastMatchedMagnitudeIndex());
+
+        // The threshold is inclusive
+        source.set(65f, 0f, 0f);
+        assertTrue(helper.doesCurrentlySensedMagnitudeMatchAStoredOne());
+        assertEquals(0, helper.getLastMatchedMagnitudeIndex());
+
+        source.set(40f, 0f, 0f);
+        assertFalse(helper.doesCurrentlySensedMagnitudeMatchAStoredOne());
+    }
+
+    @Test
+    public void binarySearchMatchesALinearScan()
+    {
+        Random random = new Random(5);
+        int magnets = 1000;
+        float threshold = 0.5f;
+        float[] stored = new float[magnets];
+
+        FixedReadingsSource source = new FixedReadingsSource();
+        IdentificationHelper helper = new IdentificationHelper(source, magnets, threshold);
+        for (int i = 0; i < magnets; i++)
+        {
+            // Coarse magnitudes, so that many magnets share the same one
+            stored[i] = random.nextInt(400) / 4f;
+            source.set(stored[i], 0f, 0f);
+            helper.storeCurrentlySensedMagnitude();
+        }
+
+        for (int query = 0; query < 5000; query++)
+        {
+            source.set(random.nextInt(11000) / 100f, 0f, 0f);
+            float current = computeRoundedNorm(source.getLastRoundedReadings());
+
+            int expected = -1;
+            float expectedDistance = Float.POSITIVE_INFINITY;
+            for (int i = 0; i < magnets; i++)
+            {
+                float distance = Math.abs(current - stored[i]);
+                if (current >= stored[i] - threshold && current <= stored[i] + threshold
+                        && distance < expectedDistance)
+                {
+                    expected = i;
+                    expectedDistance = distance;
+                }
+            }
+
+            assertEquals(expected >= 0, helper.doesCurrentlySensedMagnitudeMatchAStoredOne());
+            if (expected >= 0)
+                assertEquals(expected, helper.getLastMatchedMagnitudeIndex());
+        }
+    }
+
+    @Test
+    public void magnetsCanBeChangedAtRuntimeKeepingTheirAids()
+    {
+        FixedReadingsSource source = new FixedReadingsSource();
+        IdentificationHelper helper = new IdentificationHelper(source, 1, 1f);
+        source.set(10f, 0f, 0f);
+        assertEquals(0, helper.storeCurrentlySensedMagnitude());
+        assertEquals(-1, helper.storeCurrentlySensedMagnitude());
+        source.set(20f, 0f, 0f);
+        assertEquals(1, helper.addCurrentlySensedMagnitude());
+        source.set(30f, 0f, 0f);
+        assertEquals(2, helper.addCurrentlySensedMagnitude());
+
+        assertTrue(helper.removeStoredMagnitude(1));
+        assertFalse(helper.removeStoredMagnitude(1));
+        assertEquals(2, helper.getNumberOfStoredMagnitudes());
+        source.set(20f, 0f, 0f);
+        assertFalse(helper.doesCurrentlySensedMagnitudeMatchAStoredOne());
+
+        // After recalibration the magnet with AID 2 has the same magnitude of the one with AID 0
+        source.set(10f, 0f, 0f);
+        assertTrue(helper.replaceStoredMagnitude(2));
+        assertTrue(helper.doesCurrentlySensedMagnitudeMatchAStoredOne());
+        assertEquals(0, helper.getLastMatchedMagnitudeIndex());
+        assertTrue(helper.removeStoredMagnitude(0));
+        assertTrue(helper.doesCurrentlySensedMagnitudeMatchAStoredOne());
+        assertEquals(2, helper.getLastMatchedMagnitudeIndex());
+
+        assertEquals(3, helper.addCurrentlySensedMagnitude());
+    }
+
+    @Test
+    public void theListenerIsNotifiedOnlyWhenTheMagnetChanges()
+    {
+        MagnetoPipeline pipeline = new MagnetoPipeline(new SimpleMovingAverage(1));
+        IdentificationHelper helper = new IdentificationHelper(pipeline, 2, 1f);
+        pipeline.process(0, 100f, 0f, 0f);
+        helper.storeCurrentlySensedMagnitude();
+        pipeline.process(1, 0f, 150f, 0f);
+        helper.storeCurrentlySensedMagnitude();
+
+        final StringBuilder events = new StringBuilder();
+        helper.setIdentificationListener(new IdentificationHelper.IdentificationListener()
+        {
+            @Override
+            public void onMagnetIdentified(IdentificationHelper helper, int aid)
+            {
+                events.append("+").append(aid).append(' ');
+            }
+
+            @Override
+            public void onMagnetLost(IdentificationHelper helper, int aid)
+            {
+                events.append("-").append(aid).append(' ');
+            }
+        });
+
+        float[] xs = {50f, 100f, 100.5f, 150f, 150f, 40f};
+        for (int i = 0; i < xs.length; i++)
+            pipeline.process(2 + i, xs[i], 0f, 0f);
+        assertEquals("+0 -0 +1 -1 ", events.toString());
+    }
+}
@@ -0,0 +1,160 @@
+package unipi.luk3s.magneto;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class MagneticFilterTest
+{
+    @Test
+    public void movingAveragesMatchTheMeanOfTheWindow()
+    {
+        int window = 7;
+        MagneticFilter[] filters = {new SimpleMovingAverage(window),
+                new CompensatedMovingAverage(window)};
+
+        Random random = new Random(1);
+        float[][] samples = new float[10000][3];
+        for (int i = 0; i < samples.length; i++)
+            for (int axis = 0; axis < 3; axis++)
+                samples[i][axis] = 50f + 200f * random.nextFloat();
+
+        for (MagneticFilter filter : filters)
+        {
+            for (int i = 0; i < samples.length; i++)
+            {
+                filter.update(samples[i][0], samples[i][1], samples[i][2]);
+                if (i < window)
+                    continue;
+
+                for (int axis = 0; axis < 3; axis++)
+                {
+                    double mean = 0;
+                    for (int j = i - window + 1; j <= i; j++)
+                        mean += samples[j][axis];
+                    mean /= window;
+                    assertEquals(mean, filter.getValues()[axis], 1e-3);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void exponentialMovingAverageConvergesToAConstantInput()
+    {
+        MagneticFilter filter = new ExponentialMovingAverage(0.5f);
+        filter.update(0f, 0f, 0f);
+        for (int i = 0; i < 40; i++)
+            filter.update(10f, -10f, 20f);
+
+        assertEquals(10f, filter.getX(), 1e-4);
+        assertEquals(-10f, filter.getY(), 1e-4);
+        assertEquals(20f, filter.getZ(), 1e-4);
+    }
+
+    @Test
+    public void resetRestartsTheFilter()
+    {
+        MagneticFilter filter = MagneticFilters.newFilter(MagneticFilter.SIMPLE_MOVING_AVERAGE, 5);
+        for (int i = 0; i < 20; i++)
+            filter.update(i, i, i);
+
+        filter.reset();
+        filter.update(-3f, 4f, 5f);
+
+        assertEquals(-3f, filter.getX(), 0f);
+        assertEquals(4f, filter.getY(), 0f);
+        assertEquals(5f, filter.getZ(), 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownFilterTypesAreRejected()
+    {
+        MagneticFilters.newFilter(42, 1f);
+    }
+
+    @Test
+    public void timeConstantFilterDoesNotDependOnTheSamplingRate()
+    {
+        // A 10 uT step sampled at 50 Hz, at 200 Hz and with jitter: after one time constant the
+        // filter always covers 1 - 1/e of the step
+        long[] intervalsNanos = {20000000L, 5000000L};
+        Random random = new Random(7);
+        for (int rate = 0; rate < 3; rate++)
+        {
+            TimeConstantFilter filter = new TimeConstantFilter(100f);
+            filter.update(0L, 0f, 0f, 0f);
+            long timestamp = 0;
+            while (timestamp < 100000000L)
+            {
+                long interval = (rate < 2) ? intervalsNanos[rate] :
+                        5000000L + (long) (random.nextFloat() * 15000000L);
+                timestamp = Math.min(timestamp + interval, 100000000L);
+                filter.update(timestamp, 10f, 0f, -10f);
+            }
+            assertEquals(10 * (1 - Math.exp(-1)), filter.getX(), 1e-4);
+            assertEquals(-10 * (1 - Math.exp(-1)), filter.getZ(), 1e-4);
+        }
+    }
+
+    @Test
+    public void outOfOrderSamplesAreIgnoredByTheTimeConstantFilter()
+    {
+        TimeConstantFilter ordered = new TimeConstantFilter(100f);
+        TimeConstantFilter shuffled = new TimeConstantFilter(100f);
+        for (TimeConstantFilter filter : new TimeConstantFilter[]{ordered, shuffled})
+        {
+            filter.update(0L, 0f, 0f, 0f);
+            filter.update(100000000L, 10f, 0f, 0f);
+        }
+        shuffled.update(50000000L, 1000f, 0f, 0f);
+        ordered.update(110000000L, 10f, 0f, 0f);
+        shuffled.update(110000000L, 10f, 0f, 0f);
+
+        assertEquals(ordered.getX(), shuffled.getX(), 0f);
+    }
+
+    @Test
+    public void bulkProcessingMatchesTheSampleBySampleUpdates()
+    {
+        Random random = new Random(3);
+        int[] chunks = {1, 2, 5, 7, 31, 64, 1};
+        for (int type = 0; type <= MagneticFilter.TIME_CONSTANT; type++)
+        {
+            for (int parameter : new int[]{1, 4, 7, 16})
+            {
+                float value = (type == MagneticFilter.EXPONENTIAL_MOVING_AVERAGE) ?
+                        1f / parameter : parameter;
+                MagneticFilter bulk = MagneticFilters.newFilter(type, value);
+                MagneticFilter reference = MagneticFilters.newFilter(type, value);
+
+                for (int n : chunks)
+                {
+                    float[] xs = new float[n], ys = new float[n], zs = new float[n];
+                    for (int i = 0; i < n; i++)
+                    {
+                        xs[i] = 200f * random.nextFloat() - 100f;
+                        ys[i] = 200f * random.nextFloat() - 100f;
+                        zs[i] = 200f * random.nextFloat() - 100f;
+                    }
+                    float[] low = new float[3 * n], high = new float[3 * n];
+                    MagneticFilters.process(bulk, xs, ys, zs, n, low, high);
+
+                    for (int i = 0; i < n; i++)
+                    {
+                        reference.update(xs[i], ys[i], zs[i]);
+                        // Bit for bit the same values
+                        assertEquals(reference.getX(), low[i], 0f);
+                        assertEquals(reference.getY(), low[n + i], 0f);
+                        assertEquals(reference.getZ(), low[2 * n + i], 0f);
+                        assertEquals(xs[i] - reference.getX(), high[i], 0f);
+                        assertEquals(zs[i] - reference.getZ(), high[2 * n + i], 0f);
+                    }
+                    assertEquals(reference.getY(), bulk.getY(), 0f);
+                }
+            }
+        }
+    }
+}
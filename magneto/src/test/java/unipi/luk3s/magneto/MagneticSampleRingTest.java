@@ -0,0 +1,84 @@
+package unipi.luk3s.magneto;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MagneticSampleRingTest
+{
+    @Test
+    public void samplesThatDoNotFitAreDropped()
+    {
+        MagneticSampleRing ring = new MagneticSampleRing(3);
+        assertEquals(4, ring.capacity());
+
+        for (int i = 0; i < 4; i++)
+            assertTrue(ring.offer(i, i, 2 * i, 3 * i));
+        assertFalse(ring.offer(4, 4, 8, 12));
+        assertEquals(1, ring.getDroppedSamples());
+
+        MagneticSampleBatch batch = new MagneticSampleBatch(3);
+        assertEquals(3, ring.drainTo(batch));
+        assertEquals(1, ring.size());
+        for (int i = 0; i < 3; i++)
+        {
+            assertEquals(i, batch.getTimestamp(i));
+            assertEquals(2f * i, batch.getY(i), 0f);
+        }
+
+        assertTrue(ring.offer(5, 5, 10, 15));
+        batch.clear();
+        assertEquals(2, ring.drainTo(batch));
+        assertEquals(3, batch.getTimestamp(0));
+        assertEquals(5, batch.getTimestamp(1));
+        assertEquals(15f, batch.getZ(1), 0f);
+    }
+
+    @Test
+    public void everySampleIsConsumedInOrder() throws InterruptedException
+    {
+        final MagneticSampleRing ring = new MagneticSampleRing(64);
+        final int samples = 500000;
+        final AtomicReference<String> failure = new AtomicReference<String>();
+
+        Thread consumer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                MagneticSampleBatch batch = new MagneticSampleBatch(16);
+                long expected = 0;
+                while (expected < samples)
+                {
+                    batch.clear();
+                    if (ring.drainTo(batch) == 0)
+                        Thread.yield();
+                    for (int i = 0; i < batch.size(); i++, expected++)
+                    {
+                        if (batch.getTimestamp(i) != expected || batch.getX(i) != (float) expected
+                                || batch.getZ(i) != -(float) expected)
+                        {
+                            failure.set("Expected sample " + expected + ", got "
+                                    + batch.getTimestamp(i));
+                            return;
+                        }
+                    }
+                }
+            }
+        });
+        consumer.start();
+
+        for (int n = 0; n < samples; n++)
+            while (!ring.offer(n, n, 0, -n))
+                Thread.yield();
+
+        consumer.join(10000);
+        assertFalse(consumer.isAlive());
+        assertNull(failure.get());
+    }
+}
@@ -0,0 +1,83 @@
+package unipi.luk3s.magneto;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class MagneticSnapshotTest
+{
+    @Test
+    public void theLastProcessedSampleIsRead()
+    {
+        MagnetoPipeline pipeline = new MagnetoPipeline(new SimpleMovingAverage(2));
+        MagneticSnapshot snapshot = new MagneticSnapshot();
+        pipeline.addSampleListener(snapshot);
+
+        float[] values = new float[MagneticSnapshot.ALL_VALUES_LENGTH];
+        assertEquals(0, snapshot.readLatest(values));
+
+        pipeline.process(0, 10f, 20f, 30f);
+        pipeline.process(1, 12f, 20f, 30f);
+        assertEquals(2, snapshot.readLatest(values));
+        assertArrayEquals(new float[]{11f, 20f, 30f, 1f, 0f, 0f}, values, 0f);
+
+        float[] roundedOnly = new float[MagneticSnapshot.ROUNDED_VALUES_LENGTH];
+        assertEquals(2, snapshot.readLatest(roundedOnly));
+        assertArrayEquals(new float[]{11f, 20f, 30f}, roundedOnly, 0f);
+    }
+
+    @Test
+    public void readersNeverSeeTornSamples() throws InterruptedException
+    {
+        final MagneticSnapshot snapshot = new MagneticSnapshot();
+        final int samples = 200000;
+        final AtomicReference<String> failure = new AtomicReference<String>();
+
+        Thread reader = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                float[] values = new float[MagneticSnapshot.ALL_VALUES_LENGTH];
+                long lastSequence = 0;
+                while (lastSequence < samples)
+                {
+                    long sequence = snapshot.readLatest(values);
+                    if (sequence == 0)
+                        continue;
+
+                    // The writer publishes (n, n, n) and (-n, -n, -n) as the n-th sample
+                    float n = sequence;
+                    if (sequence < lastSequence || values[0] != n || values[1] != n
+                            || values[2] != n || values[3] != -n || values[4] != -n
+                            || values[5] != -n)
+                    {
+                        failure.set("Sample " + sequence + " read as " + Arrays.toString(values));
+                        return;
+                    }
+                    lastSequence = sequence;
+                }
+            }
+        });
+        reader.start();
+
+        float[] rounded = new float[3];
+        float[] highPass = new float[3];
+        for (int n = 1; n <= samples; n++)
+        {
+            rounded[0] = rounded[1] = rounded[2] = n;
+            highPass[0] = highPass[1] = highPass[2] = -n;
+            snapshot.publish(rounded, highPass);
+        }
+
+        reader.join(10000);
+        assertFalse(reader.isAlive());
+        assertNull(failure.get());
+    }
+}
@@ -0,0 +1,91 @@
+package unipi.luk3s.magneto;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class MagnetoCsvExporterTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordsAreStreamedToTheFile() throws Exception
+    {
+        File file = folder.newFile("readings.csv");
+        MagnetoCsvExporter exporter = new MagnetoCsvExporter(file, true, true);
+        // More chunks than can exist at once, which are reused
+        int records = 20 * MagnetoCsvExporter.RECORDS_PER_CHUNK + 1;
+        for (int i = 0; i < records; i++)
+            exporter.append(new float[]{3f, 4f, i}, new float[]{0.5f, -0.5f, 0f});
+
+        final int[] exported = new int[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        exporter.close(new MagnetoCsvExporter.Callback()
+        {
+            @Override
+            public void onExportCompleted(File file, int records)
+            {
+                exported[0] = records;
+                done.countDown();
+            }
+
+            @Override
+            public void onExportFailed(File file, IOException error)
+            {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(records, exported[0]);
+
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        assertEquals("x,y,z,hx,hy,hz,norm", reader.readLine());
+        assertEquals("3.0,4.0,0.0,0.5,-0.5,0.0,5.0", reader.readLine());
+        int rows = 1;
+        String row;
+        while ((row = reader.readLine()) != null)
+            assertEquals(rows++, Float.parseFloat(row.split(",")[2]), 0f);
+        reader.close();
+        assertEquals(records, rows);
+    }
+
+    @Test
+    public void failuresAreReported() throws Exception
+    {
+        File file = new File(folder.newFolder(), "missing/readings.csv");
+        MagnetoCsvExporter exporter = new MagnetoCsvExporter(file, false, false);
+        exporter.append(new float[]{1f, 2f, 3f});
+
+        final IOException[] failure = new IOException[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        exporter.close(new MagnetoCsvExporter.Callback()
+        {
+            @Override
+            public void onExportCompleted(File file, int records)
+            {
+                done.countDown();
+            }
+
+            @Override
+            public void onExportFailed(File file, IOException error)
+            {
+                failure[0] = error;
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertNotNull(failure[0]);
+    }
+}
@@ -0,0 +1,81 @@
+package unipi.luk3s.magneto;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MagnetoMetricsTest
+{
+    @Test
+    public void bucketsCoverEveryValueWithABoundedError()
+    {
+        Random random = new Random(11);
+        for (int i = 0; i < 100000; i++)
+        {
+            long value = random.nextLong() >>> (24 + random.nextInt(40));
+            int index = LatencyHistogram.indexOf(value);
+            long lowest = LatencyHistogram.lowestValueOf(index);
+            long next = LatencyHistogram.lowestValueOf(index + 1);
+
+            assertTrue(value + " in bucket " + index, lowest <= value && value < next);
+            assertTrue(value + " in bucket " + index, next - lowest <= Math.max(1, lowest / 32));
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinThreePercent()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long nanos = 1; nanos <= 100000; nanos++)
+            histogram.record(nanos);
+        histogram.record(-5);
+
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100000, histogram.getMax());
+        assertEquals(50000.5, histogram.getMean(), 1e-6);
+        for (double percentile : new double[]{1, 50, 90, 99, 99.9})
+        {
+            double expected = percentile * 1000;
+            assertEquals(expected, histogram.getValueAtPercentile(percentile), 0.032 * expected);
+        }
+        assertEquals(100000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void thePipelineCountsSamplesAndTimesTheHelpers()
+    {
+        MagnetoPipeline pipeline = new MagnetoPipeline();
+        RapidChangesHelper helper = new RapidChangesHelper(pipeline);
+        helper.setTapListener(new RapidChangesHelper.TapListener()
+        {
+            @Override
+            public void onTap(RapidChangesHelper helper, int tapCounter) {}
+        });
+
+        for (int i = 0; i < 50; i++)
+            pipeline.process(i, 10f, 20f, 30f);
+
+        MagnetoMetrics metrics = new MagnetoMetrics();
+        pipeline.setMetrics(metrics);
+        for (int i = 50; i < 150; i++)
+            pipeline.process(i, 10f, 20f, 30f);
+
+        MagnetoMetrics snapshot = metrics.snapshot();
+        pipeline.process(150, 10f, 20f, 30f);
+
+        assertEquals(100, snapshot.getCounter(MagnetoMetrics.SAMPLES_PROCESSED));
+        assertEquals(100, snapshot.getHistogram(MagnetoMetrics.HELPERS).getCount());
+        assertEquals(0, snapshot.getHistogram(MagnetoMetrics.DISPATCH).getCount());
+        assertEquals(101, metrics.getCounter(MagnetoMetrics.SAMPLES_PROCESSED));
+        assertTrue(snapshot.toString(), snapshot.toString().contains("samples processed"));
+
+        metrics.reset();
+        assertEquals(0, metrics.getHistogram(MagnetoMetrics.HELPERS).getCount());
+        pipeline.setMetrics(null);
+        pipeline.process(151, 10f, 20f, 30f);
+        assertEquals(0, metrics.getCounter(MagnetoMetrics.SAMPLES_PROCESSED));
+    }
+}
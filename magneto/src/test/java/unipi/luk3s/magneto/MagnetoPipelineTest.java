@@ -0,0 +1,186 @@
+package unipi.luk3s.magneto;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MagnetoPipelineTest
+{
+    private static final long SAMPLE_PERIOD_NANOS = 20000000L;
+
+    @Test
+    public void firstSampleFillsTheLowPassFilter()
+    {
+        MagnetoPipeline pipeline = new MagnetoPipeline();
+        pipeline.process(0, 10.123f, -20.456f, 30.789f);
+
+        assertArrayEquals(new float[]{10.12f, -20.46f, 30.79f},
+                pipeline.getLastRoundedReadings(), 0f);
+        assertArrayEquals(new float[]{0f, 0f, 0f}, pipeline.getLastHighPassReadings(), 0f);
+        assertEquals(1, pipeline.getProcessedSamples());
+    }
+
+    @Test
+    public void bitExactRoundingMatchesMagnetoUtilsRound()
+    {
+        MagnetoPipeline pipeline = new MagnetoPipeline();
+        pipeline.setBitExactRounding(true);
+
+        long timestamp = 0;
+        for (int i = 0; i < 1000; i++)
+        {
+            float x = i * 0.137f - 50f;
+            pipeline.process(timestamp += SAMPLE_PERIOD_NANOS, x, -x / 3, 0.005f * i);
+
+            float[] lowPass = pipeline.getLastReadings();
+            assertEquals(MagnetoUtils.round(lowPass[0]), pipeline.getLastRoundedReadings()[0], 0f);
+            assertEquals(MagnetoUtils.round(x - lowPass[0]), pipeline.getLastHighPassReadings()[0], 0f);
+            assertEquals(MagnetoUtils.round(0.005f * i - lowPass[2]),
+                    pipeline.getLastHighPassReadings()[2], 0f);
+        }
+    }
+
+    @Test
+    public void aGapBetweenSamplesResetsTheFilter()
+    {
+        MagnetoPipeline pipeline = new MagnetoPipeline(new SimpleMovingAverage(4));
+        long millis = 1000000L;
+        for (int i = 0; i < 10; i++)
+            pipeline.process(i * 20 * millis, 40f, 0f, 0f);
+
+        // After a pause the values sensed before it are forgotten: no spurious high-pass spike
+        pipeline.process(2000 * millis, 10f, 0f, 0f);
+        assertEquals(10f, pipeline.getLastRoundedReadings()[0], 0f);
+        assertEquals(0f, pipeline.getLastHighPassReadings()[0], 0f);
+
+        pipeline.setMaxSampleGapMillis(0);
+        pipeline.process(4000 * millis, 50f, 0f, 0f);
+        assertEquals(20f, pipeline.getLastRoundedReadings()[0], 0f);
+    }
+
+    @Test
+    public void theFrameMatchesMagnetoUtilsForEverySample()
+    {
+        MagnetoPipeline pipeline = new MagnetoPipeline();
+        MagneticFrame frame = pipeline.getLastFrame();
+        Random random = new Random(11);
+        for (int i = 0; i < 100; i++)
+        {
+            pipeline.process(i, random.nextFloat() * 100 - 50, random.nextFloat() * 100 - 50,
+                    random.nextFloat() * 100 - 50);
+            float[] rounded = pipeline.getLastRoundedReadings();
+            float[] highPass = pipeline.getLastHighPassReadings();
+
+            // Twice, the second time from the memoized values
+            for (int j = 0; j < 2; j++)
+            {
+                assertEquals(MagnetoUtils.computeNorm(rounded), frame.getNorm(), 0f);
+                assertEquals(MagnetoUtils.computeRoundedNorm(rounded), frame.getRoundedNorm(), 0f);
+                assertEquals(MagnetoUtils.computeAzimuth(rounded), frame.getAzimuth(), 0f);
+                assertEquals(MagnetoUtils.computeNorm(highPass), frame.getHighPassNorm(), 0f);
+                assertEquals(MagnetoUtils.computeRoundedNorm(highPass),
+                        frame.getRoundedHighPassNorm(), 0f);
+            }
+        }
+    }
+
+    @Test
+    public void sampleListenersDriveTheHelpers()
+    {
+        MagnetoPipeline pipeline = new MagnetoPipeline();
+        final RapidChangesHelper helper = new RapidChangesHelper(pipeline);
+        helper.setLowThreshold(2);
+        helper.setHighThreshold(10);
+        helper.endInit();
+
+        final int[] taps = new int[1];
+        pipeline.addSampleListener(new MagnetoPipeline.SampleListener()
+        {
+            @Override
+            public void onSampleProcessed(MagnetoPipeline pipeline)
+            {
+                if (helper.hasATapBeenDetected())
+                    taps[0]++;
+            }
+        });
+
+        long timestamp = 0;
+        for (int tap = 0; tap < 3; tap++)
+        {
+            for (int i = 0; i < 30; i++)
+                pipeline.process(timestamp += SAMPLE_PERIOD_NANOS, 20f, 0f, -40f);
+            for (int i = 0; i < 3; i++)
+                pipeline.process(timestamp += SAMPLE_PERIOD_NANOS, 120f, 0f, -40f);
+        }
+
+        assertEquals(3, taps[0]);
+        assertEquals(3, helper.getTapCounter());
+        assertEquals(timestamp, pipeline.getLastTimestamp());
+    }
+
+    @Test
+    public void batchedSamplesProduceTheSameDetections()
+    {
+        Random random = new Random(7);
+        int samples = 5000;
+        long[] timestamps = new long[samples];
+        float[][] values = new float[samples][];
+        for (int i = 0; i < samples; i++)
+        {
+            timestamps[i] = i * SAMPLE_PERIOD_NANOS + random.nextInt(1000000);
+            float magnet = (random.nextInt(40) == 0) ? 100f : 0f;
+            values[i] = new float[]{20f + magnet + (float) random.nextGaussian(),
+                    -15f + (float) random.nextGaussian(), -42f + (float) random.nextGaussian()};
+        }
+
+        MagnetoPipeline unbatched = new MagnetoPipeline();
+        List<Long> expected = recordTaps(unbatched);
+        for (int i = 0; i < samples; i++)
+            unbatched.process(timestamps[i], values[i]);
+
+        MagnetoPipeline batched = new MagnetoPipeline();
+        List<Long> actual = recordTaps(batched);
+        MagneticSampleBatch batch = new MagneticSampleBatch(64);
+        for (int i = 0; i < samples; i++)
+        {
+            batch.add(timestamps[i], values[i][0], values[i][1], values[i][2]);
+            // Bursts of random length, as delivered by a hardware FIFO
+            if (batch.isFull() || random.nextInt(20) == 0 || i == samples - 1)
+            {
+                batched.process(batch);
+                batch.clear();
+            }
+        }
+
+        assertTrue(expected.size() > 0);
+        assertEquals(expected, actual);
+        assertArrayEquals(unbatched.getLastHighPassReadings(), batched.getLastHighPassReadings(), 0f);
+    }
+
+    /** @return the timestamps of the taps detected by the pipeline, filled while it runs */
+    private static List<Long> recordTaps(MagnetoPipeline pipeline)
+    {
+        final List<Long> taps = new ArrayList<>();
+        final RapidChangesHelper helper = new RapidChangesHelper(pipeline);
+        helper.setLowThreshold(5);
+        helper.setHighThreshold(30);
+        helper.endInit();
+
+        pipeline.addSampleListener(new MagnetoPipeline.SampleListener()
+        {
+            @Override
+            public void onSampleProcessed(MagnetoPipeline pipeline)
+            {
+                if (helper.hasATapBeenDetected())
+                    taps.add(pipeline.getLastTimestamp());
+            }
+        });
+        return taps;
+    }
+}
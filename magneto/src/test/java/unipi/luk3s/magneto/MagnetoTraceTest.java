@@ -0,0 +1,97 @@
+package unipi.luk3s.magneto;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MagnetoTraceTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recordedSamplesAreReadBack() throws IOException
+    {
+        File file = folder.newFile("trace.bin");
+        // A tiny buffer forces several writes to the file
+        MagnetoTraceWriter writer = new MagnetoTraceWriter(file, 7);
+        for (int i = 0; i < 100; i++)
+            writer.write(1000L * i, i, -i, i / 2f, i % 4);
+        writer.close();
+
+        assertEquals(MagnetoTraceWriter.HEADER_SIZE + 100 * MagnetoTraceWriter.RECORD_SIZE,
+                file.length());
+
+        MagnetoTraceReader reader = new MagnetoTraceReader(file);
+        assertEquals(100, reader.size());
+        for (int i = 0; i < 100; i++)
+        {
+            assertEquals(1000L * i, reader.getTimestamp(i));
+            assertEquals(i, reader.getX(i), 0f);
+            assertEquals(-i, reader.getY(i), 0f);
+            assertEquals(i / 2f, reader.getZ(i), 0f);
+            assertEquals(i % 4, reader.getAccuracy(i));
+        }
+        reader.close();
+    }
+
+    @Test
+    public void replayMatchesLiveProcessing() throws IOException
+    {
+        File file = folder.newFile("trace.bin");
+        MagnetoPipeline live = new MagnetoPipeline();
+        MagnetoTraceWriter writer = new MagnetoTraceWriter(file);
+        for (int i = 0; i < 500; i++)
+        {
+            float x = 20f + ((i % 50 < 3) ? 80f : 0f);
+            writer.write(20000000L * i, x, -15f, -42f, 3);
+            live.process(20000000L * i, x, -15f, -42f);
+        }
+        writer.close();
+
+        MagnetoPipeline replayed = new MagnetoPipeline();
+        MagnetoTraceReader reader = new MagnetoTraceReader(file);
+        assertEquals(500, reader.replay(replayed));
+        reader.close();
+
+        assertEquals(live.getLastTimestamp(), replayed.getLastTimestamp());
+        assertArrayEquals(live.getLastReadings(), replayed.getLastReadings(), 0f);
+        assertArrayEquals(live.getLastHighPassReadings(), replayed.getLastHighPassReadings(), 0f);
+    }
+
+    @Test
+    public void truncatedRecordsAreIgnored() throws IOException
+    {
+        File file = folder.newFile("trace.bin");
+        MagnetoTraceWriter writer = new MagnetoTraceWriter(file);
+        for (int i = 0; i < 10; i++)
+            writer.write(i, 1f, 2f, 3f, 0);
+        writer.close();
+
+        RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        truncated.setLength(file.length() - 5);
+        truncated.close();
+
+        MagnetoTraceReader reader = new MagnetoTraceReader(file);
+        assertEquals(9, reader.size());
+        reader.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws IOException
+    {
+        File file = folder.newFile("notATrace.bin");
+        RandomAccessFile notATrace = new RandomAccessFile(file, "rw");
+        notATrace.writeUTF("x,y,z,norm\n1,2,3,4\n");
+        notATrace.close();
+
+        new MagnetoTraceReader(file);
+    }
+}
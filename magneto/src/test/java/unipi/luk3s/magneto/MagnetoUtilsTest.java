@@ -0,0 +1,34 @@
+package unipi.luk3s.magneto;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MagnetoUtilsTest
+{
+    @Test
+    public void roundFastIsAtMostOneHundredthAwayFromRound()
+    {
+        Random random = new Random(3);
+        int samples = 1000000, different = 0;
+        for (int i = 0; i < samples; i++)
+        {
+            // Beyond the range of any compass sensor
+            float value = (random.nextFloat() * 2 - 1) * 2000f;
+            float fast = MagnetoUtils.roundFast(value);
+            float exact = MagnetoUtils.round(value);
+            if (fast != exact)
+            {
+                different++;
+                assertEquals("Rounding " + value, exact, fast, 0.01f + Math.ulp(value));
+            }
+        }
+
+        // Only the values (almost) halfway between two hundredths
+        assertTrue(different + " different", different < samples / 100);
+        assertEquals(MagnetoUtils.round(-12.345678f), MagnetoUtils.roundFast(-12.345678f), 0f);
+    }
+}
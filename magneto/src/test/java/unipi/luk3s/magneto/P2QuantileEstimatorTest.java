@@ -0,0 +1,50 @@
+package unipi.luk3s.magneto;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class P2QuantileEstimatorTest
+{
+    @Test
+    public void estimatesMatchTheExactQuantiles()
+    {
+        Random random = new Random(5);
+        double[] values = new double[100000];
+        for (double quantile : new double[]{0.5, 0.9, 0.95, 0.99})
+        {
+            P2QuantileEstimator gaussian = new P2QuantileEstimator(quantile);
+            P2QuantileEstimator uniform = new P2QuantileEstimator(quantile);
+            for (int i = 0; i < values.length; i++)
+            {
+                values[i] = random.nextGaussian();
+                gaussian.add(values[i]);
+                uniform.add(random.nextDouble());
+            }
+
+            Arrays.sort(values);
+            double exact = values[(int) Math.ceil(quantile * values.length) - 1];
+            assertEquals(exact, gaussian.getQuantile(), 0.02);
+            assertEquals(quantile, uniform.getQuantile(), 0.01);
+            assertEquals(values.length, gaussian.getCount());
+        }
+    }
+
+    @Test
+    public void theFirstValuesGiveTheExactQuantile()
+    {
+        P2QuantileEstimator estimator = new P2QuantileEstimator(0.5);
+        assertEquals(0, estimator.getQuantile(), 0);
+        estimator.add(3);
+        estimator.add(1);
+        estimator.add(2);
+        assertEquals(2, estimator.getQuantile(), 0);
+
+        estimator.reset();
+        estimator.add(7);
+        assertEquals(7, estimator.getQuantile(), 0);
+    }
+}
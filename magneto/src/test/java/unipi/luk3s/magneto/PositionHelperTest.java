@@ -0,0 +1,160 @@
+package unipi.luk3s.magneto;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PositionHelperTest
+{
+    @Test
+    public void theNearestStoredFieldMatches()
+    {
+        FixedReadingsSource source = new FixedReadingsSource();
+        PositionHelper helper = new PositionHelper(source, 2, 5f);
+        source.set(10f, 10f, 10f);
+        helper.storeCurrentlySensedMagneticField();
+        source.set(14f, 10f, 10f);
+        helper.storeCurrentlySensedMagneticField();
+
+        // Both boxes contain the current field, the second stored one is nearer
+        source.set(12.5f, 10f, 10f);
+        assertTrue(helper.doesCurrentlySensedMagneticFieldMatchAStoredOne());
+        assertEquals(1, helper.getLastMatchedMagneticFieldIndex());
+
+        source.set(30f, 10f, 10f);
+        assertFalse(helper.doesCurrentlySensedMagneticFieldMatchAStoredOne());
+    }
+
+    @Test
+    public void indexMatchesALinearScan()
+    {
+        Random random = new Random(3);
+        int positions = 2000;
+        float threshold = 3f;
+        float[][] stored = new float[positions][];
+
+        FixedReadingsSource source = new FixedReadingsSource();
+        PositionHelper helper = new PositionHelper(source, positions, threshold);
+        for (int i = 0; i < positions; i++)
+        {
+            // Coarse coordinates, so that many stored fields share some of them
+            stored[i] = new float[]{random.nextInt(40), random.nextInt(40), random.nextInt(40)};
+            source.set(stored[i][0], stored[i][1], stored[i][2]);
+            helper.storeCurrentlySensedMagneticField();
+        }
+
+        for (int query = 0; query < 5000; query++)
+        {
+            float[] current = {random.nextFloat() * 44 - 2, random.nextFloat() * 44 - 2,
+                    random.nextFloat() * 44 - 2};
+            source.set(current[0], current[1], current[2]);
+
+            int expected = -1;
+            float expectedDistance = Float.POSITIVE_INFINITY;
+            for (int i = 0; i < positions; i++)
+            {
+                boolean inside = true;
+                float distance = 0;
+                for (int axis = 0; axis < 3; axis++)
+                {
+                    inside &= stored[i][axis] > current[axis] - threshold
+                            && stored[i][axis] < current[axis] + threshold;
+                    float diff = stored[i][axis] - current[axis];
+                    distance += diff * diff;
+                }
+                if (inside && distance < expectedDistance)
+                {
+                    expected = i;
+                    expectedDistance = distance;
+                }
+            }
+
+            assertEquals(expected >= 0, helper.doesCurrentlySensedMagneticFieldMatchAStoredOne());
+            if (expected >= 0)
+                assertEquals(expected, helper.getLastMatchedMagneticFieldIndex());
+        }
+    }
+
+    @Test
+    public void positionsCanBeChangedAtRuntimeKeepingTheirAids()
+    {
+        FixedReadingsSource source = new FixedReadingsSource();
+        PositionHelper helper = new PositionHelper(source, 2, 1f);
+        source.set(10f, 0f, 0f);
+        helper.storeCurrentlySensedMagneticField();
+        source.set(20f, 0f, 0f);
+        helper.storeCurrentlySensedMagneticField();
+        assertEquals(-1, helper.storeCurrentlySensedMagneticField());
+
+        // Beyond the initial capacity
+        for (int i = 0; i < 5; i++)
+        {
+            source.set(30f + 10 * i, 0f, 0f);
+            assertEquals(2 + i, helper.addCurrentlySensedMagneticField());
+        }
+        source.set(50f, 0f, 0f);
+        assertTrue(helper.doesCurrentlySensedMagneticFieldMatchAStoredOne());
+        assertEquals(4, helper.getLastMatchedMagneticFieldIndex());
+
+        assertTrue(helper.removeStoredMagneticField(1));
+        assertFalse(helper.removeStoredMagneticField(1));
+        assertEquals(6, helper.getNumberOfStoredMagneticFields());
+        source.set(20f, 0f, 0f);
+        assertFalse(helper.doesCurrentlySensedMagneticFieldMatchAStoredOne());
+        source.set(50f, 0f, 0f);
+        assertTrue(helper.doesCurrentlySensedMagneticFieldMatchAStoredOne());
+        assertEquals(4, helper.getLastMatchedMagneticFieldIndex());
+
+        // Recalibration of a single position
+        source.set(-5f, 0f, 0f);
+        assertTrue(helper.replaceStoredMagneticField(0));
+        assertFalse(helper.replaceStoredMagneticField(1));
+        assertTrue(helper.doesCurrentlySensedMagneticFieldMatchAStoredOne());
+        assertEquals(0, helper.getLastMatchedMagneticFieldIndex());
+        source.set(10f, 0f, 0f);
+        assertFalse(helper.doesCurrentlySensedMagneticFieldMatchAStoredOne());
+
+        // Removed AIDs are not assigned again
+        assertEquals(7, helper.addCurrentlySensedMagneticField());
+    }
+
+    @Test
+    public void theListenerIsNotifiedOnlyWhenThePositionChanges()
+    {
+        MagnetoPipeline pipeline = new MagnetoPipeline(new SimpleMovingAverage(1));
+        PositionHelper helper = new PositionHelper(pipeline, 2, 2f);
+        pipeline.process(0, 10f, 0f, 0f);
+        helper.storeCurrentlySensedMagneticField();
+        pipeline.process(1, 20f, 0f, 0f);
+        helper.storeCurrentlySensedMagneticField();
+
+        final StringBuilder events = new StringBuilder();
+        helper.setPositionListener(new PositionHelper.PositionListener()
+        {
+            @Override
+            public void onPositionEntered(PositionHelper helper, int aid)
+            {
+                events.append("+").append(aid).append(' ');
+            }
+
+            @Override
+            public void onPositionExited(PositionHelper helper, int aid)
+            {
+                events.append("-").append(aid).append(' ');
+            }
+        });
+
+        float[] xs = {10f, 10.5f, 11f, 15f, 20f, 19f, 10f, 30f};
+        for (int i = 0; i < xs.length; i++)
+            pipeline.process(2 + i, xs[i], 0f, 0f);
+        assertEquals("+0 -0 +1 -1 +0 -0 ", events.toString());
+
+        helper.setPositionListener(null);
+        pipeline.process(20, 10f, 0f, 0f);
+        assertEquals("+0 -0 +1 -1 +0 -0 ", events.toString());
+    }
+}
@@ -0,0 +1,68 @@
+package unipi.luk3s.magneto;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RapidChangesHelperTest
+{
+    @Test
+    public void autoCalibrationDetectsEveryFlipAndFollowsTheNoise()
+    {
+        SyntheticMagnetSource source = new SyntheticMagnetSource(9, 50);
+        source.setNoise(0.5f);
+        float[] flipTimes = {5f, 6.5f, 8f, 9.5f, 11f, 12.5f, 14f, 15.5f, 17f, 18.5f};
+        source.addMagnet(SyntheticMagnetSource.flips(new float[]{0, 0, 0.04f},
+                new float[]{0, 0, 0.1f}, flipTimes, 0.15f));
+
+        MagnetoPipeline pipeline = new MagnetoPipeline();
+        RapidChangesHelper helper = new RapidChangesHelper(pipeline);
+        // Counts the flips without polling the helper, which calibrates on its own
+        final int[] gestures = new int[1];
+        TapGestureRecognizer recognizer = new TapGestureRecognizer(helper);
+        recognizer.setGestureListener(new TapGestureRecognizer.GestureListener()
+        {
+            @Override
+            public void onGesture(TapGestureRecognizer recognizer, int gesture, long timestampNanos)
+            {
+                gestures[0]++;
+            }
+
+            @Override
+            public void onTapRate(TapGestureRecognizer recognizer, float tapsPerSecond,
+                                  long timestampNanos) {}
+        });
+        helper.startAutoCalibration();
+        assertTrue(helper.isAutoCalibrating());
+
+        source.feed(pipeline, 50 * 2);
+        assertFalse(helper.hasInitEnded());
+        source.feed(pipeline, 50 * 2);
+        assertTrue(helper.hasInitEnded());
+        float quietHighThreshold = helper.getHighThreshold();
+        assertTrue(helper.getNoiseFloor() > 0 && helper.getNoiseFloor() < 3);
+        assertTrue(helper.getLowThreshold() < quietHighThreshold);
+
+        source.feed(pipeline, 50 * 16);
+        assertEquals(flipTimes.length, gestures[0]);
+        // The flips are not noise
+        assertTrue(helper.getNoiseFloor() < 3);
+        assertEquals(quietHighThreshold, helper.getHighThreshold(), quietHighThreshold / 2);
+
+        // The phone is moved to a noisier place: the thresholds rise, no taps are detected
+        source.setNoise(3f);
+        source.feed(pipeline, 50 * 60);
+        assertEquals(flipTimes.length, gestures[0]);
+        // The 95th percentile of the norm of 3 gaussian components is 2.8 standard deviations
+        assertEquals(2.8f * 3f, helper.getNoiseFloor(), 1.5f);
+        assertTrue(helper.getHighThreshold() > 3 * quietHighThreshold);
+        source.feed(pipeline, 50 * 60);
+        assertEquals(flipTimes.length, gestures[0]);
+
+        helper.stopAutoCalibration();
+        assertFalse(helper.isAutoCalibrating());
+        assertTrue(helper.hasInitEnded());
+    }
+}
@@ -0,0 +1,47 @@
+package unipi.luk3s.magneto;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SampleDecimatorTest
+{
+    private static final long MILLIS = 1000000L;
+
+    @Test
+    public void everyNthSampleIsDelivered()
+    {
+        SampleDecimator decimator = new SampleDecimator(3, 0);
+        StringBuilder delivered = new StringBuilder();
+        for (long sample = 1; sample <= 10; sample++)
+            if (decimator.shouldDeliver(sample * 10 * MILLIS, sample))
+                delivered.append(sample).append(' ');
+
+        assertEquals("1 4 7 10 ", delivered.toString());
+
+        // Coalesced samples count as processed
+        assertTrue(decimator.shouldDeliver(200 * MILLIS, 15));
+    }
+
+    @Test
+    public void theRateIsLimitedOnAverageDespiteJitter()
+    {
+        // 60 Hz sensor with +-2 ms of jitter, limited to 30 Hz
+        SampleDecimator decimator = new SampleDecimator(1, 30);
+        int delivered = 0;
+        for (int sample = 0; sample < 600; sample++)
+        {
+            long timestamp = sample * 16667000L + ((sample % 2 == 0) ? 2 : -2) * MILLIS;
+            if (decimator.shouldDeliver(timestamp, sample + 1))
+                delivered++;
+        }
+        assertEquals(300, delivered);
+
+        // After a pause the first sample is delivered and the rate starts again from it
+        assertTrue(decimator.shouldDeliver(20000 * MILLIS, 601));
+        assertFalse(decimator.shouldDeliver(20020 * MILLIS, 602));
+        assertTrue(decimator.shouldDeliver(20034 * MILLIS, 603));
+    }
+}
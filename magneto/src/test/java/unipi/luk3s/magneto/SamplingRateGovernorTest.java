@@ -0,0 +1,52 @@
+package unipi.luk3s.magneto;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SamplingRateGovernorTest
+{
+    private static final int IDLE = 3;
+    private static final int ACTIVE = 0;
+    private static final long MILLIS = 1000000L;
+    private static final float LOW = 5f;
+    private static final float HIGH = 30f;
+
+    @Test
+    public void theRateDropsOnlyAfterAQuietPeriodAndRisesImmediately()
+    {
+        SamplingRateGovernor governor = new SamplingRateGovernor(IDLE, ACTIVE, 1000);
+        assertEquals(ACTIVE, governor.getDelay());
+
+        // Quiet, but not long enough
+        for (long t = 0; t < 1000; t += 20)
+            assertFalse(governor.update(t * MILLIS, 1f, LOW, HIGH));
+        assertEquals(ACTIVE, governor.getDelay());
+
+        assertTrue(governor.update(1000 * MILLIS, 1f, LOW, HIGH));
+        assertEquals(IDLE, governor.getDelay());
+
+        // Between the thresholds the idle rate is kept...
+        assertFalse(governor.update(1200 * MILLIS, 20f, LOW, HIGH));
+        assertEquals(IDLE, governor.getDelay());
+
+        // ...while a rapid change raises the rate at once
+        assertTrue(governor.update(1400 * MILLIS, 40f, LOW, HIGH));
+        assertEquals(ACTIVE, governor.getDelay());
+    }
+
+    @Test
+    public void activityBetweenTheThresholdsKeepsTheActiveRate()
+    {
+        SamplingRateGovernor governor = new SamplingRateGovernor(IDLE, ACTIVE, 1000);
+        for (long t = 0; t < 5000; t += 20)
+        {
+            // Below the low threshold for 800 ms out of every 1000
+            float magnitude = (t % 1000 < 800) ? 1f : 20f;
+            assertFalse(governor.update(t * MILLIS, magnitude, LOW, HIGH));
+        }
+        assertEquals(ACTIVE, governor.getDelay());
+    }
+}
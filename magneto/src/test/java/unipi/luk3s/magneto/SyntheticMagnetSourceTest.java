@@ -0,0 +1,127 @@
+package unipi.luk3s.magneto;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SyntheticMagnetSourceTest
+{
+    private static final float[] FLIP_TIMES = {1f, 2f, 3f, 4f, 5f, 6f, 7f, 8f, 9f, 10f};
+
+    @Test
+    public void theStreamOnlyDependsOnTheSeed()
+    {
+        SyntheticMagnetSource first = newFlippingSource(7, 100);
+        SyntheticMagnetSource second = newFlippingSource(7, 100);
+        float[] firstValues = new float[3], secondValues = new float[3];
+        for (int i = 0; i < 1000; i++)
+        {
+            assertEquals(first.next(firstValues), second.next(secondValues));
+            assertArrayEquals(firstValues, secondValues, 0f);
+        }
+        assertEquals(10000000000L, first.getTimestamp());
+    }
+
+    @Test
+    public void magnetsAreDipoles()
+    {
+        SyntheticMagnetSource source = new SyntheticMagnetSource(1, 100);
+        source.setEarthField(0, 0, 0);
+        source.addMagnet(SyntheticMagnetSource.fixed(new float[]{0, 0, 0.05f},
+                new float[]{0, 0, 0.1f}));
+
+        // On the axis of a dipole the field is 2 k m / r^3, half of it and opposite on its side
+        float[] field = new float[3];
+        source.computeField(0, field);
+        assertArrayEquals(new float[]{0, 0, 160f}, field, 1e-3f);
+
+        source.addMagnet(SyntheticMagnetSource.fixed(new float[]{0.05f, 0, 0},
+                new float[]{0, 0, 0.1f}));
+        source.computeField(0, field);
+        assertArrayEquals(new float[]{0, 0, 80f}, field, 1e-3f);
+    }
+
+    @Test
+    public void everyFlipIsDetectedOnce()
+    {
+        long[] detections = detectFlips(newFlippingSource(3, 100), new MagnetoPipeline(), 1100);
+
+        assertEquals(FLIP_TIMES.length, detections.length);
+        for (int i = 0; i < FLIP_TIMES.length; i++)
+        {
+            long latency = detections[i] - (long) (FLIP_TIMES[i] * 1e9);
+            assertTrue("Latency " + latency, latency >= 0 && latency < 100000000L);
+        }
+    }
+
+    @Test
+    public void flipsAreDetectedAtTenKilohertz()
+    {
+        // The time constant filter does not depend on the sampling rate, the thresholds hold
+        MagnetoPipeline pipeline = new MagnetoPipeline(new TimeConstantFilter(100f));
+        long[] detections = detectFlips(newFlippingSource(3, 10000), pipeline, 110000);
+        assertEquals(FLIP_TIMES.length, detections.length);
+    }
+
+    @Test
+    public void aMagnetGoingRoundMakesTwoVirtualTapsPerRevolution()
+    {
+        SyntheticMagnetSource source = new SyntheticMagnetSource(5, 100);
+        source.setNoise(0.5f);
+        source.addMagnet(SyntheticMagnetSource.orbit(0.05f, 0.01f, 0.2f, 1f));
+
+        MagnetoPipeline pipeline = new MagnetoPipeline();
+        final VirtualTapHelper helper = new VirtualTapHelper(pipeline);
+        final int[] taps = new int[1];
+        // A quarter of a revolution, far from the changes of sign of the azimuth
+        source.feed(pipeline, 25);
+        helper.init();
+        helper.setTapListener(new VirtualTapHelper.TapListener()
+        {
+            @Override
+            public void onTap(VirtualTapHelper helper)
+            {
+                taps[0]++;
+            }
+        });
+
+        source.feed(pipeline, 300);
+        assertEquals(6, taps[0]);
+    }
+
+    private static SyntheticMagnetSource newFlippingSource(long seed, float samplingRateHz)
+    {
+        SyntheticMagnetSource source = new SyntheticMagnetSource(seed, samplingRateHz);
+        source.setNoise(0.5f);
+        source.addMagnet(SyntheticMagnetSource.flips(new float[]{0, 0, 0.04f},
+                new float[]{0, 0, 0.1f}, FLIP_TIMES, 0.1f));
+        return source;
+    }
+
+    /** The timestamps of the taps detected by a RapidChangesHelper */
+    private static long[] detectFlips(SyntheticMagnetSource source, final MagnetoPipeline pipeline,
+                                      int samples)
+    {
+        RapidChangesHelper helper = new RapidChangesHelper(pipeline);
+        helper.setLowThreshold(20);
+        helper.setHighThreshold(100);
+        helper.endInit();
+
+        final long[] detections = new long[samples];
+        helper.setTapListener(new RapidChangesHelper.TapListener()
+        {
+            @Override
+            public void onTap(RapidChangesHelper helper, int tapCounter)
+            {
+                detections[tapCounter - 1] = pipeline.getLastTimestamp();
+            }
+        });
+
+        source.feed(pipeline, samples);
+        return Arrays.copyOf(detections, helper.getTapCounter());
+    }
+}
@@ -0,0 +1,130 @@
+package unipi.luk3s.magneto;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TapGestureRecognizerTest
+{
+    @Test
+    public void tapsCloseInTimeMakeASequence()
+    {
+        SyntheticMagnetSource source = new SyntheticMagnetSource(9, 100);
+        source.setNoise(0.5f);
+        source.addMagnet(SyntheticMagnetSource.flips(new float[]{0, 0, 0.04f},
+                new float[]{0, 0, 0.1f}, new float[]{1f, 3f, 3.3f, 5f, 5.3f, 5.6f}, 0.1f));
+
+        MagnetoPipeline pipeline = new MagnetoPipeline();
+        GestureRecorder recorder = newRecorder(pipeline);
+        source.feed(pipeline, 700);
+
+        assertEquals(3, recorder.gestures.size());
+        recorder.assertGesture(0, TapGestureRecognizer.SINGLE, 1.4f, 1.5f);
+        recorder.assertGesture(1, TapGestureRecognizer.DOUBLE, 3.7f, 3.8f);
+        // Nothing to wait for after the third tap
+        recorder.assertGesture(2, TapGestureRecognizer.TRIPLE, 5.6f, 5.7f);
+
+        // The first tap of each sequence is alone in the rate window of 1 s
+        assertEquals(3, recorder.tapRates.size());
+        for (float tapsPerSecond : recorder.tapRates)
+            assertEquals(1 / 0.3f, tapsPerSecond, 0.3f);
+    }
+
+    @Test
+    public void aLongChangeIsAHold()
+    {
+        SyntheticMagnetSource source = new SyntheticMagnetSource(9, 100);
+        source.setNoise(0.5f);
+        source.addMagnet(SyntheticMagnetSource.slide(new float[]{0, 0, 0.3f},
+                new float[]{0, 0, 0.04f}, new float[]{0, 0, 0.1f}, 1f, 0.1f));
+
+        // The high-pass filtered field decays with a time constant of 2 s
+        MagnetoPipeline pipeline = new MagnetoPipeline(new TimeConstantFilter(2000f));
+        GestureRecorder recorder = newRecorder(pipeline);
+        source.feed(pipeline, 300);
+
+        assertEquals(1, recorder.gestures.size());
+        recorder.assertGesture(0, TapGestureRecognizer.HOLD, 1.6f, 1.8f);
+        assertTrue(recorder.tapRates.isEmpty());
+    }
+
+    @Test
+    public void theTapListenerOfTheHelperStillSeesEveryTap()
+    {
+        SyntheticMagnetSource source = new SyntheticMagnetSource(9, 100);
+        source.setNoise(0.5f);
+        source.addMagnet(SyntheticMagnetSource.flips(new float[]{0, 0, 0.04f},
+                new float[]{0, 0, 0.1f}, new float[]{1f, 3f, 3.3f, 5f, 5.3f, 5.6f}, 0.1f));
+
+        MagnetoPipeline pipeline = new MagnetoPipeline();
+        RapidChangesHelper helper = new RapidChangesHelper(pipeline);
+        helper.setLowThreshold(20);
+        helper.setHighThreshold(100);
+        helper.endInit();
+
+        // Registered before the tap listener, so it would see the taps first
+        GestureRecorder recorder = new GestureRecorder();
+        new TapGestureRecognizer(helper).setGestureListener(recorder);
+        final int[] taps = new int[1];
+        helper.setTapListener(new RapidChangesHelper.TapListener()
+        {
+            @Override
+            public void onTap(RapidChangesHelper helper, int tapCounter)
+            {
+                taps[0]++;
+            }
+        });
+        source.feed(pipeline, 700);
+
+        assertEquals(6, taps[0]);
+        assertEquals(6, helper.getTapCounter());
+        assertEquals(3, recorder.gestures.size());
+        recorder.assertGesture(2, TapGestureRecognizer.TRIPLE, 5.6f, 5.7f);
+    }
+
+    private static GestureRecorder newRecorder(MagnetoPipeline pipeline)
+    {
+        RapidChangesHelper helper = new RapidChangesHelper(pipeline);
+        helper.setLowThreshold(20);
+        helper.setHighThreshold(100);
+        helper.endInit();
+
+        GestureRecorder recorder = new GestureRecorder();
+        TapGestureRecognizer recognizer = new TapGestureRecognizer(helper);
+        recognizer.setTapRateWindowMillis(1000);
+        recognizer.setGestureListener(recorder);
+        return recorder;
+    }
+
+    private static class GestureRecorder implements TapGestureRecognizer.GestureListener
+    {
+        final List<Integer> gestures = new ArrayList<Integer>();
+        final List<Long> timestamps = new ArrayList<Long>();
+        final List<Float> tapRates = new ArrayList<Float>();
+
+        @Override
+        public void onGesture(TapGestureRecognizer recognizer, int gesture, long timestampNanos)
+        {
+            gestures.add(gesture);
+            timestamps.add(timestampNanos);
+        }
+
+        @Override
+        public void onTapRate(TapGestureRecognizer recognizer, float tapsPerSecond,
+                              long timestampNanos)
+        {
+            tapRates.add(tapsPerSecond);
+        }
+
+        void assertGesture(int index, int gesture, float fromSeconds, float toSeconds)
+        {
+            assertEquals(gesture, (int) gestures.get(index));
+            float seconds = timestamps.get(index) / 1e9f;
+            assertTrue("Recognised at " + seconds, seconds >= fromSeconds && seconds < toSeconds);
+        }
+    }
+}